@@ -23,8 +23,8 @@ dependencies {
 
     // This dependency is used by the application.
     implementation(libs.guava)
-    implementation("org.ejml:ejml-all:0.43.1")
-    implementation("org.openpnp:opencv:4.9.0-0")
+    implementation(libs.ejml)
+    implementation(libs.opencv)
 }
 
 // Apply a specific Java toolchain to ease working on different environments.
@@ -39,3 +39,8 @@ application {
     mainClass = "org.vapor.App"
 }
 
+tasks.named<Test>("test") {
+    // Use JUnit Platform for unit tests.
+    useJUnitPlatform()
+}
+
@@ -1,14 +1,11 @@
 package org.vapor;
 
 import org.ejml.simple.SimpleMatrix;
-import org.opencv.core.Core;
 import org.opencv.core.MatOfDouble;
-import org.opencv.core.Point;
-import org.opencv.core.Point3;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 public class App {
     /** The intrinsics matrix for camera 1. */
@@ -19,7 +16,7 @@ public class App {
     });
 
     /** The distortion coefficients for camera 1. */
-    private static final MatOfDouble dist1 = new MatOfDouble(new double[]{0.03852127, -0.2639929, 0.01173549, -0.00741738, 0.32940914});
+    private static final double[] dist1 = {0.03852127, -0.2639929, 0.01173549, -0.00741738, 0.32940914};
 
     /** The intrinsics matrix for camera 2. */
     private static final SimpleMatrix mtx2 = new SimpleMatrix(new double[][]{
@@ -29,7 +26,7 @@ public class App {
     });
 
     /** The distortion coefficients for camera 2. */
-    private static final MatOfDouble dist2 = new MatOfDouble(new double[]{0.05883428, -0.13611729, 0.00960835, -0.00353916, 0.01426129});
+    private static final double[] dist2 = {0.05883428, -0.13611729, 0.00960835, -0.00353916, 0.01426129};
 
     /** The rotation matrix for the stereo camera system. */
     private static final SimpleMatrix R = new SimpleMatrix(new double[][]{
@@ -69,57 +66,34 @@ public class App {
     }
 
     public static void main(String[] args) {
-        System.load("/usr/lib/libopencv_java.so");
-
-        // initialize Stereo object
-        Stereo cameras = new Stereo(mtx1, mtx2, dist1, dist2, R, T);
-
-        // get stereo image frames
-        Frame frame1 = new Frame("./1A.png", "./1B.png");
-        Frame frame2 = new Frame("./2A.png", "./2B.png");
-
-        // run image detection
-        FeatureInfo info1A = Detection.detect(frame1.leftImage, frame1.leftGrayImage);
-        FeatureInfo info1B = Detection.detect(frame1.rightImage, frame1.rightGrayImage);
-        FeatureInfo info2A = Detection.detect(frame2.leftImage, frame2.leftGrayImage);
-        FeatureInfo info2B = Detection.detect(frame2.rightImage, frame2.rightGrayImage);
-
-        // run feature matching between the stereo pairs
-        HashMap<Feature, Feature> stereo1Matches = Tracking.track(info1A, info1B);
-        HashMap<Feature, Feature> stereo2Matches = Tracking.track(info2A, info2B);
-
-        // run feature matching between the two frames
-        HashMap<Feature, Feature> frameMatches = Tracking.track(info1A, info2A);
-
-        // for each feature match between the two frames, triangulate the 3D point in the first frame
-        ArrayList<Point> points2D = new ArrayList<>();
-        ArrayList<Point3> points3D = new ArrayList<>();
-        for (Feature feature1A : frameMatches.keySet()) {
-            Feature feature2A = frameMatches.get(feature1A);
-
-            // ensure feature1A and feature2A has a match in the stereo pair
-            if (!stereo1Matches.containsKey(feature1A)) continue;
-            if (!stereo2Matches.containsKey(feature2A)) continue;
-
-            // get the corresponding features in the stereo pair
-            Feature feature1B = stereo1Matches.get(feature1A);
-            // Feature feature2B = stereo2Matches.get(feature2A);
-
-            // triangulate the feature in the first frame
-            double[] point1 = new double[]{feature1A.x, feature1A.y};
-            double[] point2 = new double[]{feature1B.x, feature1B.y};
-            Point3 point3D = cameras.triangulate(point1, point2);
-
-            // add the 2D and 3D points to the list
-            points2D.add(new Point(feature2A.x, feature2A.y));
-            points3D.add(new Point3(point3D.x, point3D.y, point3D.z));
+        // process a dataset headlessly if one is given
+        if (args.length > 0) {
+            Batch.main(args);
+            return;
         }
+        OpenCVLibrary.load();
 
-        // run preemptive RANSAC
-        Motion best_hypothesis = RANSAC.ransac(points2D, points3D, cameras);
+        // initialize Stereo object, whose distortion matrices need the native library loaded
+        Stereo cameras = new Stereo(mtx1, mtx2, new MatOfDouble(dist1), new MatOfDouble(dist2), R, T);
 
-        // print best hypothesis
-        System.out.println(best_hypothesis);
+        // warm the pipeline up, so that odometry is only consumed once its latency is steady
+        System.out.println(new WarmUp(cameras).run(WarmUp.DEFAULT_BUDGET));
+
+        // run visual odometry over the stereo frames in a pipeline, printing the pose of each
+        try (VisualOdometry odometry = new VisualOdometry(cameras)) {
+            Pipeline pipeline = new Pipeline(odometry);
+            List<String[]> paths = List.of(new String[]{"./1A.png", "./1B.png"}, new String[]{"./2A.png", "./2B.png"});
+            Iterator<Frame> frames = paths.stream().map(pair -> new Frame(pair[0], pair[1])).iterator();
+            pipeline.run(frames, System.out::println);
+
+            // print where the pipeline waited
+            for (SpscQueue<?> queue : pipeline.getQueues()) {
+                System.out.println(queue);
+            }
+
+            // print the latency distribution of every stage
+            System.out.print(odometry.getBenchmark().report());
+        }
 
 /*
         // visualize matches
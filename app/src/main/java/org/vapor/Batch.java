@@ -0,0 +1,400 @@
+package org.vapor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Processes every sequence of a dataset headlessly, for regression runs over recorded data.
+ *
+ * The sequences run concurrently on one shared pool, as the rigs of a {@link MultiRig}. Every sequence writes its
+ * trajectory to "SEQUENCE/trajectory.csv" in the output directory as its frames are processed, one line per frame, and
+ * once every sequence has ended, "report.json" gathers the frame rate, the latency percentiles of every stage and the
+ * feature, correspondence and inlier counts of each sequence. The frame rate of a sequence is measured over the whole
+ * run, so it is the rate the sequence got while sharing the pool with the others. Unless disabled, a {@link WarmUp}
+ * runs on the pool first, so that the first frames are not measured at interpreted speed.
+ */
+public class Batch {
+    /** The default directory the results are written to. */
+    public static final String DEFAULT_OUTPUT = "vapor-output";
+
+    /** The default seed of the estimations, fixed so that nightly runs are comparable. */
+    public static final long DEFAULT_SEED = 42;
+
+    /** The usage of the command line. */
+    private static final String USAGE = String.join("\n",
+            "usage: vapor --calibration FILE --dataset DIRECTORY [options]",
+            "  --calibration FILE   the stereo calibration, see Calibration; a sequence's own calibration.properties",
+            "                       overrides it, and it may be left out if every sequence has one",
+            "  --dataset DIRECTORY  a sequence with left and right image directories, or a directory of sequences",
+            "  --threads N          the number of worker threads shared by the sequences, one per core by default",
+            "  --output DIRECTORY   where the trajectories and report are written, " + DEFAULT_OUTPUT + " by default",
+            "  --budget MS          the time budget of one motion estimation, "
+                    + MultiRig.DEFAULT_ESTIMATION_BUDGET / 1_000_000 + " ms by default",
+            "  --seed N             the seed of the estimations, " + DEFAULT_SEED + " by default",
+            "  --warmup SECONDS     the budget of the warm-up before the run, 0 to skip it, "
+                    + WarmUp.DEFAULT_BUDGET / 1_000_000_000 + " s by default");
+
+    /* The options of the run. */
+    private final Path calibration;
+    private final Path dataset;
+    private final Path output;
+    private final int threads;
+    private final long estimationBudget;
+    private final long seed;
+    private final long warmUpBudget;
+
+    /* The report of the warm-up of the last run, or null if it was skipped. */
+    private WarmUp.Report warmUp;
+
+    /**
+     * Constructs a batch run.
+     *
+     * @param calibration the calibration of the dataset, or null if every sequence has its own
+     * @param dataset the dataset directory
+     * @param output the directory the results are written to
+     * @param threads the number of worker threads shared by the sequences
+     * @param estimationBudget the wall-clock time budget of one motion estimation in nanoseconds
+     * @param seed the seed of the estimations
+     * @param warmUpBudget the wall-clock budget of the warm-up in nanoseconds, or 0 to skip it
+     */
+    public Batch(Path calibration, Path dataset, Path output, int threads, long estimationBudget, long seed,
+                 long warmUpBudget) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A batch run needs at least one thread.");
+        }
+        if (warmUpBudget < 0) {
+            throw new IllegalArgumentException("A batch run needs a warm-up budget of at least 0.");
+        }
+        this.calibration = calibration;
+        this.dataset = dataset;
+        this.output = output;
+        this.threads = threads;
+        this.estimationBudget = estimationBudget;
+        this.seed = seed;
+        this.warmUpBudget = warmUpBudget;
+    }
+
+    /**
+     * Runs a batch from the command line, exiting with 0 on success, 1 if the run failed and 2 on a usage error.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        Batch batch;
+        try {
+            batch = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            OpenCVLibrary.load();
+            List<Summary> summaries = batch.run();
+            if (batch.getWarmUp() != null) {
+                System.out.println(batch.getWarmUp());
+            }
+            for (Summary summary : summaries) {
+                System.out.println(summary);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses the command line options.
+     *
+     * @param args the command line options
+     *
+     * @return the batch run
+     *
+     * @throws IllegalArgumentException if an option is unknown, missing its value or malformed
+     */
+    static Batch parse(String[] args) {
+        Path calibration = null;
+        Path dataset = null;
+        Path output = Paths.get(DEFAULT_OUTPUT);
+        int threads = Runtime.getRuntime().availableProcessors();
+        long budget = MultiRig.DEFAULT_ESTIMATION_BUDGET;
+        long seed = DEFAULT_SEED;
+        long warmUpBudget = WarmUp.DEFAULT_BUDGET;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing the value of " + args[i] + ".");
+            }
+            String value = args[i + 1];
+            try {
+                switch (args[i]) {
+                    case "--calibration": calibration = Paths.get(value); break;
+                    case "--dataset": dataset = Paths.get(value); break;
+                    case "--output": output = Paths.get(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--budget": budget = Long.parseLong(value) * 1_000_000; break;
+                    case "--seed": seed = Long.parseLong(value); break;
+                    case "--warmup": warmUpBudget = Long.parseLong(value) * 1_000_000_000; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed value of " + args[i] + ": " + value + ".");
+            }
+        }
+        if (dataset == null) {
+            throw new IllegalArgumentException("Missing --dataset.");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1.");
+        }
+        if (warmUpBudget < 0) {
+            throw new IllegalArgumentException("--warmup must be at least 0.");
+        }
+        return new Batch(calibration, dataset, output, threads, budget, seed, warmUpBudget);
+    }
+
+    /**
+     * Returns the report of the warm-up of the last run.
+     *
+     * @return the report, or null if the warm-up was skipped or no run happened
+     */
+    public WarmUp.Report getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Processes every sequence of the dataset, writing the trajectories and the report.
+     *
+     * @return the summary of each sequence, in the order of the sequences
+     *
+     * @throws IOException if the dataset cannot be read or the results cannot be written
+     */
+    public List<Summary> run() throws IOException {
+        // the calibration of every sequence, its own if it has one
+        List<Dataset.Sequence> sequences = Dataset.sequences(dataset);
+        Stereo shared = calibration == null ? null : Calibration.load(calibration);
+        List<Stereo> cameras = new ArrayList<>();
+        for (Dataset.Sequence sequence : sequences) {
+            if (sequence.calibration != null) {
+                cameras.add(Calibration.load(sequence.calibration));
+            } else if (shared != null) {
+                cameras.add(shared);
+            } else {
+                throw new IllegalArgumentException("Sequence " + sequence.name + " has no " + Dataset.CALIBRATION_FILE
+                        + " and no --calibration was given.");
+            }
+        }
+
+        // open a trajectory per sequence
+        Files.createDirectories(output);
+        List<Summary> summaries = new ArrayList<>();
+        List<Iterator<Frame>> streams = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        try (MultiRig rigs = new MultiRig(cameras, pool, estimationBudget, seed)) {
+            // warm the pipeline up on the pool the sequences will share, at the resolution of the first calibration
+            warmUp = null;
+            if (warmUpBudget > 0) {
+                RANSAC ransac = new RANSAC(pool, RANSAC.DEFAULT_CONFIDENCE, estimationBudget);
+                warmUp = new WarmUp(cameras.get(0), ransac, seed).run(warmUpBudget);
+            }
+
+            try {
+                for (Dataset.Sequence sequence : sequences) {
+                    Path directory = Files.createDirectories(output.resolve(sequence.name));
+                    summaries.add(new Summary(sequence, Files.newBufferedWriter(directory.resolve("trajectory.csv"))));
+                    streams.add(sequence.frames());
+                }
+
+                // process the sequences together, each writing its own trajectory
+                long start = System.nanoTime();
+                rigs.run(streams, (rig, pose) -> summaries.get(rig).accept(pose, System.nanoTime() - start));
+                long nanos = System.nanoTime() - start;
+
+                for (int i = 0; i < summaries.size(); i++) {
+                    summaries.get(i).stages = rigs.getOdometry(i).getBenchmark().snapshot(false);
+                }
+                writeReport(summaries, nanos);
+            } finally {
+                for (Summary summary : summaries) {
+                    summary.trajectory.close();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return summaries;
+    }
+
+    /**
+     * Writes the report of a run.
+     *
+     * @param summaries the summary of each sequence
+     * @param nanos the wall-clock duration of the run
+     */
+    private void writeReport(List<Summary> summaries, long nanos) throws IOException {
+        long frames = 0;
+        for (Summary summary : summaries) {
+            frames += summary.frames;
+        }
+        try (Writer writer = Files.newBufferedWriter(output.resolve("report.json"))) {
+            writer.write("{\n");
+            writer.write(format("  \"dataset\": %s,\n", quote(dataset.toString())));
+            writer.write(format("  \"threads\": %d,\n", threads));
+            writer.write(format("  \"seconds\": %.3f,\n", nanos / 1E9));
+            writer.write(format("  \"frames\": %d,\n", frames));
+            writer.write(format("  \"fps\": %.3f,\n", frames / Math.max(nanos / 1E9, 1E-9)));
+            if (warmUp != null) {
+                writer.write(format("  \"warmup\": {\"hot\": %b, \"seconds\": %.3f, \"iterations\": %d, \"firstMs\": %.3f, \"steadyMs\": %.3f, "
+                                + "\"estimationMs\": %.3f},\n",
+                        warmUp.hot, warmUp.nanos / 1E9, warmUp.iterations, warmUp.firstNanos / 1E6, warmUp.steadyNanos / 1E6,
+                        warmUp.estimationNanos / 1E6));
+            }
+            writer.write("  \"sequences\": [");
+            for (int i = 0; i < summaries.size(); i++) {
+                writer.write(i == 0 ? "\n" : ",\n");
+                summaries.get(i).writeJson(writer);
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+
+    /**
+     * Formats a line of the report, independently of the default locale.
+     */
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+
+    /**
+     * Quotes a string for the report.
+     */
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The trajectory and counters of one sequence. Its poses arrive one at a time, though not always on the same
+     * worker, and the pool orders each one after the one before.
+     */
+    public static final class Summary {
+        public final String name;            // name of the sequence
+        public long frames;                  // number of frames processed
+        public long tracked;                 // number of frames whose motion was estimated
+        public long keyframes;               // number of keyframes
+        public long features;                // total number of features detected in the reference images
+        public long correspondences;         // total number of 2D-3D correspondences
+        public long inliers;                 // total number of inliers of the estimated motions
+        public long nanos;                   // time from the start of the run to the last pose of the sequence
+        public List<Benchmark.Snapshot> stages = List.of(); // latency distribution of every stage
+
+        /* The trajectory file of the sequence. */
+        private final BufferedWriter trajectory;
+
+        Summary(Dataset.Sequence sequence, BufferedWriter trajectory) throws IOException {
+            this.name = sequence.name;
+            this.trajectory = trajectory;
+            trajectory.write("frame,tracked,keyframe,features,correspondences,inliers,total_ms,"
+                    + "r00,r01,r02,r10,r11,r12,r20,r21,r22,x,y,z\n");
+        }
+
+        /**
+         * Records the pose of the next frame.
+         *
+         * @param pose the pose
+         * @param elapsed the time from the start of the run
+         */
+        void accept(Pose pose, long elapsed) {
+            int poseInliers = pose.isTracked() ? pose.motion.inliers : 0;
+            frames++;
+            tracked += pose.isTracked() ? 1 : 0;
+            keyframes += pose.keyframe ? 1 : 0;
+            features += pose.features;
+            correspondences += pose.correspondences;
+            inliers += poseInliers;
+            nanos = elapsed;
+
+            StringBuilder line = new StringBuilder();
+            line.append(pose.frame).append(',').append(pose.isTracked() ? 1 : 0).append(',').append(pose.keyframe ? 1 : 0)
+                    .append(',').append(pose.features).append(',').append(pose.correspondences).append(',')
+                    .append(poseInliers).append(',').append(format("%.3f", pose.totalNanos / 1E6));
+            for (double value : pose.rotation) {
+                line.append(',').append(value);
+            }
+            for (double value : pose.position) {
+                line.append(',').append(value);
+            }
+            try {
+                trajectory.write(line.append('\n').toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Returns the frame rate of the sequence over the run.
+         *
+         * @return the frames per second
+         */
+        public double fps() {
+            return nanos == 0 ? 0 : frames / (nanos / 1E9);
+        }
+
+        /**
+         * Writes the summary as a JSON object of the report.
+         *
+         * @param writer the report
+         */
+        private void writeJson(Writer writer) throws IOException {
+            double count = Math.max(frames, 1);
+            writer.write("    {\n");
+            writer.write(format("      \"name\": %s,\n", quote(name)));
+            writer.write(format("      \"frames\": %d,\n", frames));
+            writer.write(format("      \"seconds\": %.3f,\n", nanos / 1E9));
+            writer.write(format("      \"fps\": %.3f,\n", fps()));
+            writer.write(format("      \"tracked\": %d,\n", tracked));
+            writer.write(format("      \"keyframes\": %d,\n", keyframes));
+            writer.write(format("      \"meanFeatures\": %.1f,\n", features / count));
+            writer.write(format("      \"meanCorrespondences\": %.1f,\n", correspondences / count));
+            writer.write(format("      \"meanInliers\": %.1f,\n", inliers / Math.max(tracked, 1.0)));
+            writer.write("      \"stages\": {");
+            for (int i = 0; i < stages.size(); i++) {
+                Benchmark.Snapshot stage = stages.get(i);
+                writer.write(i == 0 ? "\n" : ",\n");
+                writer.write(format("        %s: {\"count\": %d, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p90Ms\": %.3f, "
+                                + "\"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f, \"allocatedBytesPerSpan\": %d}",
+                        quote(stage.name), stage.count, stage.meanNanos / 1E6, stage.p50Nanos / 1E6,
+                        stage.p90Nanos / 1E6, stage.p99Nanos / 1E6, stage.p999Nanos / 1E6, stage.maxNanos / 1E6,
+                        stage.count == 0 ? 0 : stage.allocatedBytes / stage.count));
+            }
+            writer.write("\n      }\n    }");
+        }
+
+        @Override
+        public String toString() {
+            return format("%s: %d frames, %.2f fps, %d tracked, %d keyframes, %.1f features, %.1f inliers per frame",
+                    name, frames, fps(), tracked, keyframes, features / Math.max(frames, 1.0),
+                    inliers / Math.max(tracked, 1.0));
+        }
+    }
+}
@@ -1,40 +1,328 @@
 package org.vapor;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Per-stage latency histograms and allocation accounting.
+ *
+ * Each named stage records the duration of its spans, measured with System.nanoTime, into a fixed-bucket log-linear
+ * histogram: values below 2^SUB_BUCKET_BITS nanoseconds get a bucket each, and every power of two above is split
+ * into 2^SUB_BUCKET_BITS equal buckets, so every recorded value is known to within 1 / 2^SUB_BUCKET_BITS of itself.
+ * Recording a span is one array index computation and a few atomic increments, with no lock and no allocation, so
+ * stages can be recorded from several threads and left on in production.
+ *
+ * A span can also record the bytes its thread allocated, read from the JVM's per-thread allocation counter. Spans
+ * must then start and stop on the same thread.
+ *
+ * Snapshots copy the histograms for export, and can reset them so that every snapshot covers one period.
+ */
 public class Benchmark {
-    /** An ArrayList of timestamps for each stage of the pipeline. */
-    private ArrayList<Long> timestamps;
+    /** The number of bits of the linear part of a bucket, giving 16 buckets per power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
 
+    /** The number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The largest power of two a duration is bucketed under, about 18 minutes in nanoseconds; longer ones saturate. */
+    private static final int MAX_EXPONENT = 40;
+
+    /** The number of buckets of every histogram. */
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /** The percentiles of a snapshot. */
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** The value returned for allocated bytes when allocation is not tracked. */
+    public static final long NO_ALLOCATION = -1;
+
+    /* The JVM's per-thread allocation counter, or null if the JVM does not provide one. */
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    /* The stages, by name. */
+    private final ConcurrentHashMap<String, Stage> stages = new ConcurrentHashMap<>();
+
+    /* Whether spans record the bytes their thread allocated. */
+    private final boolean trackAllocation;
+
+    /**
+     * Constructs a benchmark that tracks allocation if the JVM supports it.
+     */
     public Benchmark() {
-        timestamps = new ArrayList<Long>();
+        this(true);
     }
 
     /**
-     * Marks the current time in milliseconds, adding it to the list of timestamps.
+     * Constructs a benchmark.
+     *
+     * @param trackAllocation whether spans record the bytes their thread allocated, if the JVM supports it
      */
-    public void mark() {
-        timestamps.add(System.currentTimeMillis());
+    public Benchmark(boolean trackAllocation) {
+        this.trackAllocation = trackAllocation && THREADS != null;
     }
 
     /**
-     * Print out the time taken for the latest stage of the pipeline.
+     * Returns the stage of a name, creating it on first use. Callers on a hot path should keep the stage rather than
+     * looking it up for every span.
+     *
+     * @param name the name of the stage
      *
-     * @param stage the name of the stage.
+     * @return the stage
      */
-    public void print(String stage) {
-        long start = timestamps.get(timestamps.size() - 2);
-        long end = timestamps.get(timestamps.size() - 1);
-        System.out.println("Time taken for " + stage + " : " + (end - start) + " ms");
+    public Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
     }
 
-    /*
-     * Print out the total time taken for the pipeline.
+    /**
+     * Copies the histograms of every stage, optionally resetting them. A snapshot taken while spans are recorded may
+     * miss or split the spans recorded during it, but never loses one across two reset snapshots.
+     *
+     * @param reset whether to reset the histograms
+     *
+     * @return the snapshots of the stages that recorded at least one span, sorted by name
      */
-    public void total() {
-        long start = timestamps.get(0);
-        long end = timestamps.get(timestamps.size() - 1);
-        System.out.println("Total time taken: " + (end - start) + " ms");
+    public List<Snapshot> snapshot(boolean reset) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Stage stage : stages.values()) {
+            Snapshot snapshot = stage.snapshot(reset);
+            if (snapshot.count > 0) {
+                snapshots.add(snapshot);
+            }
+        }
+        snapshots.sort((a, b) -> a.name.compareTo(b.name));
+        return snapshots;
+    }
+
+    /**
+     * Formats a snapshot of every stage without resetting them, one stage per line.
+     *
+     * @return the report
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Snapshot snapshot : snapshot(false)) {
+            report.append(snapshot).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns the number of bytes the current thread has allocated so far, if this benchmark tracks allocation.
+     *
+     * @return the allocated bytes, or {@link #NO_ALLOCATION}
+     */
+    public long allocatedBytes() {
+        return trackAllocation ? THREADS.getCurrentThreadAllocatedBytes() : NO_ALLOCATION;
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value the non-negative value
+     *
+     * @return the index of its bucket
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
     }
-}
 
+    /**
+     * Returns the largest value of a bucket.
+     *
+     * @param bucket the index of the bucket
+     *
+     * @return the largest value that falls into the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    /**
+     * Looks up the JVM's per-thread allocation counter, enabling it if it is supported.
+     *
+     * @return the thread bean, or null if the JVM cannot count allocated bytes
+     */
+    private static com.sun.management.ThreadMXBean threads() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * A named stage, recording the duration and allocation of its spans.
+     */
+    public final class Stage {
+        /* The name of the stage. */
+        private final String name;
+
+        /* The number of spans in each bucket. */
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        /* The total duration of the spans, their longest duration and their total allocation. */
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Starts a span.
+         *
+         * @return the start time of the span, to be passed to {@link #stop(long)}
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Returns the bytes the current thread has allocated so far, to be passed to {@link #stop(long, long)}.
+         *
+         * @return the allocated bytes, or {@link #NO_ALLOCATION} if allocation is not tracked
+         */
+        public long startAllocation() {
+            return allocatedBytes();
+        }
+
+        /**
+         * Stops a span, recording its duration.
+         *
+         * @param start the start time returned by {@link #start()}
+         *
+         * @return the duration of the span in nanoseconds
+         */
+        public long stop(long start) {
+            long nanos = System.nanoTime() - start;
+            record(nanos, 0);
+            return nanos;
+        }
+
+        /**
+         * Stops a span, recording its duration and the bytes its thread allocated.
+         *
+         * @param start the start time returned by {@link #start()}
+         * @param startBytes the allocated bytes returned by {@link #startAllocation()} on the same thread
+         *
+         * @return the duration of the span in nanoseconds
+         */
+        public long stop(long start, long startBytes) {
+            long nanos = System.nanoTime() - start;
+            record(nanos, startBytes == NO_ALLOCATION ? 0 : allocatedBytes() - startBytes);
+            return nanos;
+        }
+
+        /**
+         * Records a span measured elsewhere.
+         *
+         * @param nanos the duration of the span in nanoseconds
+         * @param bytes the bytes allocated during the span
+         */
+        public void record(long nanos, long bytes) {
+            counts.getAndIncrement(bucket(nanos));
+            totalNanos.add(nanos);
+            if (bytes > 0) {
+                allocatedBytes.add(bytes);
+            }
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        /**
+         * Copies the histogram of the stage, optionally resetting it.
+         *
+         * @param reset whether to reset the histogram
+         *
+         * @return the snapshot
+         */
+        private Snapshot snapshot(boolean reset) {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+                total += copy[i];
+            }
+            long nanos = reset ? totalNanos.sumThenReset() : totalNanos.sum();
+            long bytes = reset ? allocatedBytes.sumThenReset() : allocatedBytes.sum();
+            long max = reset ? maxNanos.getAndSet(0) : maxNanos.get();
+
+            // each percentile is the highest value of the bucket it falls in, never above the maximum
+            long[] percentiles = new long[PERCENTILES.length];
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                long rank = (long) Math.ceil(PERCENTILES[p] * total);
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += copy[i];
+                    if (seen >= rank && seen > 0) {
+                        percentiles[p] = Math.min(highestValue(i), max);
+                        break;
+                    }
+                }
+            }
+            return new Snapshot(name, total, total == 0 ? 0 : nanos / total, percentiles[0], percentiles[1],
+                    percentiles[2], percentiles[3], max, bytes);
+        }
+    }
+
+    /**
+     * The latency distribution and allocation of one stage over a period.
+     */
+    public static final class Snapshot {
+        public final String name;         // name of the stage
+        public final long count;          // number of spans
+        public final long meanNanos;      // mean duration
+        public final long p50Nanos;       // median duration
+        public final long p90Nanos;       // 90th percentile duration
+        public final long p99Nanos;       // 99th percentile duration
+        public final long p999Nanos;      // 99.9th percentile duration
+        public final long maxNanos;       // longest duration
+        public final long allocatedBytes; // bytes allocated by all spans, 0 if allocation is not tracked
+
+        Snapshot(String name, long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos,
+                 long maxNanos, long allocatedBytes) {
+            this.name = name;
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{count=%d, mean=%.3f ms, p50=%.3f ms, p90=%.3f ms, p99=%.3f ms, p999=%.3f ms, max=%.3f ms, allocated=%d B/span}",
+                    name, count, meanNanos / 1E6, p50Nanos / 1E6, p90Nanos / 1E6, p99Nanos / 1E6, p999Nanos / 1E6,
+                    maxNanos / 1E6, count == 0 ? 0 : allocatedBytes / count);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.vapor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Dense disparity from a rectified stereo pair by block matching.
+ *
+ * The matching cost is the sum of absolute differences over a square window, aggregated with a sliding box filter:
+ * a running vertical sum per column and disparity is updated by one row entering and one row leaving the window, and
+ * the horizontal sum is slid along the row in the same way. The cost of each pixel is therefore constant in the
+ * window size. Rows are split into bands that are matched in parallel on a fork-join pool, each with its own running
+ * sums, which are kept from one call to the next along with the disparity buffer.
+ *
+ * A matcher is not thread-safe: it must compute one disparity map at a time.
+ */
+public class BlockMatching {
+    /** The disparity value marking a pixel with no valid match. */
+    public static final short INVALID = -1;
+
+    /** The number of bands per thread of the pool, to balance the work between threads. */
+    private static final int BANDS_PER_PROCESSOR = 4;
+
+    /** The largest allowed difference between the left and right disparities of a consistent match. */
+    private static final int LEFT_RIGHT_TOLERANCE = 1;
+
+    /* The pool that bands are matched on. */
+    private final ForkJoinPool pool;
+
+    /* The number of disparities searched, from 0 to maxDisparity - 1. */
+    private final int maxDisparity;
+
+    /* The radius of the square matching window. */
+    private final int radius;
+
+    /* Whether matches are checked for left-right consistency. */
+    private final boolean leftRightCheck;
+
+    /* The direction in which matches move from the left image to the right image, 1 towards smaller columns. */
+    private final int direction;
+
+    /* The depth of each integer disparity, in the units of the stereo baseline. */
+    private final float[] depthTable;
+
+    /* The disparity buffer, reused while the image size stays the same. */
+    private short[] disparity;
+
+    /* The vertical window sums and window costs of every band, indexed [band][disparity * width + column], and the
+     * best disparity of every column, reused while the image width and the number of bands stay the same. */
+    private int[][] columns = new int[0][];
+    private int[][] costs = new int[0][];
+    private int[][] best = new int[0][];
+
+    /**
+     * Constructs a block matcher for the rectified pair of a stereo camera system.
+     *
+     * @param pool the pool that bands of rows are matched on
+     * @param cameras the stereo camera system, whose rectification defines the focal length and baseline
+     * @param maxDisparity the number of disparities to search
+     * @param windowSize the odd side length of the square matching window
+     * @param leftRightCheck whether to discard matches that are not consistent from right to left
+     */
+    public BlockMatching(ForkJoinPool pool, Stereo cameras, int maxDisparity, int windowSize, boolean leftRightCheck) {
+        if (maxDisparity < 1 || maxDisparity > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("The number of disparities must be between 1 and " + Short.MAX_VALUE + ".");
+        }
+        if (windowSize < 1 || windowSize % 2 == 0) {
+            throw new IllegalArgumentException("The matching window size must be a positive odd number.");
+        }
+        this.pool = pool;
+        this.maxDisparity = maxDisparity;
+        this.radius = windowSize / 2;
+        this.leftRightCheck = leftRightCheck;
+
+        // precompute the depth of every disparity, Z = f * B / d
+        Rectification rectification = cameras.getRectification();
+        double baseline = rectification.getBaseline();
+        double focal = rectification.getIntrinsics()[0];
+        this.direction = baseline >= 0 ? 1 : -1;
+        this.depthTable = new float[maxDisparity];
+        for (int d = 1; d < maxDisparity; d++) {
+            depthTable[d] = (float) (focal * Math.abs(baseline) / d);
+        }
+    }
+
+    /**
+     * Computes the disparity of every pixel of the left image of a rectified pair.
+     *
+     * @param left the rectified left grayscale image, indexed [row][column]
+     * @param right the rectified right grayscale image of the same size, indexed [row][column]
+     *
+     * @return the row-major disparity buffer, with {@link #INVALID} where there is no match. The buffer is reused by
+     *         the next call with the same image size.
+     */
+    public short[] compute(int[][] left, int[][] right) {
+        int height = left.length;
+        int width = left[0].length;
+        if (right.length != height || right[0].length != width) {
+            throw new IllegalArgumentException("Stereo images must have the same size.");
+        }
+        if (disparity == null || disparity.length != width * height) {
+            disparity = new short[width * height];
+        }
+        Arrays.fill(disparity, INVALID);
+
+        // split the rows whose windows fit inside the image into bands
+        int first = radius;
+        int last = height - radius;
+        if (last <= first) {
+            return disparity;
+        }
+        int bands = Math.min(last - first, pool.getParallelism() * BANDS_PER_PROCESSOR);
+        int rows = last - first;
+        ensureScratch(bands, width);
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ArrayList<RecursiveAction> actions = new ArrayList<>(bands);
+                for (int i = 0; i < bands; i++) {
+                    int band = i;
+                    actions.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            int start = first + (int) ((long) rows * band / bands);
+                            int end = first + (int) ((long) rows * (band + 1) / bands);
+                            matchBand(left, right, start, end, band);
+                        }
+                    });
+                }
+                invokeAll(actions);
+            }
+        });
+
+        return disparity;
+    }
+
+    /**
+     * Allocates the scratch buffers of the bands, unless those of the last call fit.
+     *
+     * @param bands the number of bands
+     * @param width the image width
+     */
+    private void ensureScratch(int bands, int width) {
+        if (columns.length == bands && best.length > 0 && best[0].length == width) {
+            return;
+        }
+        columns = new int[bands][maxDisparity * width];
+        costs = new int[bands][maxDisparity * width];
+        best = new int[bands][width];
+    }
+
+    /**
+     * Matches a band of rows, maintaining the vertical window sums incrementally from one row to the next.
+     *
+     * @param left the rectified left grayscale image
+     * @param right the rectified right grayscale image
+     * @param start the first row of the band
+     * @param end the row after the last row of the band
+     * @param band the index of the band, selecting its scratch buffers
+     */
+    private void matchBand(int[][] left, int[][] right, int start, int end, int band) {
+        int width = left[0].length;
+        int[] columns = this.columns[band];
+        int[] costs = this.costs[band];
+        int[] best = this.best[band];
+        Arrays.fill(columns, 0);
+
+        // sum the absolute differences over the window rows of the first row of the band
+        for (int y = start - radius; y <= start + radius; y++) {
+            accumulateRow(left[y], right[y], columns, 1);
+        }
+
+        for (int y = start; y < end; y++) {
+            // slide the window along the row for every disparity
+            for (int d = 0; d < maxDisparity; d++) {
+                int offset = d * width;
+                int sum = 0;
+                for (int x = 0; x < 2 * radius; x++) {
+                    sum += columns[offset + x];
+                }
+                for (int x = radius; x < width - radius; x++) {
+                    sum += columns[offset + x + radius];
+                    costs[offset + x] = sum;
+                    sum -= columns[offset + x - radius];
+                }
+            }
+
+            // pick the disparity with the lowest cost at each pixel
+            int rowOffset = y * width;
+            for (int x = radius; x < width - radius; x++) {
+                int limit = Math.min(maxDisparity - 1, direction > 0 ? x - radius : width - 1 - radius - x);
+                int minCost = Integer.MAX_VALUE;
+                int minDisparity = INVALID;
+                for (int d = 0; d <= limit; d++) {
+                    int cost = costs[d * width + x];
+                    if (cost < minCost) {
+                        minCost = cost;
+                        minDisparity = d;
+                    }
+                }
+                best[x] = minDisparity;
+            }
+
+            // keep only matches whose best left match from the right image points back to the same pixel
+            if (leftRightCheck) {
+                for (int x = radius; x < width - radius; x++) {
+                    int d = best[x];
+                    if (d == INVALID) continue;
+                    int xr = x - direction * d;
+                    int reverse = bestFromRight(costs, width, xr);
+                    if (Math.abs(reverse - d) > LEFT_RIGHT_TOLERANCE) {
+                        best[x] = INVALID;
+                    }
+                }
+            }
+            for (int x = radius; x < width - radius; x++) {
+                disparity[rowOffset + x] = (short) best[x];
+            }
+
+            // move the window down by one row
+            if (y + 1 < end) {
+                accumulateRow(left[y - radius], right[y - radius], columns, -1);
+                accumulateRow(left[y + radius + 1], right[y + radius + 1], columns, 1);
+            }
+        }
+    }
+
+    /**
+     * Finds the disparity with the lowest cost for a pixel of the right image, reusing the left cost row.
+     *
+     * @param costs the window costs of the current row, indexed [disparity * width + left column]
+     * @param width the image width
+     * @param xr the column of the pixel in the right image
+     *
+     * @return the disparity with the lowest cost, or {@link #INVALID} if none is in range
+     */
+    private int bestFromRight(int[] costs, int width, int xr) {
+        int minCost = Integer.MAX_VALUE;
+        int minDisparity = INVALID;
+        for (int d = 0; d < maxDisparity; d++) {
+            int x = xr + direction * d;
+            if (x < radius || x >= width - radius) break;
+            int cost = costs[d * width + x];
+            if (cost < minCost) {
+                minCost = cost;
+                minDisparity = d;
+            }
+        }
+        return minDisparity;
+    }
+
+    /**
+     * Adds or removes the absolute differences of one image row to the vertical window sums of every disparity.
+     *
+     * @param left the row of the left image
+     * @param right the row of the right image
+     * @param columns the vertical window sums, indexed [disparity * width + column]
+     * @param sign 1 to add the row, -1 to remove it
+     */
+    private void accumulateRow(int[] left, int[] right, int[] columns, int sign) {
+        int width = left.length;
+        for (int d = 0; d < maxDisparity; d++) {
+            int offset = d * width;
+            int from = direction > 0 ? d : 0;
+            int to = direction > 0 ? width : width - d;
+            int shift = -direction * d;
+            for (int x = from; x < to; x++) {
+                columns[offset + x] += sign * Math.abs(left[x] - right[x + shift]);
+            }
+        }
+    }
+
+    /**
+     * Converts a disparity buffer to depth with a precomputed lookup table.
+     *
+     * @param disparity the row-major disparity buffer returned by {@link #compute}
+     * @param depth the row-major depth output, in the units of the stereo baseline, with 0 where there is no depth
+     */
+    public void toDepth(short[] disparity, float[] depth) {
+        for (int i = 0; i < disparity.length; i++) {
+            int d = disparity[i];
+            depth[i] = d > 0 ? depthTable[d] : 0;
+        }
+    }
+
+    /**
+     * Returns the depth of a single disparity.
+     *
+     * @param disparity the disparity in pixels
+     *
+     * @return the depth in the units of the stereo baseline, or 0 if the disparity has no depth
+     */
+    public float depth(int disparity) {
+        return disparity > 0 && disparity < maxDisparity ? depthTable[disparity] : 0;
+    }
+}
@@ -0,0 +1,863 @@
+package org.vapor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sliding-window bundle adjustment over the last keyframes and the landmarks they observe, run on a background
+ * thread.
+ *
+ * Keyframes are submitted as they are promoted, with the landmarks triangulated from their stereo pair and the
+ * landmarks of the previous keyframe they tracked. Whenever new keyframes arrive, the poses of the window and the
+ * landmarks seen at least twice in it are jointly refined by Levenberg-Marquardt, minimizing the Cauchy-weighted
+ * reprojection error in pixels plus a prior holding every landmark to its stereo depth in its own keyframe, which
+ * fixes the scale. The oldest keyframe of the window is held fixed to fix the gauge.
+ *
+ * The normal equations are solved with the Schur complement: the 3x3 block of every landmark is inverted on its own,
+ * which reduces the system to the 6(K-1) x 6(K-1) camera system, solved densely by Cholesky decomposition, and the
+ * landmark updates are recovered by back-substitution. The cost of a solve is therefore linear in the number of
+ * observations and cubic only in the window size, which bounds it.
+ *
+ * The corrected pose of the newest keyframe is published for the odometry to pick up, see {@link #poll}. A keyframe
+ * anchored to landmarks outside the window, such as a relocalized one, restarts the window from itself, since the
+ * keyframes before it would pull it back to where they drifted to.
+ */
+public class BundleAdjustment implements AutoCloseable {
+    /** The default number of keyframes in the window. */
+    public static final int DEFAULT_WINDOW = 5;
+
+    /** The maximum number of Levenberg-Marquardt iterations of a solve. */
+    private static final int MAX_ITERATIONS = 10;
+
+    /** The scale of the Cauchy loss in pixels. */
+    private static final double CAUCHY_SCALE = 1.0;
+
+    /** The standard deviation in pixels of the stereo disparity, from which the depth prior is weighted. */
+    private static final double DISPARITY_NOISE = 0.5;
+
+    /** The initial damping factor, relative to the diagonal of the normal equations. */
+    private static final double INITIAL_LAMBDA = 1E-3;
+
+    /** The factor by which the damping grows after a rejected step and shrinks after an accepted one. */
+    private static final double LAMBDA_FACTOR = 10;
+
+    /** The damping beyond which no step can make progress. */
+    private static final double MAX_LAMBDA = 1E10;
+
+    /** The relative decrease in cost below which a solve has converged. */
+    private static final double COST_TOLERANCE = 1E-8;
+
+    /* The focal length, used to express residuals in pixels, and the stereo baseline. */
+    private final double focal;
+    private final double baseline;
+
+    /* The number of keyframes in the window. */
+    private final int window;
+
+    /* The background thread, the keyframes waiting for it, and whether it has been scheduled to take them. */
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Keyframe> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /* The latest correction not yet picked up. */
+    private final AtomicReference<Correction> correction = new AtomicReference<>();
+
+    /* The number of solves run. */
+    private volatile long solves;
+
+    /* The keyframes of the window from oldest to newest, and their landmarks, used by the background thread only. */
+    private final ArrayDeque<Node> nodes = new ArrayDeque<>();
+    private final HashMap<Long, Landmark> landmarks = new HashMap<>();
+
+    /**
+     * Constructs a bundle adjustment for a stereo camera system.
+     *
+     * @param cameras the stereo camera system
+     * @param window the number of keyframes in the window, at least 2
+     */
+    public BundleAdjustment(Stereo cameras, int window) {
+        if (window < 2) {
+            throw new IllegalArgumentException("The bundle adjustment window must hold at least 2 keyframes.");
+        }
+        this.focal = cameras.getIntrinsics()[0];
+        this.baseline = Math.abs(cameras.getRectification().getBaseline());
+        this.window = window;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vapor-bundle-adjustment");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a new keyframe, to be added to the window on the background thread. Returns immediately.
+     *
+     * @param keyframe the keyframe
+     */
+    public void submit(Keyframe keyframe) {
+        inbox.add(keyframe);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Takes the latest correction, if there is one that has not been taken yet.
+     *
+     * @return the correction, or null
+     */
+    public Correction poll() {
+        return correction.getAndSet(null);
+    }
+
+    /**
+     * Returns the number of solves run so far.
+     *
+     * @return the number of solves
+     */
+    public long getSolves() {
+        return solves;
+    }
+
+    /**
+     * Stops the background thread, dropping the keyframes still waiting for it.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Adds every waiting keyframe to the window and solves it, until no keyframe is waiting. Keyframes arriving
+     * during a solve are added together, so a slow solve never builds up a backlog.
+     */
+    private void drain() {
+        do {
+            try {
+                boolean added = false;
+                Keyframe keyframe;
+                while ((keyframe = inbox.poll()) != null) {
+                    add(keyframe);
+                    added = true;
+                }
+                if (added && solve()) {
+                    Node newest = nodes.getLast();
+                    double[] rotation = new double[9];
+                    double[] position = new double[3];
+                    transpose(newest.rotation, rotation);
+                    Rotation.apply(rotation, newest.translation, position);
+                    for (int i = 0; i < 3; i++) {
+                        position[i] = -position[i];
+                    }
+                    correction.set(new Correction(newest.id, rotation, position));
+                }
+            } finally {
+                scheduled.set(false);
+            }
+        } while (!inbox.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Adds a keyframe to the window, dropping the oldest keyframe and the landmarks no longer observed if the window
+     * is full.
+     *
+     * @param keyframe the keyframe
+     */
+    private void add(Keyframe keyframe) {
+        // an anchored keyframe starts a new window, and becomes its fixed oldest keyframe
+        if (keyframe.anchored) {
+            nodes.clear();
+            landmarks.clear();
+        }
+
+        Node node = new Node(keyframe.id, keyframe.landmarkIds.length + keyframe.trackedIds.length);
+        transpose(keyframe.rotation, node.rotation);
+        Rotation.apply(node.rotation, keyframe.position, node.translation);
+        for (int i = 0; i < 3; i++) {
+            node.translation[i] = -node.translation[i];
+        }
+
+        // the keyframe's own landmarks, moved into the world frame
+        double[] point = new double[3];
+        for (int i = 0; i < keyframe.landmarkIds.length; i++) {
+            System.arraycopy(keyframe.landmarks, 3 * i, point, 0, 3);
+            Landmark landmark = new Landmark(node, point[2]);
+            Rotation.apply(keyframe.rotation, point, landmark.position);
+            for (int j = 0; j < 3; j++) {
+                landmark.position[j] += keyframe.position[j];
+            }
+            landmarks.put(keyframe.landmarkIds[i], landmark);
+            node.observe(keyframe.landmarkObservations[2 * i], keyframe.landmarkObservations[2 * i + 1], landmark);
+        }
+
+        // the landmarks of earlier keyframes it tracked, if they are still in the window
+        for (int i = 0; i < keyframe.trackedIds.length; i++) {
+            Landmark landmark = landmarks.get(keyframe.trackedIds[i]);
+            if (landmark != null) {
+                node.observe(keyframe.trackedObservations[2 * i], keyframe.trackedObservations[2 * i + 1], landmark);
+            }
+        }
+        nodes.addLast(node);
+
+        // slide the window
+        while (nodes.size() > window) {
+            Node old = nodes.removeFirst();
+            for (int i = 0; i < old.count; i++) {
+                old.landmarks[i].observations--;
+            }
+            for (Landmark landmark : landmarks.values()) {
+                if (landmark.host == old) {
+                    landmark.host = null;
+                }
+            }
+        }
+        landmarks.values().removeIf(landmark -> landmark.observations == 0);
+    }
+
+    /**
+     * Jointly refines the poses of the window, but the oldest, and the landmarks seen at least twice in it.
+     *
+     * @return true if the window was refined
+     */
+    private boolean solve() {
+        int n = nodes.size();
+        if (n < 2) {
+            return false;
+        }
+        Node[] cameras = nodes.toArray(new Node[0]);
+
+        // index the landmarks constrained by at least two observations
+        ArrayList<Landmark> active = new ArrayList<>();
+        for (Landmark landmark : landmarks.values()) {
+            landmark.index = landmark.observations >= 2 ? active.size() : -1;
+            if (landmark.index >= 0) {
+                active.add(landmark);
+            }
+        }
+        if (active.isEmpty()) {
+            return false;
+        }
+        Problem problem = new Problem(cameras, active);
+
+        // refine the state with an adaptive damping
+        double lambda = INITIAL_LAMBDA;
+        double cost = problem.linearize();
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean accepted = false;
+            while (lambda < MAX_LAMBDA) {
+                if (problem.step(lambda)) {
+                    double candidate = problem.cost(problem.candidateRotations, problem.candidateTranslations, problem.candidatePoints);
+                    if (candidate < cost) {
+                        problem.accept();
+                        lambda = Math.max(lambda / LAMBDA_FACTOR, 1E-12);
+                        boolean converged = cost - candidate < COST_TOLERANCE * cost;
+                        cost = problem.linearize();
+                        accepted = !converged;
+                        break;
+                    }
+                }
+                lambda *= LAMBDA_FACTOR;
+            }
+            if (!accepted) {
+                break;
+            }
+        }
+
+        // write the refined state back into the window
+        for (int c = 1; c < n; c++) {
+            System.arraycopy(problem.rotations, 9 * c, cameras[c].rotation, 0, 9);
+            System.arraycopy(problem.translations, 3 * c, cameras[c].translation, 0, 3);
+        }
+        for (Landmark landmark : active) {
+            System.arraycopy(problem.points, 3 * landmark.index, landmark.position, 0, 3);
+        }
+        solves++;
+        return true;
+    }
+
+    /**
+     * The normal equations of one solve, over flat copies of the window state.
+     */
+    private final class Problem {
+        /* The window, and the number of cameras that are refined, all but the oldest. */
+        final Node[] cameras;
+        final ArrayList<Landmark> active;
+        final int free;
+
+        /* The current and candidate state, X_c = R X_w + t for every camera, and the landmark positions. */
+        final double[] rotations, translations, points;
+        final double[] candidateRotations, candidateTranslations, candidatePoints;
+
+        /* The camera blocks U of the normal equations and their gradient. */
+        final double[] U, gc;
+
+        /* The landmark blocks V of the normal equations and their gradient. */
+        final double[] V, gp;
+
+        /* The camera-landmark block W of every term, 6x3 row-major, with its camera and landmark. */
+        final int terms;
+        final double[] W;
+        final int[] termCamera, termPoint;
+
+        /* The terms of every landmark, grouped by landmark. */
+        final int[] pointStart, pointTerms;
+
+        /* The Schur complement, its right-hand side, the camera and landmark steps, and the damped V inverses. */
+        final double[] S, rhs, deltaCameras, deltaPoints, Vinv;
+
+        Problem(Node[] cameras, ArrayList<Landmark> active) {
+            this.cameras = cameras;
+            this.active = active;
+            this.free = cameras.length - 1;
+            int n = cameras.length;
+            int p = active.size();
+
+            rotations = new double[9 * n];
+            translations = new double[3 * n];
+            points = new double[3 * p];
+            for (int c = 0; c < n; c++) {
+                System.arraycopy(cameras[c].rotation, 0, rotations, 9 * c, 9);
+                System.arraycopy(cameras[c].translation, 0, translations, 3 * c, 3);
+            }
+            for (Landmark landmark : active) {
+                System.arraycopy(landmark.position, 0, points, 3 * landmark.index, 3);
+            }
+            candidateRotations = rotations.clone();
+            candidateTranslations = translations.clone();
+            candidatePoints = points.clone();
+
+            // count the terms, one per observation of an active landmark and one per depth prior
+            int count = 0;
+            for (Node camera : cameras) {
+                for (int i = 0; i < camera.count; i++) {
+                    if (camera.landmarks[i].index >= 0) count++;
+                }
+            }
+            for (Landmark landmark : active) {
+                if (landmark.host != null) count++;
+            }
+            terms = count;
+            W = new double[18 * terms];
+            termCamera = new int[terms];
+            termPoint = new int[terms];
+
+            // the terms are always visited in the same order, so their cameras and landmarks can be indexed once
+            int t = 0;
+            for (int c = 0; c < n; c++) {
+                for (int i = 0; i < cameras[c].count; i++) {
+                    Landmark landmark = cameras[c].landmarks[i];
+                    if (landmark.index < 0) continue;
+                    termCamera[t] = c;
+                    termPoint[t++] = landmark.index;
+                }
+            }
+            for (Landmark landmark : active) {
+                if (landmark.host == null) continue;
+                termCamera[t] = indexOf(landmark.host);
+                termPoint[t++] = landmark.index;
+            }
+
+            // group the terms by landmark
+            pointStart = new int[p + 1];
+            for (int i = 0; i < terms; i++) {
+                pointStart[termPoint[i] + 1]++;
+            }
+            for (int i = 0; i < p; i++) {
+                pointStart[i + 1] += pointStart[i];
+            }
+            pointTerms = new int[terms];
+            int[] fill = pointStart.clone();
+            for (int i = 0; i < terms; i++) {
+                pointTerms[fill[termPoint[i]]++] = i;
+            }
+
+            U = new double[36 * free * free];
+            gc = new double[6 * free];
+            V = new double[9 * p];
+            gp = new double[3 * p];
+            S = new double[36 * free * free];
+            rhs = new double[6 * free];
+            deltaCameras = new double[6 * free];
+            deltaPoints = new double[3 * p];
+            Vinv = new double[9 * p];
+        }
+
+        /**
+         * Finds the position of a keyframe in the window.
+         */
+        private int indexOf(Node node) {
+            for (int c = 0; c < cameras.length; c++) {
+                if (cameras[c] == node) return c;
+            }
+            throw new IllegalStateException("The host keyframe of a landmark is not in the window.");
+        }
+
+        /**
+         * Accumulates the normal equations at the current state.
+         *
+         * @return the cost of the current state
+         */
+        double linearize() {
+            Arrays.fill(U, 0);
+            Arrays.fill(gc, 0);
+            Arrays.fill(V, 0);
+            Arrays.fill(gp, 0);
+            Arrays.fill(W, 0);
+
+            double c2 = CAUCHY_SCALE * CAUCHY_SCALE;
+            double cost = 0;
+            double[] ju = new double[6];
+            double[] jv = new double[6];
+            double[] jpu = new double[3];
+            double[] jpv = new double[3];
+            int t = 0;
+
+            // the reprojection terms
+            for (int c = 0; c < cameras.length; c++) {
+                Node camera = cameras[c];
+                int r0 = 9 * c;
+                int t0 = 3 * c;
+                for (int i = 0; i < camera.count; i++) {
+                    if (camera.landmarks[i].index < 0) continue;
+                    int p = termPoint[t];
+                    double X = points[3 * p], Y = points[3 * p + 1], Z = points[3 * p + 2];
+                    double xc = rotations[r0] * X + rotations[r0 + 1] * Y + rotations[r0 + 2] * Z + translations[t0];
+                    double yc = rotations[r0 + 3] * X + rotations[r0 + 4] * Y + rotations[r0 + 5] * Z + translations[t0 + 1];
+                    double zc = rotations[r0 + 6] * X + rotations[r0 + 7] * Y + rotations[r0 + 8] * Z + translations[t0 + 2];
+                    if (zc <= 0) {
+                        t++;
+                        continue;
+                    }
+                    double iz = 1 / zc;
+                    double x = xc * iz;
+                    double y = yc * iz;
+                    double ru = focal * (x - camera.observations[2 * i]);
+                    double rv = focal * (y - camera.observations[2 * i + 1]);
+                    double r2 = ru * ru + rv * rv;
+                    cost += c2 * Math.log(1 + r2 / c2);
+                    double weight = 1 / (1 + r2 / c2);
+
+                    // Jacobian with respect to the camera increment {w, v}
+                    ju[0] = -focal * x * y;       ju[1] = focal * (1 + x * x); ju[2] = -focal * y;
+                    ju[3] = focal * iz;           ju[4] = 0;                   ju[5] = -focal * x * iz;
+                    jv[0] = -focal * (1 + y * y); jv[1] = focal * x * y;       jv[2] = focal * x;
+                    jv[3] = 0;                    jv[4] = focal * iz;          jv[5] = -focal * y * iz;
+
+                    // Jacobian with respect to the landmark, the projection derivative times R
+                    double a = focal * iz;
+                    for (int k = 0; k < 3; k++) {
+                        jpu[k] = a * (rotations[r0 + k] - x * rotations[r0 + 6 + k]);
+                        jpv[k] = a * (rotations[r0 + 3 + k] - y * rotations[r0 + 6 + k]);
+                    }
+                    accumulate(t, c, p, weight, ju, jv, jpu, jpv, ru, rv, 2);
+                    t++;
+                }
+            }
+
+            // the depth priors, one residual each
+            for (Landmark landmark : active) {
+                if (landmark.host == null) continue;
+                int c = termCamera[t];
+                int p = landmark.index;
+                int r0 = 9 * c;
+                double X = points[3 * p], Y = points[3 * p + 1], Z = points[3 * p + 2];
+                double xc = rotations[r0] * X + rotations[r0 + 1] * Y + rotations[r0 + 2] * Z + translations[3 * c];
+                double yc = rotations[r0 + 3] * X + rotations[r0 + 4] * Y + rotations[r0 + 5] * Z + translations[3 * c + 1];
+                double zc = rotations[r0 + 6] * X + rotations[r0 + 7] * Y + rotations[r0 + 8] * Z + translations[3 * c + 2];
+                double sigma = depthNoise(landmark.depth);
+                double r = (zc - landmark.depth) / sigma;
+                cost += r * r;
+
+                ju[0] = yc / sigma; ju[1] = -xc / sigma; ju[2] = 0;
+                ju[3] = 0;          ju[4] = 0;           ju[5] = 1 / sigma;
+                for (int k = 0; k < 3; k++) {
+                    jpu[k] = rotations[r0 + 6 + k] / sigma;
+                }
+                accumulate(t, c, p, 1, ju, null, jpu, null, r, 0, 1);
+                t++;
+            }
+            return cost;
+        }
+
+        /**
+         * Adds a weighted term of one or two residuals to the normal equations.
+         */
+        private void accumulate(int t, int c, int p, double weight, double[] ju, double[] jv, double[] jpu, double[] jpv,
+                                double ru, double rv, int residuals) {
+            // the landmark block
+            for (int a = 0; a < 3; a++) {
+                for (int b = 0; b < 3; b++) {
+                    double value = jpu[a] * jpu[b];
+                    if (residuals == 2) value += jpv[a] * jpv[b];
+                    V[9 * p + 3 * a + b] += weight * value;
+                }
+                gp[3 * p + a] += weight * (jpu[a] * ru + (residuals == 2 ? jpv[a] * rv : 0));
+            }
+
+            // the camera and camera-landmark blocks, unless the camera is held fixed
+            if (c == 0) {
+                return;
+            }
+            int block = c - 1;
+            int stride = 6 * free;
+            for (int a = 0; a < 6; a++) {
+                double wa = weight * ju[a];
+                double wb = residuals == 2 ? weight * jv[a] : 0;
+                for (int b = 0; b < 6; b++) {
+                    U[(6 * block + a) * stride + 6 * block + b] += wa * ju[b] + (residuals == 2 ? wb * jv[b] : 0);
+                }
+                for (int b = 0; b < 3; b++) {
+                    W[18 * t + 3 * a + b] = wa * jpu[b] + (residuals == 2 ? wb * jpv[b] : 0);
+                }
+                gc[6 * block + a] += wa * ru + wb * rv;
+            }
+        }
+
+        /**
+         * Solves the damped normal equations by the Schur complement, into the candidate state.
+         *
+         * @param lambda the damping factor
+         *
+         * @return false if the reduced camera system is not positive definite
+         */
+        boolean step(double lambda) {
+            int stride = 6 * free;
+            System.arraycopy(U, 0, S, 0, U.length);
+            for (int i = 0; i < stride; i++) {
+                S[i * stride + i] += lambda * Math.max(U[i * stride + i], 1E-12);
+                rhs[i] = -gc[i];
+            }
+
+            // eliminate every landmark, S -= W V^-1 W^T and rhs += W V^-1 gp
+            double[] damped = new double[9];
+            double[] Y = new double[18];
+            for (int p = 0; p < active.size(); p++) {
+                System.arraycopy(V, 9 * p, damped, 0, 9);
+                for (int i = 0; i < 3; i++) {
+                    damped[4 * i] += lambda * Math.max(V[9 * p + 4 * i], 1E-12);
+                }
+                invertSymmetric(damped, Vinv, 9 * p);
+
+                for (int i = pointStart[p]; i < pointStart[p + 1]; i++) {
+                    int a = pointTerms[i];
+                    int ca = termCamera[a] - 1;
+                    if (ca < 0) continue;
+
+                    // Y = W_a V^-1
+                    for (int r = 0; r < 6; r++) {
+                        for (int k = 0; k < 3; k++) {
+                            Y[3 * r + k] = W[18 * a + 3 * r] * Vinv[9 * p + k]
+                                    + W[18 * a + 3 * r + 1] * Vinv[9 * p + 3 + k]
+                                    + W[18 * a + 3 * r + 2] * Vinv[9 * p + 6 + k];
+                        }
+                        rhs[6 * ca + r] += Y[3 * r] * gp[3 * p] + Y[3 * r + 1] * gp[3 * p + 1] + Y[3 * r + 2] * gp[3 * p + 2];
+                    }
+                    for (int j = pointStart[p]; j < pointStart[p + 1]; j++) {
+                        int b = pointTerms[j];
+                        int cb = termCamera[b] - 1;
+                        if (cb < 0) continue;
+                        for (int r = 0; r < 6; r++) {
+                            for (int s = 0; s < 6; s++) {
+                                S[(6 * ca + r) * stride + 6 * cb + s] -= Y[3 * r] * W[18 * b + 3 * s]
+                                        + Y[3 * r + 1] * W[18 * b + 3 * s + 1]
+                                        + Y[3 * r + 2] * W[18 * b + 3 * s + 2];
+                            }
+                        }
+                    }
+                }
+            }
+
+            // solve the reduced camera system
+            System.arraycopy(rhs, 0, deltaCameras, 0, stride);
+            if (!solveCholesky(S, stride, deltaCameras)) {
+                return false;
+            }
+
+            // back-substitute the landmark steps, dp = V^-1 (-gp - W^T dc)
+            double[] b = new double[3];
+            for (int p = 0; p < active.size(); p++) {
+                for (int k = 0; k < 3; k++) {
+                    b[k] = -gp[3 * p + k];
+                }
+                for (int i = pointStart[p]; i < pointStart[p + 1]; i++) {
+                    int a = pointTerms[i];
+                    int ca = termCamera[a] - 1;
+                    if (ca < 0) continue;
+                    for (int k = 0; k < 3; k++) {
+                        for (int r = 0; r < 6; r++) {
+                            b[k] -= W[18 * a + 3 * r + k] * deltaCameras[6 * ca + r];
+                        }
+                    }
+                }
+                for (int k = 0; k < 3; k++) {
+                    deltaPoints[3 * p + k] = Vinv[9 * p + 3 * k] * b[0] + Vinv[9 * p + 3 * k + 1] * b[1] + Vinv[9 * p + 3 * k + 2] * b[2];
+                }
+            }
+
+            // apply the steps to the candidate state
+            double[] increment = new double[9];
+            double[] rotation = new double[9];
+            double[] omega = new double[3];
+            double[] updated = new double[9];
+            for (int c = 1; c < cameras.length; c++) {
+                int d = 6 * (c - 1);
+                System.arraycopy(deltaCameras, d, omega, 0, 3);
+                Rotation.toMatrix(omega, increment);
+                System.arraycopy(rotations, 9 * c, rotation, 0, 9);
+                Rotation.multiply(increment, rotation, updated);
+                System.arraycopy(updated, 0, candidateRotations, 9 * c, 9);
+                for (int i = 0; i < 3; i++) {
+                    candidateTranslations[3 * c + i] = increment[3 * i] * translations[3 * c]
+                            + increment[3 * i + 1] * translations[3 * c + 1]
+                            + increment[3 * i + 2] * translations[3 * c + 2] + deltaCameras[d + 3 + i];
+                }
+            }
+            for (int i = 0; i < points.length; i++) {
+                candidatePoints[i] = points[i] + deltaPoints[i];
+            }
+            return true;
+        }
+
+        /**
+         * Makes the candidate state the current state.
+         */
+        void accept() {
+            System.arraycopy(candidateRotations, 0, rotations, 0, rotations.length);
+            System.arraycopy(candidateTranslations, 0, translations, 0, translations.length);
+            System.arraycopy(candidatePoints, 0, points, 0, points.length);
+        }
+
+        /**
+         * Computes the cost of a state.
+         *
+         * @return the Cauchy reprojection cost plus the squared depth prior residuals
+         */
+        double cost(double[] rotations, double[] translations, double[] points) {
+            double c2 = CAUCHY_SCALE * CAUCHY_SCALE;
+            double cost = 0;
+            for (int c = 0; c < cameras.length; c++) {
+                Node camera = cameras[c];
+                int r0 = 9 * c;
+                int t0 = 3 * c;
+                for (int i = 0; i < camera.count; i++) {
+                    int p = camera.landmarks[i].index;
+                    if (p < 0) continue;
+                    double X = points[3 * p], Y = points[3 * p + 1], Z = points[3 * p + 2];
+                    double zc = rotations[r0 + 6] * X + rotations[r0 + 7] * Y + rotations[r0 + 8] * Z + translations[t0 + 2];
+                    if (zc <= 0) continue;
+                    double xc = rotations[r0] * X + rotations[r0 + 1] * Y + rotations[r0 + 2] * Z + translations[t0];
+                    double yc = rotations[r0 + 3] * X + rotations[r0 + 4] * Y + rotations[r0 + 5] * Z + translations[t0 + 1];
+                    double ru = focal * (xc / zc - camera.observations[2 * i]);
+                    double rv = focal * (yc / zc - camera.observations[2 * i + 1]);
+                    cost += c2 * Math.log(1 + (ru * ru + rv * rv) / c2);
+                }
+            }
+            for (Landmark landmark : active) {
+                if (landmark.host == null) continue;
+                int c = indexOf(landmark.host);
+                int p = landmark.index;
+                int r0 = 9 * c;
+                double zc = rotations[r0 + 6] * points[3 * p] + rotations[r0 + 7] * points[3 * p + 1]
+                        + rotations[r0 + 8] * points[3 * p + 2] + translations[3 * c + 2];
+                double r = (zc - landmark.depth) / depthNoise(landmark.depth);
+                cost += r * r;
+            }
+            return cost;
+        }
+    }
+
+    /**
+     * Returns the standard deviation of a stereo depth, sigma_Z = Z^2 / (f * B) * sigma_d.
+     *
+     * @param depth the depth
+     *
+     * @return the standard deviation of the depth
+     */
+    private double depthNoise(double depth) {
+        return Math.max(depth * depth / (focal * baseline) * DISPARITY_NOISE, 1E-9);
+    }
+
+    /**
+     * Inverts a symmetric 3x3 matrix by its cofactors, leaving zeros if it is singular.
+     *
+     * @param m the row-major matrix
+     * @param out the output array
+     * @param offset the position of the inverse in the output array
+     */
+    private static void invertSymmetric(double[] m, double[] out, int offset) {
+        double c00 = m[4] * m[8] - m[5] * m[7];
+        double c01 = m[5] * m[6] - m[3] * m[8];
+        double c02 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+        if (!(Math.abs(det) > 1E-300)) {
+            Arrays.fill(out, offset, offset + 9, 0);
+            return;
+        }
+        double inv = 1 / det;
+        out[offset] = c00 * inv;
+        out[offset + 1] = (m[2] * m[7] - m[1] * m[8]) * inv;
+        out[offset + 2] = (m[1] * m[5] - m[2] * m[4]) * inv;
+        out[offset + 3] = c01 * inv;
+        out[offset + 4] = (m[0] * m[8] - m[2] * m[6]) * inv;
+        out[offset + 5] = (m[2] * m[3] - m[0] * m[5]) * inv;
+        out[offset + 6] = c02 * inv;
+        out[offset + 7] = (m[1] * m[6] - m[0] * m[7]) * inv;
+        out[offset + 8] = (m[0] * m[4] - m[1] * m[3]) * inv;
+    }
+
+    /**
+     * Solves a symmetric positive definite system in place by Cholesky decomposition.
+     *
+     * @param A the row-major n x n matrix, overwritten by its factor
+     * @param n the size of the system
+     * @param b the right-hand side, overwritten by the solution
+     *
+     * @return false if the matrix is not positive definite
+     */
+    private static boolean solveCholesky(double[] A, int n, double[] b) {
+        for (int j = 0; j < n; j++) {
+            double sum = A[j * n + j];
+            for (int k = 0; k < j; k++) {
+                sum -= A[j * n + k] * A[j * n + k];
+            }
+            if (!(sum > 0)) {
+                return false;
+            }
+            double diagonal = Math.sqrt(sum);
+            A[j * n + j] = diagonal;
+            for (int i = j + 1; i < n; i++) {
+                double value = A[i * n + j];
+                for (int k = 0; k < j; k++) {
+                    value -= A[i * n + k] * A[j * n + k];
+                }
+                A[i * n + j] = value / diagonal;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            double value = b[i];
+            for (int k = 0; k < i; k++) {
+                value -= A[i * n + k] * b[k];
+            }
+            b[i] = value / A[i * n + i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double value = b[i];
+            for (int k = i + 1; k < n; k++) {
+                value -= A[k * n + i] * b[k];
+            }
+            b[i] = value / A[i * n + i];
+        }
+        return true;
+    }
+
+    /**
+     * Transposes a 3x3 matrix.
+     */
+    private static void transpose(double[] m, double[] out) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[3 * j + i] = m[3 * i + j];
+            }
+        }
+    }
+
+    /**
+     * A keyframe submitted to the bundle adjustment. Observations are undistorted normalized image coordinates in the
+     * keyframe's left camera.
+     */
+    public static final class Keyframe {
+        final long id;                       // identifier of the keyframe
+        final double[] rotation;             // row-major 3x3 rotation from the camera to the world frame
+        final double[] position;             // 3x1 position of the camera in the world frame
+        final long[] landmarkIds;            // identifiers of the landmarks triangulated in this keyframe
+        final double[] landmarks;            // their positions in the camera frame, interleaved {x, y, z}
+        final double[] landmarkObservations; // their observations in this keyframe, interleaved {x, y}
+        final long[] trackedIds;             // identifiers of the earlier landmarks tracked into this keyframe
+        final double[] trackedObservations;  // their observations in this keyframe, interleaved {x, y}
+        final boolean anchored;              // whether the pose is fixed by landmarks outside the window
+
+        public Keyframe(long id, double[] rotation, double[] position, long[] landmarkIds, double[] landmarks,
+                        double[] landmarkObservations, long[] trackedIds, double[] trackedObservations) {
+            this(id, rotation, position, landmarkIds, landmarks, landmarkObservations, trackedIds, trackedObservations, false);
+        }
+
+        public Keyframe(long id, double[] rotation, double[] position, long[] landmarkIds, double[] landmarks,
+                        double[] landmarkObservations, long[] trackedIds, double[] trackedObservations,
+                        boolean anchored) {
+            this.id = id;
+            this.rotation = rotation;
+            this.position = position;
+            this.landmarkIds = landmarkIds;
+            this.landmarks = landmarks;
+            this.landmarkObservations = landmarkObservations;
+            this.trackedIds = trackedIds;
+            this.trackedObservations = trackedObservations;
+            this.anchored = anchored;
+        }
+    }
+
+    /**
+     * The refined pose of a keyframe.
+     */
+    public static final class Correction {
+        public final long keyframe;      // identifier of the keyframe
+        public final double[] rotation;  // row-major 3x3 rotation from the camera to the world frame
+        public final double[] position;  // 3x1 position of the camera in the world frame
+
+        Correction(long keyframe, double[] rotation, double[] position) {
+            this.keyframe = keyframe;
+            this.rotation = rotation;
+            this.position = position;
+        }
+    }
+
+    /**
+     * A keyframe in the window, with its pose X_c = rotation * X_w + translation and its observations.
+     */
+    private static final class Node {
+        final long id;
+        final double[] rotation = new double[9];
+        final double[] translation = new double[3];
+        final Landmark[] landmarks;
+        final double[] observations;
+        int count;
+
+        Node(long id, int capacity) {
+            this.id = id;
+            this.landmarks = new Landmark[capacity];
+            this.observations = new double[2 * capacity];
+        }
+
+        void observe(double x, double y, Landmark landmark) {
+            landmarks[count] = landmark;
+            observations[2 * count] = x;
+            observations[2 * count + 1] = y;
+            landmark.observations++;
+            count++;
+        }
+    }
+
+    /**
+     * A landmark in the window, with its position in the world frame and its stereo depth in the keyframe that
+     * triangulated it, while that keyframe is in the window.
+     */
+    private static final class Landmark {
+        final double[] position = new double[3];
+        final double depth;
+        Node host;
+        int observations;
+        int index;
+
+        Landmark(Node host, double depth) {
+            this.host = host;
+            this.depth = depth;
+        }
+    }
+}
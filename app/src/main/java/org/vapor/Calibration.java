@@ -0,0 +1,94 @@
+package org.vapor;
+
+import org.ejml.simple.SimpleMatrix;
+import org.opencv.core.MatOfDouble;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Reads the calibration of a stereo camera system from a properties file, such as:
+ *
+ * <pre>
+ * left.intrinsics = 1235.45723 0 586.197756  0 1159.97889 487.408735  0 0 1
+ * left.distortion = 0.03852127 -0.2639929 0.01173549 -0.00741738 0.32940914
+ * right.intrinsics = 831.928232 0 616.3016761  0 779.51864043 467.44607183  0 0 1
+ * right.distortion = 0.05883428 -0.13611729 0.00960835 -0.00353916 0.01426129
+ * rotation = 0.19364412 -0.07078774 0.97851472  0.22308861 0.97444211 0.02634478  -0.95537083 0.21319398 0.20448692
+ * translation = -24.85136975 -1.77457249 16.61001315
+ * </pre>
+ *
+ * The intrinsics and rotation are row-major 3x3 matrices, the distortion coefficients are {k1, k2, p1, p2, k3}, and
+ * the rotation and translation map the left camera frame to the right one. Values are separated by whitespace or
+ * commas. The optional keys "width" and "height" give the image size to precompute the rectification tables for,
+ * and "reference" chooses the tracked camera, "left" by default.
+ */
+public final class Calibration {
+    private Calibration() {
+    }
+
+    /**
+     * Reads a calibration file into a stereo camera system.
+     *
+     * @param path the path of the calibration file
+     *
+     * @return the stereo camera system
+     *
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a key is missing or malformed
+     */
+    public static Stereo load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+
+        // check every key before building the matrices, which need the native library
+        double[] intrinsics1 = values(properties, "left.intrinsics", 9, path);
+        double[] intrinsics2 = values(properties, "right.intrinsics", 9, path);
+        double[] distortion1 = values(properties, "left.distortion", 5, path);
+        double[] distortion2 = values(properties, "right.distortion", 5, path);
+        double[] rotation = values(properties, "rotation", 9, path);
+        double[] translation = values(properties, "translation", 3, path);
+        int width = Integer.parseInt(properties.getProperty("width", "0").trim());
+        int height = Integer.parseInt(properties.getProperty("height", "0").trim());
+        String reference = properties.getProperty("reference", "left").trim();
+        if (!reference.equals("left") && !reference.equals("right")) {
+            throw new IllegalArgumentException(path + ": reference must be \"left\" or \"right\", got \"" + reference + "\".");
+        }
+
+        return new Stereo(new SimpleMatrix(3, 3, true, intrinsics1), new SimpleMatrix(3, 3, true, intrinsics2),
+                new MatOfDouble(distortion1), new MatOfDouble(distortion2), new SimpleMatrix(3, 3, true, rotation),
+                new SimpleMatrix(3, 1, true, translation), width, height,
+                reference.equals("left") ? Rectification.LEFT : Rectification.RIGHT);
+    }
+
+    /**
+     * Parses the values of a key.
+     *
+     * @param properties the calibration
+     * @param key the key
+     * @param count the expected number of values
+     * @param path the path of the calibration file, for error messages
+     *
+     * @return the values
+     */
+    private static double[] values(Properties properties, String key, int count, Path path) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException(path + ": missing \"" + key + "\".");
+        }
+        String[] tokens = value.trim().split("[\\s,]+");
+        if (tokens.length != count) {
+            throw new IllegalArgumentException(path + ": \"" + key + "\" needs " + count + " values, got " + tokens.length + ".");
+        }
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Double.parseDouble(tokens[i]);
+        }
+        return values;
+    }
+}
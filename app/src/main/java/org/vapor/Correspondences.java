@@ -0,0 +1,83 @@
+package org.vapor;
+
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of 2D-3D correspondences stored in flat primitive arrays, as used by the RANSAC hot loops.
+ */
+public class Correspondences {
+    /** The number of correspondences. */
+    public final int size;
+
+    /** The pixel coordinates in the reference camera, interleaved {x, y}. */
+    public final double[] image;
+
+    /** The undistorted normalized image coordinates, interleaved {x, y}. */
+    public final double[] normalized;
+
+    /** The 3D points in the world frame, interleaved {x, y, z}. */
+    public final double[] world;
+
+    /** The correspondence indices ordered from best to worst match, or null if there is no match quality. */
+    public final int[] ranking;
+
+    /**
+     * Flattens a list of correspondences, removing the lens distortion of the reference camera from the 2D points.
+     *
+     * @param points2D the 2D points in the image from the reference camera
+     * @param points3D the 3D points in the world frame
+     * @param sad the SAD match score of each correspondence, lower is better, or null if there is none
+     * @param cameras the stereo camera system
+     */
+    public Correspondences(List<Point> points2D, List<Point3> points3D, int[] sad, Stereo cameras) {
+        if (points2D.size() != points3D.size() || (sad != null && sad.length != points2D.size())) {
+            throw new IllegalArgumentException("Every correspondence needs a 2D point, a 3D point and, if given, a SAD score.");
+        }
+        this.size = points2D.size();
+        this.image = new double[2 * size];
+        this.normalized = new double[2 * size];
+        this.world = new double[3 * size];
+
+        double[] intrinsics = cameras.getIntrinsics();
+        double[] distortion = cameras.getDistortionCoefficients();
+        double[] undistorted = new double[2];
+        for (int i = 0; i < size; i++) {
+            Point point2D = points2D.get(i);
+            Point3 point3D = points3D.get(i);
+            image[2 * i] = point2D.x;
+            image[2 * i + 1] = point2D.y;
+            Rectification.undistortPoint(intrinsics, distortion, point2D.x, point2D.y, undistorted);
+            normalized[2 * i] = undistorted[0];
+            normalized[2 * i + 1] = undistorted[1];
+            world[3 * i] = point3D.x;
+            world[3 * i + 1] = point3D.y;
+            world[3 * i + 2] = point3D.z;
+        }
+
+        this.ranking = sad == null ? null : rank(sad);
+    }
+
+    /**
+     * Orders correspondences by ascending SAD, breaking ties by index, by sorting packed {sad, index} keys.
+     *
+     * @param sad the non-negative SAD match score of each correspondence
+     *
+     * @return the correspondence indices from best to worst
+     */
+    private static int[] rank(int[] sad) {
+        long[] keys = new long[sad.length];
+        for (int i = 0; i < sad.length; i++) {
+            keys[i] = ((long) sad[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] ranking = new int[sad.length];
+        for (int i = 0; i < sad.length; i++) {
+            ranking[i] = (int) keys[i];
+        }
+        return ranking;
+    }
+}
@@ -0,0 +1,155 @@
+package org.vapor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A directory of recorded stereo sequences.
+ *
+ * A sequence is a directory holding a "left" and a "right" directory of images, paired up in file name order, and
+ * optionally a "calibration.properties" file overriding the calibration of the dataset. The dataset directory is
+ * either a sequence itself, or holds one sequence per subdirectory.
+ */
+public final class Dataset {
+    /** The name of the calibration file of a sequence. */
+    public static final String CALIBRATION_FILE = "calibration.properties";
+
+    /** The extensions of the image files read from a sequence. */
+    private static final List<String> IMAGE_EXTENSIONS = List.of(".png", ".jpg", ".jpeg", ".bmp");
+
+    private Dataset() {
+    }
+
+    /**
+     * Finds the sequences of a dataset.
+     *
+     * @param directory the dataset directory
+     *
+     * @return the sequences, sorted by name
+     *
+     * @throws IOException if a directory cannot be listed
+     * @throws IllegalArgumentException if the directory holds no sequence, or a sequence has unpaired images
+     */
+    public static List<Sequence> sequences(Path directory) throws IOException {
+        List<Sequence> sequences = new ArrayList<>();
+        if (isSequence(directory)) {
+            sequences.add(sequence(directory));
+        } else {
+            try (Stream<Path> children = Files.list(directory)) {
+                for (Path child : children.sorted().collect(Collectors.toList())) {
+                    if (isSequence(child)) {
+                        sequences.add(sequence(child));
+                    }
+                }
+            }
+        }
+        if (sequences.isEmpty()) {
+            throw new IllegalArgumentException(directory + " holds no sequence with left and right image directories.");
+        }
+        return sequences;
+    }
+
+    /**
+     * Returns whether a directory is a sequence.
+     */
+    private static boolean isSequence(Path directory) {
+        return Files.isDirectory(directory.resolve("left")) && Files.isDirectory(directory.resolve("right"));
+    }
+
+    /**
+     * Reads the image pairs of a sequence.
+     *
+     * @param directory the sequence directory
+     *
+     * @return the sequence
+     */
+    private static Sequence sequence(Path directory) throws IOException {
+        List<Path> left = images(directory.resolve("left"));
+        List<Path> right = images(directory.resolve("right"));
+        if (left.size() != right.size()) {
+            throw new IllegalArgumentException(directory + " has " + left.size() + " left images but " + right.size() + " right images.");
+        }
+        Path calibration = directory.resolve(CALIBRATION_FILE);
+        Path name = directory.toAbsolutePath().normalize().getFileName();
+        return new Sequence(name == null ? directory.toString() : name.toString(), directory,
+                Files.isRegularFile(calibration) ? calibration : null, left, right);
+    }
+
+    /**
+     * Lists the image files of a directory.
+     *
+     * @param directory the directory
+     *
+     * @return the image files, sorted by name
+     */
+    private static List<Path> images(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                return Files.isRegularFile(file) && IMAGE_EXTENSIONS.stream().anyMatch(name::endsWith);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * One recorded stereo sequence.
+     */
+    public static final class Sequence {
+        public final String name;          // name of the sequence directory
+        public final Path directory;       // sequence directory
+        public final Path calibration;     // calibration file of the sequence, or null to use the dataset's
+        private final List<Path> left;     // left images, in order
+        private final List<Path> right;    // right images, in order
+
+        Sequence(String name, Path directory, Path calibration, List<Path> left, List<Path> right) {
+            this.name = name;
+            this.directory = directory;
+            this.calibration = calibration;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Returns the number of frames of the sequence.
+         *
+         * @return the number of frames
+         */
+        public int size() {
+            return left.size();
+        }
+
+        /**
+         * Returns the frames of the sequence, each loaded from its files when it is requested.
+         *
+         * @return the frames
+         */
+        public Iterator<Frame> frames() {
+            return new Iterator<Frame>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < left.size();
+                }
+
+                @Override
+                public Frame next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Frame frame = new Frame(left.get(next).toString(), right.get(next).toString());
+                    next++;
+                    return frame;
+                }
+            };
+        }
+    }
+}
@@ -1,12 +1,9 @@
 package org.vapor;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.io.File;
-import java.io.IOException;
 import java.lang.Math;
 
 /**
@@ -26,21 +23,29 @@ class SortStrength implements Comparator<Feature> {
     }
 }
 
+/**
+ * Harris corner detection, bucketed over the image.
+ *
+ * All the working state of a detection lives in the instance, and the derivative, Gaussian and strength buffers are
+ * reused while the image size stays the same, so separate instances can detect features in separate images
+ * concurrently. An instance must not be shared between threads. The features it returns are its own, and only hold the
+ * rows of the image that have features, every other row sharing one row of zeros.
+ */
 public class Detection {
     // the derivative, strength, and gaussian buffers.
-    static long[][] ixx;
-    static long[][] iyy;
-    static long[][] ixy;
-    static long[] gxx;
-    static long[] gyy;
-    static long[] gxy;
-    static double[][] s;
+    private long[][] ixx;
+    private long[][] iyy;
+    private long[][] ixy;
+    private long[] gxx;
+    private long[] gyy;
+    private long[] gxy;
+    private double[][] s;
 
     /** The grayscale values of the buffered image. */
-    static int[][] grayImage;
+    private int[][] grayImage;
 
-    /** The row count, which will start at 1 to avoid the first row of the image. */
-    static int row;
+    /** The row of the image whose derivatives are calculated next, never the first row of the image. */
+    private int row;
 
     /** The constant k in the Harris corner response function. */
     static final double k = 0.06;
@@ -74,12 +79,16 @@ public class Detection {
     }
 
     /**
-     * Updates the derivative buffers with the derivatives of the current row of the image.
+     * Updates the derivative buffers with the derivatives of the current row of the image, over the columns the
+     * strengths of a span of columns depend on.
      *
      * @param image the grayscale image as a 2D array of integers.
+     * @param from the first column of the strengths
+     * @param to the column after the last column of the strengths
      */
-    private static void updateDerivatives(int[][] image) {
-        for (int i = 1; i < image[0].length - 1; i++) {
+    private void updateDerivatives(int[][] image, int from, int to) {
+        int end = Math.min(to + KERNEL_SIZE - 1, gxx.length);
+        for (int i = from + 1; i < end + 1; i++) {
             int ix = getXDerivative(image, row, i);
             int iy = getYDerivative(image, row, i);
             int x = (row - 1) % 5;
@@ -95,11 +104,16 @@ public class Detection {
     private static final int KERNEL_RADIUS = KERNEL_SIZE / 2;
 
     /**
-     * Updates the Gaussian buffers with the current derivatives stored in the buffers.
+     * Updates the Gaussian buffers with the current derivatives stored in the buffers, over the columns the strengths
+     * of a span of columns depend on.
+     *
+     * @param from the first column of the strengths
+     * @param to the column after the last column of the strengths
      */
-    private static void updateGaussian() {
+    private void updateGaussian(int from, int to) {
         // Perform vertical convolution
-        for (int i = 0; i < gxx.length; i++) {
+        int end = Math.min(to + KERNEL_SIZE - 1, gxx.length);
+        for (int i = from; i < end; i++) {
             long sumXX = 0, sumYY = 0, sumXY = 0;
             for (int j = 0; j < KERNEL_SIZE; j++) {
                 int index = (row + j - KERNEL_RADIUS + 5) % 5;
@@ -113,7 +127,8 @@ public class Detection {
         }
 
         // Perform horizontal convolution
-        for (int i = 0; i < gxx.length - KERNEL_SIZE; i++) {
+        end = Math.min(to, gxx.length - KERNEL_SIZE);
+        for (int i = from; i < end; i++) {
             long sumXX = gxx[i], sumYY = gyy[i], sumXY = gxy[i];
             for (int j = 1; j < KERNEL_SIZE; j++) {
                 sumXX += gxx[i + j] * WEIGHTS[j];
@@ -127,12 +142,15 @@ public class Detection {
     }
 
     /**
-     * Updates the strength array with the current Gaussian buffers.
+     * Updates the strength array with the current Gaussian buffers, over a span of columns.
+     *
+     * @param from the first column of the strengths
+     * @param to the column after the last column of the strengths
      */
-    private static void updateStrength() {
-        for (int i = 0; i < gxx.length - 4; i++) {
-            long det = (long) gxx[i] * gyy[i] - (long) gxy[i] * gxy[i];
-            long trace = (long) gxx[i] + gyy[i];
+    private void updateStrength(int from, int to) {
+        for (int i = from; i < to; i++) {
+            long det = gxx[i] * gyy[i] - gxy[i] * gxy[i];
+            long trace = gxx[i] + gyy[i];
             double strength = det - k * trace * trace;
             s[row - 6][i] = strength;
         }
@@ -144,21 +162,54 @@ public class Detection {
     private static final int COL_BUCKETS = 10;
     private static final double MIN_STRENGTH = 1E10;
 
+    /** The number of buckets, numbered row by row. */
+    public static final int BUCKETS = ROW_BUCKETS * COL_BUCKETS;
+
+    /**
+     * Computes the strengths over a rectangle of the strength array, streaming the rows of derivatives and Gaussian
+     * sums through the buffers from the top of the rectangle. Each strength depends on the image within 3 pixels of
+     * it, so a rectangle only reads the image around itself.
+     *
+     * @param image the grayscale image
+     * @param top the first row of the strengths
+     * @param bottom the row after the last row of the strengths
+     * @param from the first column of the strengths
+     * @param to the column after the last column of the strengths
+     */
+    private void updateStrengths(int[][] image, int top, int bottom, int from, int to) {
+        // initially calculate the 5 lines of derivatives above the first strength
+        row = top + 1;
+        for (int i = 0; i < 5; i++) {
+            updateDerivatives(image, from, to);
+        }
+
+        // loop to calculate derivatives and strengths
+        for (int i = top; i < bottom; i++) {
+            updateGaussian(from, to);
+            updateStrength(from, to);
+            updateDerivatives(image, from, to);
+        }
+    }
+
     /**
-     * Performs non-maximum suppression to get the corners for features.
+     * Performs non-maximum suppression over a rectangle of the strength array to get the corners for features.
      *
      * @param s the strength array of the image.
      * @param features the list of list of features to store the corners divided into buckets.
+     * @param top the first row of the rectangle
+     * @param bottom the row after the last row of the rectangle
+     * @param left the first column of the rectangle
+     * @param right the column after the last column of the rectangle
      */
-    private static void nonMaxSuppression(double[][] s, ArrayList<ArrayList<Feature>> features) {
+    private void nonMaxSuppression(double[][] s, ArrayList<ArrayList<Feature>> features, int top, int bottom, int left, int right) {
         int rows = s.length;
         int cols = s[0].length;
         double rowBucketSize = (double) rows / ROW_BUCKETS;
         double colBucketSize = (double) cols / COL_BUCKETS;
 
-        for (int i = WINDOW_RADIUS; i < rows - WINDOW_RADIUS; i++) {
+        for (int i = Math.max(top, WINDOW_RADIUS); i < Math.min(bottom, rows - WINDOW_RADIUS); i++) {
             int rowBucket = Math.min((int) (i / rowBucketSize), ROW_BUCKETS - 1);
-            for (int j = WINDOW_RADIUS; j < cols - WINDOW_RADIUS; j++) {
+            for (int j = Math.max(left, WINDOW_RADIUS); j < Math.min(right, cols - WINDOW_RADIUS); j++) {
                 double v = s[i][j];
                 // check if the strength is greater than the minimum strength
                 if (v < MIN_STRENGTH) continue;
@@ -182,34 +233,117 @@ public class Detection {
         return true;
     }
 
+    /**
+     * Finds where the buckets along one axis of the strength array start, the same way non-maximum suppression
+     * assigns the corners to buckets.
+     *
+     * @param size the number of rows or columns of the strength array
+     * @param buckets the number of buckets along the axis
+     *
+     * @return the first row or column of each bucket, followed by the size
+     */
+    private static int[] bucketBounds(int size, int buckets) {
+        int[] bounds = new int[buckets + 1];
+        double bucketSize = (double) size / buckets;
+        int bucket = 0;
+        for (int i = 0; i < size; i++) {
+            int current = Math.min((int) (i / bucketSize), buckets - 1);
+            while (bucket < current) {
+                bounds[++bucket] = i;
+            }
+        }
+        while (bucket < buckets) {
+            bounds[++bucket] = size;
+        }
+        return bounds;
+    }
+
+    /**
+     * Finds which buckets of an image already hold enough features, to replenish only the others with
+     * {@link #detect(int[][], boolean[])}.
+     *
+     * @param features the features, such as the ones tracked into the image
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param minimum the number of features a bucket needs to count as occupied
+     *
+     * @return whether each bucket is occupied, numbered row by row
+     */
+    public static boolean[] occupancy(Iterable<Feature> features, int width, int height, int minimum) {
+        double rowBucketSize = (double) (height - 6) / ROW_BUCKETS;
+        double colBucketSize = (double) (width - 6) / COL_BUCKETS;
+        int[] counts = new int[BUCKETS];
+        for (Feature feature : features) {
+            // features sit 3 pixels below and right of their strength
+            int rowBucket = Math.max(0, Math.min((int) ((feature.x - 3) / rowBucketSize), ROW_BUCKETS - 1));
+            int colBucket = Math.max(0, Math.min((int) ((feature.y - 3) / colBucketSize), COL_BUCKETS - 1));
+            counts[rowBucket * COL_BUCKETS + colBucket]++;
+        }
+        boolean[] occupied = new boolean[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            occupied[i] = counts[i] >= minimum;
+        }
+        return occupied;
+    }
+
+    /**
+     * Detects the features of an image with a new detector.
+     *
+     * @param image the image
+     * @param grayscale the grayscale values of the image, indexed by row then column
+     *
+     * @return the features of the image
+     */
     public static FeatureInfo detect(BufferedImage image, int[][] grayscale) {
-        // get image width and length and init strength array
-        row = 1;
-        grayImage = grayscale;
-        int width = image.getWidth();
-        int height = image.getHeight();
-        s = new double[height - 6][width - 6];
+        return new Detection().detect(grayscale);
+    }
 
-        // initialize derivative buffers 
-        ixx = new long[5][width - 2];
-        iyy = new long[5][width - 2];
-        ixy = new long[5][width - 2];
+    /**
+     * Detects the features of an image.
+     *
+     * @param grayscale the grayscale values of the image, indexed by row then column
+     *
+     * @return the features of the image
+     */
+    public FeatureInfo detect(int[][] grayscale) {
+        return detect(grayscale, null);
+    }
 
-        // initialize gaussian buffers
-        gxx = new long[width - 2];
-        gyy = new long[width - 2];
-        gxy = new long[width - 2];
+    /**
+     * Detects the features of an image only in the buckets that are not occupied yet, such as when replenishing the
+     * features lost by tracking. The strengths and non-maximum suppression are computed only over the row and column
+     * spans of those buckets, with halos wide enough that every bucket gets the same features as a full detection
+     * would give it, so the cost scales with the area of the buckets.
+     *
+     * @param grayscale the grayscale values of the image, indexed by row then column
+     * @param occupied whether each bucket is occupied, numbered row by row, see {@link #occupancy}, or null to detect
+     *                 every bucket
+     *
+     * @return the features of the unoccupied buckets
+     */
+    public FeatureInfo detect(int[][] grayscale, boolean[] occupied) {
+        if (occupied != null && occupied.length != BUCKETS) {
+            throw new IllegalArgumentException("The occupancy mask needs " + BUCKETS + " buckets, got " + occupied.length + ".");
+        }
+        Events.Detection event = new Events.Detection();
+        event.begin();
 
-        // initially calculate first 5 lines of derivatives
-        for (int i = 0; i < 5; i++) {
-            updateDerivatives(grayImage);
+        // get image width and length, and the strength array, reused while it fits the image
+        grayImage = grayscale;
+        int height = grayscale.length;
+        int width = grayscale[0].length;
+        if (s == null || s.length != height - 6 || s[0].length != width - 6) {
+            s = new double[height - 6][width - 6];
         }
 
-        // loop to calculate derivatives and strengths
-        for (int i = 5; i < height - 3; i++) {
-            updateGaussian();
-            updateStrength();
-            updateDerivatives(grayImage);
+        // initialize derivative and gaussian buffers, unless they fit the image already
+        if (gxx == null || gxx.length != width - 2) {
+            ixx = new long[5][width - 2];
+            iyy = new long[5][width - 2];
+            ixy = new long[5][width - 2];
+            gxx = new long[width - 2];
+            gyy = new long[width - 2];
+            gxy = new long[width - 2];
         }
 
         // initialize list of features
@@ -218,32 +352,113 @@ public class Detection {
             features.add(new ArrayList<Feature>());
         }
 
-        // perform non-maximum suppression to get corners for features
-        nonMaxSuppression(s, features);
+        // calculate the strengths and perform non-maximum suppression to get corners for features, over the whole
+        // image or only over the unoccupied buckets
+        int rows = height - 6;
+        int cols = width - 6;
+        int strengthRows = height - 8;
+        if (occupied == null) {
+            updateStrengths(grayImage, 0, strengthRows, 0, cols);
+            nonMaxSuppression(s, features, 0, rows, 0, cols);
+        } else {
+            int[] rowBounds = bucketBounds(rows, ROW_BUCKETS);
+            int[] colBounds = bucketBounds(cols, COL_BUCKETS);
+            for (int rowBucket = 0; rowBucket < ROW_BUCKETS; rowBucket++) {
+                int top = rowBounds[rowBucket];
+                int bottom = rowBounds[rowBucket + 1];
+                int colBucket = 0;
+                while (colBucket < COL_BUCKETS) {
+                    // merge each run of unoccupied buckets into one span
+                    if (occupied[rowBucket * COL_BUCKETS + colBucket]) {
+                        colBucket++;
+                        continue;
+                    }
+                    int first = colBucket;
+                    while (colBucket < COL_BUCKETS && !occupied[rowBucket * COL_BUCKETS + colBucket]) {
+                        colBucket++;
+                    }
+                    int left = colBounds[first];
+                    int right = colBounds[colBucket];
+
+                    // the suppression compares every corner with the strengths around it, so they are computed over a
+                    // halo around the span
+                    int haloTop = Math.max(0, top - WINDOW_RADIUS);
+                    int haloBottom = Math.min(strengthRows, bottom + WINDOW_RADIUS);
+                    if (haloTop < haloBottom) {
+                        updateStrengths(grayImage, haloTop, haloBottom, Math.max(0, left - WINDOW_RADIUS), Math.min(cols, right + WINDOW_RADIUS));
+                    }
+                    nonMaxSuppression(s, features, top, bottom, left, right);
+                }
+            }
+        }
 
         // sort features in each bucket by strength and use top features
+        int corners = 0;
         for (int i = 0; i < 50; i++) {
+            corners += features.get(i).size();
             features.get(i).sort(new SortStrength());
             int top = features.get(i).size() > bucketCap ? bucketCap : features.get(i).size();
             features.set(i, new ArrayList<Feature>(features.get(i).subList(0, top)));
         }
 
-        // for each feature, mark it on an array
-        int[][] featureArray = new int[height][width];
+        // for each feature, mark it and its strength on arrays that only allocate the rows holding features
+        int[] noFeatures = new int[width];
+        double[] noStrengths = new double[width - 6];
+        int[][] featureArray = new int[height][];
+        double[][] strengths = new double[height - 6][];
+        Arrays.fill(featureArray, noFeatures);
+        Arrays.fill(strengths, noStrengths);
+        int count = 0;
         for (int i = 0; i < 50; i++) {
             for (Feature f : features.get(i)) {
+                if (featureArray[f.x] == noFeatures) {
+                    featureArray[f.x] = new int[width];
+                    strengths[f.x - 3] = new double[width - 6];
+                }
                 featureArray[f.x][f.y] = 1;
+                strengths[f.x - 3][f.y - 3] = f.value;
             }
+            count += features.get(i).size();
         }
 
-        // save new grayscale image
-        try {
-            File file = new File("grayscale.png");
-            ImageIO.write(image, "png", file);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        FeatureInfo info = new FeatureInfo(strengths, featureArray, grayImage, count);
+        if (event.shouldCommit()) {
+            commit(event, features, corners, width, height, occupied);
         }
 
-        return new FeatureInfo(s, featureArray, grayImage);
+        // drop the reference to the image, which the instance outlives
+        grayImage = null;
+        return info;
+    }
+
+    /**
+     * Fills in and commits the flight recorder event of a detection with the feature count of every bucket.
+     *
+     * @param event the event, begun when the detection started
+     * @param features the capped features of each bucket
+     * @param corners the number of corners found before the cap
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param occupied the occupied buckets that were not detected, or null if every bucket was
+     */
+    private static void commit(Events.Detection event, ArrayList<ArrayList<Feature>> features, int corners, int width, int height,
+                               boolean[] occupied) {
+        StringBuilder counts = new StringBuilder();
+        int total = 0;
+        for (int i = 0; i < features.size(); i++) {
+            int size = features.get(i).size();
+            total += size;
+            if (occupied == null || !occupied[i]) event.detectedBuckets++;
+            if (size == 0) event.emptyBuckets++;
+            if (size == bucketCap) event.fullBuckets++;
+            if (i > 0) counts.append(i % COL_BUCKETS == 0 ? " | " : ",");
+            counts.append(size);
+        }
+        event.width = width;
+        event.height = height;
+        event.corners = corners;
+        event.features = total;
+        event.bucketCounts = counts.toString();
+        event.commit();
     }
 }
@@ -0,0 +1,203 @@
+package org.vapor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events of the pipeline, so that recordings show which stage a GC pause or CPU stall hit.
+ *
+ * Every event is created, begun and committed by the code it times, following the JFR pattern: the fields are only
+ * filled in when {@link Event#shouldCommit()} says the event is enabled and over its threshold, so a disabled event
+ * costs a call that the JIT folds away, and the allocation of the event is removed by escape analysis. Enable them in
+ * a recording with, for instance:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=vapor.jfr,settings=profile ...
+ * </pre>
+ *
+ * and browse them under "Vapor" in JDK Mission Control.
+ */
+final class Events {
+    private Events() {
+    }
+
+    /**
+     * The loading of a frame from its image files.
+     */
+    @Name("org.vapor.FrameIngest")
+    @Label("Frame Ingest")
+    @Category({"Vapor", "Pipeline"})
+    @Description("Reads a stereo pair of images and converts them to grayscale")
+    static final class FrameIngest extends Event {
+        @Label("Left Path")
+        String left;
+
+        @Label("Right Path")
+        String right;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+    }
+
+    /**
+     * The detection of the features of one image.
+     */
+    @Name("org.vapor.Detection")
+    @Label("Detection")
+    @Category({"Vapor", "Pipeline"})
+    @Description("Detects the Harris corners of an image and keeps the strongest of each bucket")
+    static final class Detection extends Event {
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Corners")
+        @Description("Local maxima found before the per-bucket cap")
+        int corners;
+
+        @Label("Features")
+        @Description("Features kept after the per-bucket cap")
+        int features;
+
+        @Label("Detected Buckets")
+        @Description("Buckets detected, the others being occupied by features already")
+        int detectedBuckets;
+
+        @Label("Empty Buckets")
+        int emptyBuckets;
+
+        @Label("Full Buckets")
+        @Description("Buckets that reached the cap, dropping corners")
+        int fullBuckets;
+
+        @Label("Bucket Counts")
+        @Description("Features kept per bucket, row by row")
+        String bucketCounts;
+    }
+
+    /**
+     * The matching of the features of two images.
+     */
+    @Name("org.vapor.Matching")
+    @Label("Matching")
+    @Category({"Vapor", "Pipeline"})
+    @Description("Matches features between two images by SAD with a mutual consistency check")
+    static final class Matching extends Event {
+        @Label("Features")
+        @Description("Features of the first image searched from")
+        int features;
+
+        @Label("Candidates")
+        @Description("Candidate pairs whose SAD was evaluated")
+        long candidates;
+
+        @Label("Best Matches")
+        @Description("Best matches kept before the mutual consistency check")
+        int proposed;
+
+        @Label("Matches")
+        @Description("Matches kept after the mutual consistency check")
+        int matches;
+    }
+
+    /**
+     * The triangulation of the stereo matches of a new keyframe.
+     */
+    @Name("org.vapor.Triangulation")
+    @Label("Triangulation")
+    @Category({"Vapor", "Pipeline"})
+    @Description("Triangulates the stereo matches of a keyframe into its landmarks")
+    static final class Triangulation extends Event {
+        @Label("Matches")
+        int matches;
+
+        @Label("Landmarks")
+        int landmarks;
+
+        @Label("Dropped")
+        @Description("Matches triangulated behind the camera")
+        int dropped;
+
+        @Label("Median Depth")
+        double medianDepth;
+    }
+
+    /**
+     * The generation of one batch of RANSAC hypotheses.
+     */
+    @Name("org.vapor.HypothesisGeneration")
+    @Label("Hypothesis Generation")
+    @Category({"Vapor", "RANSAC"})
+    @Description("Draws minimal samples and solves P3P for a batch of motion hypotheses")
+    static final class HypothesisGeneration extends Event {
+        @Label("First")
+        @Description("Hypotheses drawn before this batch")
+        int first;
+
+        @Label("Requested")
+        int requested;
+
+        @Label("Generated")
+        @Description("Samples that gave a hypothesis")
+        int generated;
+
+        @Label("Correspondences")
+        int correspondences;
+    }
+
+    /**
+     * One round of preemptive scoring.
+     */
+    @Name("org.vapor.PreemptionRound")
+    @Label("Preemption Round")
+    @Category({"Vapor", "RANSAC"})
+    @Description("Scores the surviving hypotheses on one block of points and keeps the best of them")
+    static final class PreemptionRound extends Event {
+        @Label("Round")
+        int round;
+
+        @Label("Survivors")
+        @Description("Hypotheses scored in this round")
+        int survivors;
+
+        @Label("Block Size")
+        int block;
+
+        @Label("Scored")
+        @Description("Points scored so far, this block included")
+        int scored;
+
+        @Label("Kept")
+        @Description("Hypotheses kept for the next round")
+        int kept;
+    }
+
+    /**
+     * The refinement of the best RANSAC hypothesis.
+     */
+    @Name("org.vapor.Refinement")
+    @Label("Refinement")
+    @Category({"Vapor", "RANSAC"})
+    @Description("Refines a motion on its inliers with Levenberg-Marquardt")
+    static final class Refinement extends Event {
+        @Label("Inliers")
+        int inliers;
+
+        @Label("Iterations")
+        int iterations;
+
+        @Label("Initial Cost")
+        double initialCost;
+
+        @Label("Final Cost")
+        double finalCost;
+    }
+}
@@ -35,6 +35,9 @@ public class Feature {
         if (x < 5 || x >= image.length - 5 || y < 5 || y >= image[0].length - 5) {
             throw new IllegalArgumentException("Feature coordinates must be at least 5 pixels away from the border.");
         }
+        this.value = value;
+        this.x = x;
+        this.y = y;
 
         // set hash code
         this.hashCode = Objects.hash(value, x, y);
@@ -4,7 +4,7 @@ public class FeatureInfo {
     /** The grayscale values of the image. */
     public int[][] image;
 
-    /** The strengths of the features, offset by 3 in both dimensions from the image. */
+    /** The strengths of the features, offset by 3 in both dimensions from the image, and 0 away from them. */
     public double[][] strengths;
 
     /** The features of the image, marked by a 1 in the location where there is a feature. */
@@ -16,12 +16,24 @@ public class FeatureInfo {
     /** The width of the image. */
     public int width;
 
-    public FeatureInfo(double[][] strengths, int[][] features, int[][] image) {
+    /** The number of features. */
+    public int count;
+
+    /**
+     * Constructs the features of an image.
+     *
+     * @param strengths the strengths of the features, offset by 3 in both dimensions from the image
+     * @param features the features of the image, marked by a 1
+     * @param image the grayscale values of the image
+     * @param count the number of features marked, which the detector already knows
+     */
+    public FeatureInfo(double[][] strengths, int[][] features, int[][] image, int count) {
         this.image = image;
         this.strengths = strengths;
         this.features = features;
         this.height = features.length;
         this.width = features[0].length;
+        this.count = count;
     }
 }
 
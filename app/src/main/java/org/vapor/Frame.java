@@ -1,8 +1,8 @@
 package org.vapor;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 import javax.imageio.ImageIO;
 
@@ -24,46 +24,81 @@ public class Frame {
     public int[][] leftGrayImage;
     public int[][] rightGrayImage;
 
+    /**
+     * Loads a frame from a pair of image files.
+     *
+     * @param left the path of the image from the left camera
+     * @param right the path of the image from the right camera
+     */
     public Frame(String left, String right) {
-        // get left image from resources
-        BufferedImage image1;
-        try {
-            InputStream is = App.class.getResourceAsStream("/left");
-            assert is != null;
-            image1 = ImageIO.read(is);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        leftImage = image1;
+        Events.FrameIngest event = new Events.FrameIngest();
+        event.begin();
+
+        // read the left and right images
+        leftImage = read(left);
         leftWidth = leftImage.getWidth();
         leftHeight = leftImage.getHeight();
-
-        // get right image from resources
-        BufferedImage image2;
-        try {
-            InputStream is = App.class.getResourceAsStream("/right");
-            assert is != null;
-            image2 = ImageIO.read(is);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        rightImage = image2;
+        rightImage = read(right);
         rightWidth = rightImage.getWidth();
         rightHeight = rightImage.getHeight();
 
         // set image values to grayscale and update grayscale array
+        leftGrayImage = new int[leftHeight][leftWidth];
         for (int i = 0; i < leftHeight; i++) {
             for (int j = 0; j < leftWidth; j++) {
                 int gray = toGrayscale(leftImage.getRGB(j, i));
                 leftGrayImage[i][j] = gray;
             }
         }
+        rightGrayImage = new int[rightHeight][rightWidth];
         for (int i = 0; i < rightHeight; i++) {
             for (int j = 0; j < rightWidth; j++) {
                 int gray = toGrayscale(rightImage.getRGB(j, i));
                 rightGrayImage[i][j] = gray;
             }
         }
+
+        if (event.shouldCommit()) {
+            event.left = left;
+            event.right = right;
+            event.width = leftWidth;
+            event.height = leftHeight;
+            event.commit();
+        }
+    }
+
+    /**
+     * Wraps a pair of grayscale images, such as rendered ones, without source images.
+     *
+     * @param leftGrayImage the grayscale values of the left image, indexed [row][column]
+     * @param rightGrayImage the grayscale values of the right image, indexed [row][column]
+     */
+    public Frame(int[][] leftGrayImage, int[][] rightGrayImage) {
+        this.leftGrayImage = leftGrayImage;
+        this.rightGrayImage = rightGrayImage;
+        leftHeight = leftGrayImage.length;
+        leftWidth = leftGrayImage[0].length;
+        rightHeight = rightGrayImage.length;
+        rightWidth = rightGrayImage[0].length;
+    }
+
+    /**
+     * Reads an image from a file.
+     *
+     * @param path the path of the image
+     *
+     * @return the image
+     */
+    private static BufferedImage read(String path) {
+        try {
+            BufferedImage image = ImageIO.read(new File(path));
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + path);
+            }
+            return image;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -0,0 +1,692 @@
+package org.vapor;
+
+import java.util.Arrays;
+
+/**
+ * The landmarks of every keyframe in the world frame, so that landmarks seen again are matched and refined rather
+ * than only ever triangulated anew.
+ *
+ * Every landmark keeps its position, the 11x11 window of image around the feature it was last seen at, which is the
+ * window {@link Tracking#sad} compares, the number of keyframes that observed it and the last of them. They live in
+ * flat primitive arrays indexed by slot, and freed slots are reused. Slots are grouped by the voxel cell they fall in,
+ * each cell holding a linked list of its slots, and the cells are found through an open-addressing hash table keyed
+ * by their packed integer coordinates. Cells whose list empties are kept for reuse until the table is rebuilt.
+ *
+ * A visibility query culls whole cells against the view frustum of a pose before projecting the landmarks of the
+ * cells that may be in view, so its cost grows with the number of cells rather than the number of landmarks. The
+ * landmarks that were not seen for a number of keyframes are evicted, and so are the least recently seen tenth when
+ * the map is full, which bounds its memory.
+ *
+ * A map must be used from one thread.
+ */
+public class LandmarkMap {
+    /** The default maximum number of landmarks. */
+    public static final int DEFAULT_CAPACITY = 50_000;
+
+    /** The default number of keyframes a landmark is kept for without being seen. */
+    public static final long DEFAULT_MAX_AGE = 200;
+
+    /** The default side of a voxel cell, in stereo baselines. */
+    private static final double DEFAULT_CELL_BASELINES = 4;
+
+    /** The radius and area of the window of image kept with every landmark. */
+    private static final int PATCH_RADIUS = 5;
+    private static final int PATCH_AREA = (2 * PATCH_RADIUS + 1) * (2 * PATCH_RADIUS + 1);
+
+    /** The largest SAD between a landmark's window and a feature's for them to match, 20 gray levels per pixel. */
+    private static final int MAX_MATCH_SAD = 20 * PATCH_AREA;
+
+    /** The fraction of the field of view added on every side when culling cells, to allow for lens distortion. */
+    private static final double FRUSTUM_SLACK = 0.25;
+
+    /** The fraction of the landmarks evicted at once when the map is full. */
+    private static final double EVICTION_FRACTION = 0.1;
+
+    /** The largest fraction of the hash table in use, including emptied cells, before it is rebuilt. */
+    private static final double MAX_LOAD = 0.5;
+
+    /** The key of an unused entry of the claims table, which no pixel has. */
+    private static final int NO_CLAIM = -1;
+
+    /** The key of an unused entry of the hash table, which no cell packs to. */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /** The number of bits of each packed cell coordinate. */
+    private static final int COORDINATE_BITS = 21;
+
+    /* The pinhole parameters and distortion of the reference camera. */
+    private final double[] intrinsics;
+    private final double[] distortion;
+
+    /* The side of a voxel cell, the maximum number of landmarks and how many keyframes an unseen one is kept for. */
+    private final double cellSize;
+    private final int capacity;
+    private final long maxAge;
+
+    /* The landmarks by slot: position {x, y, z}, window, observation count, last keyframe seen in, next slot in
+     * their cell or in the free list, and their cell's entry in the hash table, -1 for a free slot. */
+    private double[] positions = new double[0];
+    private byte[] patches = new byte[0];
+    private int[] observations = new int[0];
+    private long[] lastSeen = new long[0];
+    private int[] next = new int[0];
+    private int[] cellOf = new int[0];
+
+    /* The number of live landmarks, the number of slots ever used, and the head of the free list. */
+    private int size;
+    private int slots;
+    private int free = -1;
+
+    /* The hash table of cells: packed coordinates, head slot of their list or -1, and the entries in use. */
+    private long[] cellKeys;
+    private int[] cellHeads;
+    private int cellsUsed;
+
+    /* The number of landmarks evicted so far. */
+    private long evictions;
+
+    /* The landmarks found by the last query and their pixels, interleaved {column, row}. */
+    private int[] visible = new int[0];
+    private double[] projected = new double[0];
+
+    /* The best feature of every landmark of the last match and its SAD, and the open-addressing table of the landmark
+     * claiming every feature, keyed by pixel. */
+    private int[] bestKeys = new int[0];
+    private int[] bestSads = new int[0];
+    private int[] claimKeys = new int[0];
+    private int[] claimants = new int[0];
+
+    /**
+     * Constructs a map for a stereo camera system, with the default capacity and age, and cells of a few baselines.
+     *
+     * @param cameras the stereo camera system, whose reference camera observes the landmarks
+     */
+    public LandmarkMap(Stereo cameras) {
+        this(cameras, DEFAULT_CELL_BASELINES * norm(cameras.getStereoTranslation()), DEFAULT_CAPACITY, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Constructs a map.
+     *
+     * @param cameras the stereo camera system, whose reference camera observes the landmarks
+     * @param cellSize the side of a voxel cell, in the units of the calibration
+     * @param capacity the maximum number of landmarks
+     * @param maxAge the number of keyframes a landmark is kept for without being seen
+     */
+    public LandmarkMap(Stereo cameras, double cellSize, int capacity, long maxAge) {
+        if (!(cellSize > 0) || capacity < 1) {
+            throw new IllegalArgumentException("A landmark map needs a positive cell size and capacity.");
+        }
+        this.intrinsics = cameras.getIntrinsics();
+        this.distortion = cameras.getDistortionCoefficients();
+        this.cellSize = cellSize;
+        this.capacity = capacity;
+        this.maxAge = maxAge;
+        allocateCells(64);
+    }
+
+    /**
+     * Returns the number of landmarks.
+     *
+     * @return the number of landmarks
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of landmarks evicted so far.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the last keyframe a landmark was seen in.
+     *
+     * @param landmark the slot of the landmark
+     *
+     * @return the number of the keyframe
+     */
+    long lastSeen(int landmark) {
+        return lastSeen[landmark];
+    }
+
+    /**
+     * Returns the position of a landmark.
+     *
+     * @param landmark the slot of the landmark
+     * @param out the output position in the world frame
+     */
+    void position(int landmark, double[] out) {
+        System.arraycopy(positions, 3 * landmark, out, 0, 3);
+    }
+
+    /**
+     * Adds a landmark, evicting the least recently seen landmarks first if the map is full.
+     *
+     * @param point the position of the landmark in the world frame
+     * @param image the features of the image the landmark was seen in
+     * @param row the row of its feature
+     * @param column the column of its feature
+     * @param keyframe the number of the keyframe it was seen in
+     *
+     * @return the slot of the landmark
+     */
+    int add(double[] point, FeatureInfo image, int row, int column, long keyframe) {
+        if (size >= capacity) {
+            evictLeastRecent();
+        }
+
+        // take a free slot, or a new one
+        int slot;
+        if (free >= 0) {
+            slot = free;
+            free = next[slot];
+        } else {
+            if (slots == lastSeen.length) {
+                grow(Math.min(capacity, Math.max(1024, 2 * slots)));
+            }
+            slot = slots++;
+        }
+        System.arraycopy(point, 0, positions, 3 * slot, 3);
+        copyPatch(image, row, column, slot);
+        observations[slot] = 1;
+        lastSeen[slot] = keyframe;
+        link(slot);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Refines a landmark seen again with a new triangulation, averaging its positions over every observation, and
+     * keeps the newest window of image, which looks most like the next views.
+     *
+     * @param landmark the slot of the landmark
+     * @param point the new position of the landmark in the world frame
+     * @param image the features of the image the landmark was seen in
+     * @param row the row of its feature
+     * @param column the column of its feature
+     * @param keyframe the number of the keyframe it was seen in
+     */
+    void fuse(int landmark, double[] point, FeatureInfo image, int row, int column, long keyframe) {
+        unlink(landmark);
+        int n = observations[landmark];
+        for (int i = 0; i < 3; i++) {
+            positions[3 * landmark + i] = (n * positions[3 * landmark + i] + point[i]) / (n + 1);
+        }
+        link(landmark);
+        copyPatch(image, row, column, landmark);
+        observations[landmark] = n + 1;
+        lastSeen[landmark] = keyframe;
+    }
+
+    /**
+     * Marks a landmark as seen, without refining it.
+     *
+     * @param landmark the slot of the landmark
+     * @param keyframe the number of the keyframe it was seen in
+     */
+    void touch(int landmark, long keyframe) {
+        lastSeen[landmark] = keyframe;
+    }
+
+    /**
+     * Evicts the landmarks not seen for more than the maximum age.
+     *
+     * @param keyframe the number of the current keyframe
+     */
+    void evictOlderThan(long keyframe) {
+        evictBefore(keyframe - maxAge);
+    }
+
+    /**
+     * Finds the landmarks in view of a pose and projects them into its image. The cells that cannot be in view are
+     * skipped whole, then every landmark of the others is projected through the distortion of the camera.
+     *
+     * @param rotation the row-major 3x3 rotation from the camera to the world frame
+     * @param position the position of the camera in the world frame
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param margin the distance from the border of the image within which landmarks are left out
+     *
+     * @return the number of landmarks in view, whose slots and pixels are read with {@link #visible(int)} and
+     *         {@link #projected(int, int)}
+     */
+    int query(double[] rotation, double[] position, int width, int height, int margin) {
+        // the bounds of the image in normalized coordinates, widened for distortion
+        double fx = intrinsics[0], fy = intrinsics[1], cx = intrinsics[2], cy = intrinsics[3];
+        double xMin = (margin - cx) / fx;
+        double xMax = (width - 1 - margin - cx) / fx;
+        double yMin = (margin - cy) / fy;
+        double yMax = (height - 1 - margin - cy) / fy;
+        double xSlack = FRUSTUM_SLACK * (xMax - xMin);
+        double ySlack = FRUSTUM_SLACK * (yMax - yMin);
+        xMin -= xSlack;
+        xMax += xSlack;
+        yMin -= ySlack;
+        yMax += ySlack;
+
+        // the side planes of the widened frustum, through the camera center with unit inward normals
+        double left = Math.sqrt(1 + xMin * xMin);
+        double right = Math.sqrt(1 + xMax * xMax);
+        double top = Math.sqrt(1 + yMin * yMin);
+        double bottom = Math.sqrt(1 + yMax * yMax);
+        double radius = cellSize * Math.sqrt(3) / 2;
+
+        int count = 0;
+        double[] offset = new double[3];
+        double[] local = new double[3];
+        double[] pixel = new double[2];
+        for (int cell = 0; cell < cellKeys.length; cell++) {
+            if (cellKeys[cell] == EMPTY || cellHeads[cell] < 0) continue;
+
+            // skip the cell if its bounding sphere is behind the camera or outside a side plane
+            long key = cellKeys[cell];
+            offset[0] = (unpack(key, 2) + 0.5) * cellSize - position[0];
+            offset[1] = (unpack(key, 1) + 0.5) * cellSize - position[1];
+            offset[2] = (unpack(key, 0) + 0.5) * cellSize - position[2];
+            Rotation.applyTransposed(rotation, offset, local);
+            double x = local[0], y = local[1], z = local[2];
+            if (z < -radius
+                    || (x - xMin * z) / left < -radius || (xMax * z - x) / right < -radius
+                    || (y - yMin * z) / top < -radius || (yMax * z - y) / bottom < -radius) {
+                continue;
+            }
+
+            // project the landmarks of the cell
+            for (int slot = cellHeads[cell]; slot >= 0; slot = next[slot]) {
+                for (int i = 0; i < 3; i++) {
+                    offset[i] = positions[3 * slot + i] - position[i];
+                }
+                Rotation.applyTransposed(rotation, offset, local);
+                if (!(local[2] > 0)) continue;
+                double u = local[0] / local[2];
+                double v = local[1] / local[2];
+                if (u < xMin || u > xMax || v < yMin || v > yMax) continue;
+                Rectification.distort(distortion, u, v, pixel);
+                double column = fx * pixel[0] + cx;
+                double row = fy * pixel[1] + cy;
+                if (column < margin || column > width - 1 - margin || row < margin || row > height - 1 - margin) continue;
+
+                if (count == visible.length) {
+                    visible = Arrays.copyOf(visible, Math.max(256, 2 * count));
+                    projected = Arrays.copyOf(projected, 2 * visible.length);
+                }
+                visible[count] = slot;
+                projected[2 * count] = column;
+                projected[2 * count + 1] = row;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a landmark found by the last query.
+     *
+     * @param i the index of the landmark in the query
+     *
+     * @return the slot of the landmark
+     */
+    int visible(int i) {
+        return visible[i];
+    }
+
+    /**
+     * Returns the pixel of a landmark found by the last query.
+     *
+     * @param i the index of the landmark in the query
+     * @param axis 0 for the column, 1 for the row
+     *
+     * @return the coordinate of the pixel
+     */
+    double projected(int i, int axis) {
+        return projected[2 * i + axis];
+    }
+
+    /**
+     * Matches the landmarks in view of a pose with the features of its image, by the SAD of their windows within a
+     * radius of their projections. Every landmark keeps its best feature, and every feature its best landmark.
+     *
+     * @param image the features of the image
+     * @param rotation the row-major 3x3 rotation from the camera to the world frame
+     * @param position the position of the camera in the world frame
+     * @param radius the search radius in pixels around every projection
+     * @param matches the output matches
+     *
+     * @return the number of matches
+     */
+    int match(FeatureInfo image, double[] rotation, double[] position, int radius, Matches matches) {
+        int width = image.width;
+        int height = image.height;
+        int count = query(rotation, position, width, height, PATCH_RADIUS);
+
+        // the best feature of every landmark in view, kept only if the feature has no better landmark
+        if (bestKeys.length < count) {
+            bestKeys = new int[count];
+            bestSads = new int[count];
+        }
+        int mask = clearClaims(count);
+        int claimed = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = visible[i];
+            int row = (int) Math.round(projected[2 * i + 1]);
+            int column = (int) Math.round(projected[2 * i]);
+            int bestSad = MAX_MATCH_SAD + 1;
+            int bestKey = -1;
+            for (int r = Math.max(PATCH_RADIUS, row - radius); r <= Math.min(height - 1 - PATCH_RADIUS, row + radius); r++) {
+                for (int c = Math.max(PATCH_RADIUS, column - radius); c <= Math.min(width - 1 - PATCH_RADIUS, column + radius); c++) {
+                    if (image.features[r][c] == 0) continue;
+                    int sad = sad(slot, image, r, c);
+                    if (sad < bestSad) {
+                        bestSad = sad;
+                        bestKey = r * width + c;
+                    }
+                }
+            }
+            bestKeys[i] = bestKey;
+            bestSads[i] = bestSad;
+            if (bestKey < 0) continue;
+            int entry = findClaim(bestKey, mask);
+            if (claimKeys[entry] == NO_CLAIM) {
+                claimKeys[entry] = bestKey;
+                claimants[entry] = i;
+                claimed++;
+            } else if (bestSad < bestSads[claimants[entry]]) {
+                claimants[entry] = i;
+            }
+        }
+
+        // gather the mutual matches
+        matches.count = 0;
+        matches.ensureCapacity(claimed);
+        for (int i = 0; i < count; i++) {
+            if (bestKeys[i] < 0 || claimants[findClaim(bestKeys[i], mask)] != i) continue;
+            int n = matches.count++;
+            matches.landmarks[n] = visible[i];
+            matches.keys[n] = bestKeys[i];
+            matches.sads[n] = bestSads[i];
+        }
+        return matches.count;
+    }
+
+    /**
+     * Empties the claims table, growing it to at most half full with a number of claims.
+     *
+     * @param count the largest number of claims
+     *
+     * @return the mask mapping a hash to an entry of the table
+     */
+    private int clearClaims(int count) {
+        int length = Math.max(2, Integer.highestOneBit(Math.max(1, 2 * count - 1)) << 1);
+        if (claimKeys.length < length) {
+            claimKeys = new int[length];
+            claimants = new int[length];
+        }
+        Arrays.fill(claimKeys, 0, length, NO_CLAIM);
+        return length - 1;
+    }
+
+    /**
+     * Finds the entry of a feature in the claims table by linear probing.
+     *
+     * @param key the pixel key of the feature
+     * @param mask the mask of the table in use
+     *
+     * @return the entry holding the feature, or the empty entry where it would be inserted
+     */
+    private int findClaim(int key, int mask) {
+        int entry = (key * 0x9E3779B9 >>> 16) & mask;
+        while (claimKeys[entry] != NO_CLAIM && claimKeys[entry] != key) {
+            entry = (entry + 1) & mask;
+        }
+        return entry;
+    }
+
+    /**
+     * Computes the SAD between the window of a landmark and the window around a pixel of an image.
+     */
+    private int sad(int slot, FeatureInfo image, int row, int column) {
+        int sum = 0;
+        int k = slot * PATCH_AREA;
+        for (int i = -PATCH_RADIUS; i <= PATCH_RADIUS; i++) {
+            int[] line = image.image[row + i];
+            for (int j = -PATCH_RADIUS; j <= PATCH_RADIUS; j++) {
+                sum += Math.abs((patches[k++] & 0xFF) - line[column + j]);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Copies the window of image around a feature into the window of a landmark.
+     */
+    private void copyPatch(FeatureInfo image, int row, int column, int slot) {
+        int k = slot * PATCH_AREA;
+        for (int i = -PATCH_RADIUS; i <= PATCH_RADIUS; i++) {
+            int[] line = image.image[row + i];
+            for (int j = -PATCH_RADIUS; j <= PATCH_RADIUS; j++) {
+                patches[k++] = (byte) line[column + j];
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently seen tenth of the landmarks, breaking ties by slot, so that no more than that goes
+     * even when most landmarks were seen in the same keyframe.
+     */
+    private void evictLeastRecent() {
+        long[] seen = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (cellOf[slot] >= 0) {
+                seen[n++] = lastSeen[slot];
+            }
+        }
+        Arrays.sort(seen);
+
+        // evict every landmark seen before the cutoff, then the ones seen at it until the quota is met
+        int quota = Math.max(1, (int) (EVICTION_FRACTION * n));
+        long cutoff = seen[quota - 1];
+        int evicted = evictBefore(cutoff);
+        for (int slot = 0; slot < slots && evicted < quota; slot++) {
+            if (cellOf[slot] >= 0 && lastSeen[slot] == cutoff) {
+                evict(slot);
+                evicted++;
+            }
+        }
+    }
+
+    /**
+     * Evicts every landmark last seen before a keyframe.
+     *
+     * @param keyframe the number of the keyframe
+     *
+     * @return the number of landmarks evicted
+     */
+    private int evictBefore(long keyframe) {
+        int evicted = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (cellOf[slot] >= 0 && lastSeen[slot] < keyframe) {
+                evict(slot);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts a landmark, freeing its slot.
+     */
+    private void evict(int slot) {
+        unlink(slot);
+        next[slot] = free;
+        free = slot;
+        size--;
+        evictions++;
+    }
+
+    /**
+     * Adds a slot to the list of the cell its position falls in, creating the cell if needed.
+     */
+    private void link(int slot) {
+        long key = pack(positions[3 * slot], positions[3 * slot + 1], positions[3 * slot + 2]);
+        int cell = find(key);
+        if (cellKeys[cell] == EMPTY) {
+            if (cellsUsed + 1 > MAX_LOAD * cellKeys.length) {
+                rebuildCells();
+                cell = find(key);
+            }
+            cellKeys[cell] = key;
+            cellHeads[cell] = -1;
+            cellsUsed++;
+        }
+        next[slot] = cellHeads[cell];
+        cellHeads[cell] = slot;
+        cellOf[slot] = cell;
+    }
+
+    /**
+     * Removes a slot from the list of its cell, leaving the cell in the table even if it empties.
+     */
+    private void unlink(int slot) {
+        int cell = cellOf[slot];
+        if (cellHeads[cell] == slot) {
+            cellHeads[cell] = next[slot];
+        } else {
+            int previous = cellHeads[cell];
+            while (next[previous] != slot) {
+                previous = next[previous];
+            }
+            next[previous] = next[slot];
+        }
+        cellOf[slot] = -1;
+    }
+
+    /**
+     * Finds the entry of a cell in the hash table by linear probing.
+     *
+     * @param key the packed coordinates of the cell
+     *
+     * @return the entry holding the cell, or the empty entry where it would be inserted
+     */
+    private int find(long key) {
+        int mask = cellKeys.length - 1;
+        int cell = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (cellKeys[cell] != EMPTY && cellKeys[cell] != key) {
+            cell = (cell + 1) & mask;
+        }
+        return cell;
+    }
+
+    /**
+     * Rebuilds the hash table with only the cells that hold landmarks, doubling it if they fill half of it.
+     */
+    private void rebuildCells() {
+        int live = 0;
+        for (int cell = 0; cell < cellKeys.length; cell++) {
+            if (cellKeys[cell] != EMPTY && cellHeads[cell] >= 0) {
+                live++;
+            }
+        }
+        long[] oldKeys = cellKeys;
+        int[] oldHeads = cellHeads;
+        allocateCells(live + 1 > MAX_LOAD * oldKeys.length / 2 ? 2 * oldKeys.length : oldKeys.length);
+        for (int old = 0; old < oldKeys.length; old++) {
+            if (oldKeys[old] == EMPTY || oldHeads[old] < 0) continue;
+            int cell = find(oldKeys[old]);
+            cellKeys[cell] = oldKeys[old];
+            cellHeads[cell] = oldHeads[old];
+            cellsUsed++;
+            for (int slot = oldHeads[old]; slot >= 0; slot = next[slot]) {
+                cellOf[slot] = cell;
+            }
+        }
+    }
+
+    /**
+     * Allocates an empty hash table.
+     *
+     * @param length the number of entries, a power of two
+     */
+    private void allocateCells(int length) {
+        cellKeys = new long[length];
+        Arrays.fill(cellKeys, EMPTY);
+        cellHeads = new int[length];
+        cellsUsed = 0;
+    }
+
+    /**
+     * Grows the landmark arrays.
+     *
+     * @param length the number of slots
+     */
+    private void grow(int length) {
+        positions = Arrays.copyOf(positions, 3 * length);
+        patches = Arrays.copyOf(patches, PATCH_AREA * length);
+        observations = Arrays.copyOf(observations, length);
+        lastSeen = Arrays.copyOf(lastSeen, length);
+        next = Arrays.copyOf(next, length);
+        cellOf = Arrays.copyOf(cellOf, length);
+    }
+
+    /**
+     * Packs the coordinates of the cell of a position into a key, 21 bits per axis, clamping positions beyond them.
+     */
+    private long pack(double x, double y, double z) {
+        return (coordinate(x) << (2 * COORDINATE_BITS)) | (coordinate(y) << COORDINATE_BITS) | coordinate(z);
+    }
+
+    /**
+     * Returns the cell coordinate of a position along one axis, as its low 21 bits.
+     */
+    private long coordinate(double value) {
+        long limit = (1L << (COORDINATE_BITS - 1)) - 1;
+        long cell = Math.max(-limit, Math.min(limit, (long) Math.floor(value / cellSize)));
+        return cell & ((1L << COORDINATE_BITS) - 1);
+    }
+
+    /**
+     * Unpacks one coordinate of a key.
+     *
+     * @param key the packed coordinates
+     * @param axis 2 for x, 1 for y, 0 for z
+     *
+     * @return the signed cell coordinate
+     */
+    private static long unpack(long key, int axis) {
+        long bits = (key >>> (axis * COORDINATE_BITS)) & ((1L << COORDINATE_BITS) - 1);
+        return (bits << (64 - COORDINATE_BITS)) >> (64 - COORDINATE_BITS);
+    }
+
+    /**
+     * Computes the length of a vector.
+     */
+    private static double norm(double[] v) {
+        return Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    }
+
+    /**
+     * The matches between map landmarks and the features of an image, in flat arrays reused across queries.
+     */
+    static final class Matches {
+        int count;                  // number of matches
+        int[] landmarks = new int[0]; // slot of the landmark of each match
+        int[] keys = new int[0];    // pixel key of the feature of each match, row * width + column
+        int[] sads = new int[0];    // SAD between the windows of each match
+
+        /**
+         * Grows the arrays to hold a number of matches.
+         */
+        void ensureCapacity(int capacity) {
+            if (landmarks.length < capacity) {
+                landmarks = new int[capacity];
+                keys = new int[capacity];
+                sads = new int[capacity];
+            }
+        }
+    }
+}
@@ -1,22 +1,30 @@
 package org.vapor;
 
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
+import java.util.Arrays;
 
 public class Motion {
-    public Mat rotation;    // 3x3 rotation matrix
-    public Mat translation; // 3x1 translation vector
-    public double score;    // score of the motion
+    public double[] rotation;    // 3x1 Rodrigues rotation vector
+    public double[] translation; // 3x1 translation vector
+    public double score;         // score of the motion
+    public int inliers;          // number of correspondences agreeing with the motion
+    public int hypotheses;       // number of hypotheses drawn to find the motion
+    public boolean converged;    // whether enough hypotheses were drawn to reach the target confidence
 
     public Motion() {
         // initialize with identity rotation and zero translation
-        rotation = Mat.eye(3, 3, CvType.CV_64F);
-        translation = Mat.zeros(3, 1, CvType.CV_64F);
+        rotation = new double[3];
+        translation = new double[3];
     }
 
-    public Motion(Mat rotation, Mat translation) {
+    public Motion(double[] rotation, double[] translation) {
         this.rotation = rotation;
         this.translation = translation;
         this.score = 0;
     }
-}
\ No newline at end of file
+
+    @Override
+    public String toString() {
+        return "Motion{rotation=" + Arrays.toString(rotation) + ", translation=" + Arrays.toString(translation) + ", score=" + score
+                + ", inliers=" + inliers + ", hypotheses=" + hypotheses + ", converged=" + converged + "}";
+    }
+}
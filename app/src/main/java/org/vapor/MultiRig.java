@@ -0,0 +1,308 @@
+package org.vapor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the visual odometry of several stereo rigs in one process, on one shared work-stealing pool.
+ *
+ * Every rig has its own odometry engine, so rigs share no state besides the pool. A rig processes its frames one at a
+ * time, and the rigs waiting for their next frame stand in one shared first in, first out queue. A fixed number of
+ * turn tasks, no more than the pool's workers or the rigs, each take the rig at the head of the queue, detect the two
+ * images of its frame concurrently, match them, estimate the pose, and put the rig back at the tail. The rigs thus take
+ * turns frame by frame whatever the pool does with its own queues, and the RANSAC work of every frame is spread across
+ * whichever workers are idle. A rig never has more than one frame in flight, and every estimation runs under a time
+ * budget, so a rig with a hard scene slows down its own frame rate, not the latency of the others.
+ */
+public class MultiRig implements AutoCloseable {
+    /** The default wall-clock time budget of one motion estimation, in nanoseconds. */
+    public static final long DEFAULT_ESTIMATION_BUDGET = 20_000_000;
+
+    /* The pool shared by every rig, and whether it was created here. */
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    /* The rigs, in the order they were given. */
+    private final List<Rig> rigs = new ArrayList<>();
+
+    /**
+     * Constructs the odometry of several rigs on a new pool with one worker per core and the default estimation budget.
+     *
+     * @param cameras the stereo camera system of each rig
+     * @param seed the seed of the estimations of every rig
+     */
+    public MultiRig(List<Stereo> cameras, long seed) {
+        this(cameras, new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true), true, DEFAULT_ESTIMATION_BUDGET, seed);
+    }
+
+    /**
+     * Constructs the odometry of several rigs on a given pool.
+     *
+     * @param cameras the stereo camera system of each rig
+     * @param pool the pool shared by every rig, which is not shut down on close
+     * @param estimationBudget the wall-clock time budget of one motion estimation in nanoseconds
+     * @param seed the seed of the estimations of every rig
+     */
+    public MultiRig(List<Stereo> cameras, ForkJoinPool pool, long estimationBudget, long seed) {
+        this(cameras, pool, false, estimationBudget, seed);
+    }
+
+    private MultiRig(List<Stereo> cameras, ForkJoinPool pool, boolean ownsPool, long estimationBudget, long seed) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        SplittableRandom seeds = new SplittableRandom(seed);
+        for (int i = 0; i < cameras.size(); i++) {
+            RANSAC ransac = new RANSAC(pool, RANSAC.DEFAULT_CONFIDENCE, estimationBudget);
+            rigs.add(new Rig(i, new VisualOdometry(cameras.get(i), ransac, seeds.nextLong())));
+        }
+    }
+
+    /**
+     * Processes the frame stream of every rig, returning once every stream has ended. The poses of one rig are emitted
+     * in order, but the poses of different rigs are emitted concurrently from the pool's workers.
+     *
+     * @param streams the frames of each rig, in the order the rigs were given
+     * @param output the consumer of the poses, which must be safe to call from several threads
+     */
+    public void run(List<Iterator<Frame>> streams, RigConsumer output) {
+        if (streams.size() != rigs.size()) {
+            throw new IllegalArgumentException("Expected " + rigs.size() + " frame streams, got " + streams.size() + ".");
+        }
+        CountDownLatch done = new CountDownLatch(rigs.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ConcurrentLinkedQueue<RigTask> waiting = new ConcurrentLinkedQueue<>();
+        for (Rig rig : rigs) {
+            waiting.add(new RigTask(rig, streams.get(rig.index), output, done, failure));
+        }
+        int turns = Math.min(rigs.size(), pool.getParallelism());
+        for (int i = 0; i < turns; i++) {
+            pool.execute(new Turn(waiting));
+        }
+
+        // wait for every stream to end, or for the first failure to stop them all
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        }
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new RuntimeException("A rig failed.", cause);
+        }
+    }
+
+    /**
+     * Returns the odometry engine of a rig.
+     *
+     * @param rig the index of the rig
+     *
+     * @return the odometry engine of the rig
+     */
+    public VisualOdometry getOdometry(int rig) {
+        return rigs.get(rig).odometry;
+    }
+
+    /**
+     * Returns the number of frames a rig has processed.
+     *
+     * @param rig the index of the rig
+     *
+     * @return the number of frames processed
+     */
+    public long getFrames(int rig) {
+        return rigs.get(rig).frames;
+    }
+
+    /**
+     * Returns the longest time a rig took on one frame, from the start of its detection to its pose.
+     *
+     * @param rig the index of the rig
+     *
+     * @return the maximum latency in nanoseconds
+     */
+    public long getMaxLatencyNanos(int rig) {
+        return rigs.get(rig).maxLatencyNanos;
+    }
+
+    /**
+     * Returns the average time a rig took on one frame.
+     *
+     * @param rig the index of the rig
+     *
+     * @return the mean latency in nanoseconds, or 0 before the first frame
+     */
+    public long getMeanLatencyNanos(int rig) {
+        Rig r = rigs.get(rig);
+        return r.frames == 0 ? 0 : r.totalLatencyNanos / r.frames;
+    }
+
+    /**
+     * Returns the number of rigs.
+     *
+     * @return the number of rigs
+     */
+    public int size() {
+        return rigs.size();
+    }
+
+    /**
+     * Stops the background work of every rig, and shuts the pool down if it was created here.
+     */
+    @Override
+    public void close() {
+        for (Rig rig : rigs) {
+            rig.odometry.close();
+        }
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A consumer of the poses of several rigs.
+     */
+    @FunctionalInterface
+    public interface RigConsumer {
+        /**
+         * Accepts the pose of one frame of a rig.
+         *
+         * @param rig the index of the rig
+         * @param pose the pose of the frame
+         */
+        void accept(int rig, Pose pose);
+    }
+
+    /**
+     * The odometry engine of one rig and its latency metrics, written only by the turn running the rig.
+     */
+    private static final class Rig {
+        final int index;
+        final VisualOdometry odometry;
+        volatile long frames;
+        volatile long totalLatencyNanos;
+        volatile long maxLatencyNanos;
+
+        Rig(int index, VisualOdometry odometry) {
+            this.index = index;
+            this.odometry = odometry;
+        }
+    }
+
+    /**
+     * Runs one frame of the rig at the head of the waiting queue and puts the rig back at the tail, then queues itself
+     * again for the next turn. A turn that finds no rig waiting ends, since every rig left is in flight on another turn.
+     */
+    private final class Turn implements Runnable {
+        private final ConcurrentLinkedQueue<RigTask> waiting;
+
+        Turn(ConcurrentLinkedQueue<RigTask> waiting) {
+            this.waiting = waiting;
+        }
+
+        @Override
+        public void run() {
+            RigTask task = waiting.poll();
+            if (task == null) {
+                return;
+            }
+            if (task.step()) {
+                waiting.add(task);
+            }
+            pool.execute(this);
+        }
+    }
+
+    /**
+     * Processes the frames of a rig, one per turn.
+     */
+    private static final class RigTask {
+        private final Rig rig;
+        private final Iterator<Frame> frames;
+        private final RigConsumer output;
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure;
+
+        RigTask(Rig rig, Iterator<Frame> frames, RigConsumer output, CountDownLatch done, AtomicReference<Throwable> failure) {
+            this.rig = rig;
+            this.frames = frames;
+            this.output = output;
+            this.done = done;
+            this.failure = failure;
+        }
+
+        /**
+         * Processes the next frame of the rig.
+         *
+         * @return true if the rig has more frames to process, false once its stream ended or a rig failed
+         */
+        boolean step() {
+            try {
+                if (failure.get() != null) {
+                    done.countDown();
+                    return false;
+                }
+                Frame frame = load();
+                if (frame == null) {
+                    done.countDown();
+                    return false;
+                }
+
+                // detect the other image in a subtask while this worker detects the reference image
+                VisualOdometry odometry = rig.odometry;
+                Stereo cameras = odometry.getCameras();
+                ForkJoinTask<VisualOdometry.Detected> right = ForkJoinTask.adapt(
+                        () -> odometry.detectForKeyframe(odometry.rightDetection, cameras.getOtherImage(frame))).fork();
+                VisualOdometry.Detected left = odometry.detect(odometry.leftDetection, cameras.getReferenceImage(frame));
+                Pose pose = odometry.estimate(odometry.match(left, right.join()));
+
+                rig.frames++;
+                rig.totalLatencyNanos += pose.totalNanos;
+                if (pose.totalNanos > rig.maxLatencyNanos) {
+                    rig.maxLatencyNanos = pose.totalNanos;
+                }
+                output.accept(rig.index, pose);
+                return true;
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                done.countDown();
+                return false;
+            }
+        }
+
+        /**
+         * Loads the next frame, letting the pool make up for the worker blocked on reading the images.
+         *
+         * @return the frame, or null at the end of the stream
+         */
+        private Frame load() throws InterruptedException {
+            Frame[] loaded = new Frame[1];
+            boolean[] ended = new boolean[1];
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() {
+                    if (frames.hasNext()) {
+                        loaded[0] = frames.next();
+                    } else {
+                        ended[0] = true;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return loaded[0] != null || ended[0];
+                }
+            });
+            return loaded[0];
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.vapor;
+
+/**
+ * Loads the OpenCV native library once per process.
+ *
+ * The library is loaded from the path in the {@value #PATH_PROPERTY} system property if it is set, so that a system
+ * build of OpenCV can be used, and otherwise extracted from the OpenCV jar for the current platform.
+ */
+public final class OpenCVLibrary {
+    /** The system property holding the path of the native library to load instead of the bundled one. */
+    public static final String PATH_PROPERTY = "vapor.opencv.library";
+
+    /* Whether the library has been loaded. */
+    private static boolean loaded;
+
+    private OpenCVLibrary() {
+    }
+
+    /**
+     * Loads the native library, unless it has been loaded already.
+     */
+    public static synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        String path = System.getProperty(PATH_PROPERTY);
+        if (path != null && !path.isEmpty()) {
+            System.load(path);
+        } else {
+            nu.pattern.OpenCV.loadLocally();
+        }
+        loaded = true;
+    }
+}
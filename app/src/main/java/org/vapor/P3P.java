@@ -0,0 +1,337 @@
+package org.vapor;
+
+/**
+ * A minimal pure-Java perspective-three-point solver, used to generate RANSAC hypotheses from 4-point samples.
+ *
+ * The first three correspondences are solved with Grunert's method, which reduces the distances along the three
+ * viewing rays to the real roots of a quartic, giving up to four candidate poses. Each candidate pose is recovered
+ * in closed form by aligning orthonormal frames built from the three points, and the fourth correspondence picks the
+ * candidate with the smallest reprojection error.
+ *
+ * The solver works on normalized (undistorted pinhole) image coordinates and keeps all of its scratch space in the
+ * instance, so solving does not allocate. An instance must not be shared between threads.
+ */
+public class P3P {
+    /** Coefficients and denominators below this magnitude are treated as zero. */
+    private static final double EPSILON = 1E-12;
+
+    /** The number of Newton iterations used to polish each root of the quartic. */
+    private static final int POLISH_ITERATIONS = 2;
+
+    /* The unit bearing vectors of the first three correspondences, interleaved {x, y, z}. */
+    private final double[] bearings = new double[9];
+
+    /* The world points of the first three correspondences, interleaved {x, y, z}. */
+    private final double[] world = new double[9];
+
+    /* The camera frame points of the current candidate, interleaved {x, y, z}. */
+    private final double[] camera = new double[9];
+
+    /* The real roots of the quartic. */
+    private final double[] roots = new double[4];
+
+    /* The orthonormal frames of the world and camera triangles, as row-major 3x3 matrices with the axes as columns. */
+    private final double[] worldFrame = new double[9];
+    private final double[] cameraFrame = new double[9];
+
+    /* The rotation and translation of the current candidate. */
+    private final double[] candidateR = new double[9];
+    private final double[] candidateT = new double[3];
+
+    /**
+     * Solves for the camera pose from four correspondences, writing the pose that maps world points into the camera
+     * frame, X_c = R * X_w + t.
+     *
+     * @param points2D the normalized image coordinates of all correspondences, interleaved {x, y}
+     * @param points3D the world coordinates of all correspondences, interleaved {x, y, z}
+     * @param sample the indices of the four correspondences to use, the fourth used for disambiguation
+     * @param R the row-major 3x3 output rotation
+     * @param t the 3x1 output translation
+     *
+     * @return true if a pose was found, otherwise the outputs are left unchanged
+     */
+    public boolean solve(double[] points2D, double[] points3D, int[] sample, double[] R, double[] t) {
+        // gather the bearing vectors and world points of the first three correspondences
+        for (int i = 0; i < 3; i++) {
+            int index = sample[i];
+            double x = points2D[2 * index];
+            double y = points2D[2 * index + 1];
+            double norm = 1 / Math.sqrt(x * x + y * y + 1);
+            bearings[3 * i] = x * norm;
+            bearings[3 * i + 1] = y * norm;
+            bearings[3 * i + 2] = norm;
+            world[3 * i] = points3D[3 * index];
+            world[3 * i + 1] = points3D[3 * index + 1];
+            world[3 * i + 2] = points3D[3 * index + 2];
+        }
+
+        // squared side lengths of the world triangle, opposite to each point
+        double a2 = squaredDistance(world, 1, 2);
+        double b2 = squaredDistance(world, 0, 2);
+        double c2 = squaredDistance(world, 0, 1);
+        if (a2 < EPSILON || b2 < EPSILON || c2 < EPSILON) {
+            return false;
+        }
+
+        // cosines of the angles between the viewing rays
+        double cosAlpha = dot(bearings, 1, 2);
+        double cosBeta = dot(bearings, 0, 2);
+        double cosGamma = dot(bearings, 0, 1);
+
+        // Grunert's quartic in v = s3 / s1
+        double acb = (a2 - c2) / b2;
+        double apcb = (a2 + c2) / b2;
+        double cb = c2 / b2;
+        double ab = a2 / b2;
+        double bcb = (b2 - c2) / b2;
+        double bab = (b2 - a2) / b2;
+        double cosAlpha2 = cosAlpha * cosAlpha;
+        double cosBeta2 = cosBeta * cosBeta;
+        double cosGamma2 = cosGamma * cosGamma;
+
+        double A4 = (acb - 1) * (acb - 1) - 4 * cb * cosAlpha2;
+        double A3 = 4 * (acb * (1 - acb) * cosBeta - (1 - apcb) * cosAlpha * cosGamma + 2 * cb * cosAlpha2 * cosBeta);
+        double A2 = 2 * (acb * acb - 1 + 2 * acb * acb * cosBeta2 + 2 * bcb * cosAlpha2
+                - 4 * apcb * cosAlpha * cosBeta * cosGamma + 2 * bab * cosGamma2);
+        double A1 = 4 * (-acb * (1 + acb) * cosBeta + 2 * ab * cosGamma2 * cosBeta - (1 - apcb) * cosAlpha * cosGamma);
+        double A0 = (1 + acb) * (1 + acb) - 4 * ab * cosGamma2;
+
+        int count = solveQuartic(A4, A3, A2, A1, A0, roots);
+
+        // recover the pose of each root and keep the one that best reprojects the fourth point
+        int check = sample[3];
+        double bestError = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            double v = roots[i];
+            double denominator = 2 * (cosGamma - v * cosAlpha);
+            if (Math.abs(denominator) < EPSILON) continue;
+            double u = ((acb - 1) * v * v - 2 * acb * cosBeta * v + 1 + acb) / denominator;
+
+            // distances along the viewing rays
+            double s1Squared = b2 / (1 + v * v - 2 * v * cosBeta);
+            if (!(s1Squared > 0) || u <= 0 || v <= 0) continue;
+            double s1 = Math.sqrt(s1Squared);
+            double s2 = u * s1;
+            double s3 = v * s1;
+            for (int j = 0; j < 3; j++) {
+                camera[j] = s1 * bearings[j];
+                camera[3 + j] = s2 * bearings[3 + j];
+                camera[6 + j] = s3 * bearings[6 + j];
+            }
+
+            // align the camera and world triangles
+            if (!alignTriangles()) continue;
+
+            // reproject the fourth point
+            double X = points3D[3 * check];
+            double Y = points3D[3 * check + 1];
+            double Z = points3D[3 * check + 2];
+            double xc = candidateR[0] * X + candidateR[1] * Y + candidateR[2] * Z + candidateT[0];
+            double yc = candidateR[3] * X + candidateR[4] * Y + candidateR[5] * Z + candidateT[1];
+            double zc = candidateR[6] * X + candidateR[7] * Y + candidateR[8] * Z + candidateT[2];
+            if (zc <= 0) continue;
+            double dx = xc / zc - points2D[2 * check];
+            double dy = yc / zc - points2D[2 * check + 1];
+            double error = dx * dx + dy * dy;
+            if (error < bestError) {
+                bestError = error;
+                System.arraycopy(candidateR, 0, R, 0, 9);
+                System.arraycopy(candidateT, 0, t, 0, 3);
+            }
+        }
+
+        return bestError < Double.MAX_VALUE;
+    }
+
+    /**
+     * Computes the rigid transform taking the world triangle onto the camera triangle, by building an orthonormal
+     * frame on each triangle and composing them, R = F_c * F_w^T and t = P_c1 - R * P_w1.
+     *
+     * @return false if either triangle is degenerate
+     */
+    private boolean alignTriangles() {
+        if (!buildFrame(world, worldFrame) || !buildFrame(camera, cameraFrame)) {
+            return false;
+        }
+        Rotation.multiplyByTransposed(cameraFrame, worldFrame, candidateR);
+        candidateT[0] = camera[0] - (candidateR[0] * world[0] + candidateR[1] * world[1] + candidateR[2] * world[2]);
+        candidateT[1] = camera[1] - (candidateR[3] * world[0] + candidateR[4] * world[1] + candidateR[5] * world[2]);
+        candidateT[2] = camera[2] - (candidateR[6] * world[0] + candidateR[7] * world[1] + candidateR[8] * world[2]);
+        return true;
+    }
+
+    /**
+     * Builds an orthonormal frame on a triangle: the first axis along the first edge, the second in the plane of the
+     * triangle, and the third along the normal.
+     *
+     * @param points the three points of the triangle, interleaved {x, y, z}
+     * @param frame the row-major 3x3 output matrix, with the axes as columns
+     *
+     * @return false if the triangle is degenerate
+     */
+    private static boolean buildFrame(double[] points, double[] frame) {
+        double e1x = points[3] - points[0];
+        double e1y = points[4] - points[1];
+        double e1z = points[5] - points[2];
+        double n1 = Math.sqrt(e1x * e1x + e1y * e1y + e1z * e1z);
+        if (n1 < EPSILON) return false;
+        e1x /= n1;
+        e1y /= n1;
+        e1z /= n1;
+
+        double fx = points[6] - points[0];
+        double fy = points[7] - points[1];
+        double fz = points[8] - points[2];
+        double projection = fx * e1x + fy * e1y + fz * e1z;
+        double e2x = fx - projection * e1x;
+        double e2y = fy - projection * e1y;
+        double e2z = fz - projection * e1z;
+        double n2 = Math.sqrt(e2x * e2x + e2y * e2y + e2z * e2z);
+        if (n2 < EPSILON) return false;
+        e2x /= n2;
+        e2y /= n2;
+        e2z /= n2;
+
+        frame[0] = e1x; frame[1] = e2x; frame[2] = e1y * e2z - e1z * e2y;
+        frame[3] = e1y; frame[4] = e2y; frame[5] = e1z * e2x - e1x * e2z;
+        frame[6] = e1z; frame[7] = e2z; frame[8] = e1x * e2y - e1y * e2x;
+        return true;
+    }
+
+    /**
+     * Finds the real roots of a quartic with Ferrari's method, polished with Newton's method.
+     *
+     * @param a the coefficient of x^4
+     * @param b the coefficient of x^3
+     * @param c the coefficient of x^2
+     * @param d the coefficient of x
+     * @param e the constant coefficient
+     * @param roots the output array of at least 4 elements
+     *
+     * @return the number of real roots found
+     */
+    static int solveQuartic(double a, double b, double c, double d, double e, double[] roots) {
+        if (Math.abs(a) < EPSILON) {
+            return 0;
+        }
+
+        // normalize and depress the quartic, x = y - b / 4
+        b /= a;
+        c /= a;
+        d /= a;
+        e /= a;
+        double b2 = b * b;
+        double p = c - 3 * b2 / 8;
+        double q = d - b * c / 2 + b2 * b / 8;
+        double r = e - b * d / 4 + b2 * c / 16 - 3 * b2 * b2 / 256;
+        double shift = -b / 4;
+
+        int count = 0;
+        if (Math.abs(q) < EPSILON) {
+            // biquadratic, solve for y^2
+            double discriminant = p * p - 4 * r;
+            if (discriminant < 0) return 0;
+            double root = Math.sqrt(discriminant);
+            double z1 = (-p + root) / 2;
+            double z2 = (-p - root) / 2;
+            if (z1 >= 0) {
+                roots[count++] = Math.sqrt(z1) + shift;
+                roots[count++] = -Math.sqrt(z1) + shift;
+            }
+            if (z2 >= 0) {
+                roots[count++] = Math.sqrt(z2) + shift;
+                roots[count++] = -Math.sqrt(z2) + shift;
+            }
+        } else {
+            // the resolvent cubic m^3 + p m^2 + (p^2 / 4 - r) m - q^2 / 8 = 0 has a positive root
+            double m = largestCubicRoot(p, p * p / 4 - r, -q * q / 8);
+            if (!(m > 0)) return 0;
+            double sqrt2m = Math.sqrt(2 * m);
+            double offset = q / (2 * sqrt2m);
+            count = solveQuadratic(-sqrt2m, p / 2 + m + offset, roots, 0, shift);
+            count = solveQuadratic(sqrt2m, p / 2 + m - offset, roots, count, shift);
+        }
+
+        // polish the roots against the normalized quartic
+        for (int i = 0; i < count; i++) {
+            double x = roots[i];
+            for (int j = 0; j < POLISH_ITERATIONS; j++) {
+                double f = (((x + b) * x + c) * x + d) * x + e;
+                double df = ((4 * x + 3 * b) * x + 2 * c) * x + d;
+                if (Math.abs(df) < EPSILON) break;
+                x -= f / df;
+            }
+            roots[i] = x;
+        }
+
+        return count;
+    }
+
+    /**
+     * Solves the monic quadratic y^2 + b y + c = 0, appending its shifted real roots.
+     *
+     * @param b the coefficient of y
+     * @param c the constant coefficient
+     * @param roots the output array
+     * @param count the number of roots already in the output array
+     * @param shift the value added to each root
+     *
+     * @return the new number of roots in the output array
+     */
+    private static int solveQuadratic(double b, double c, double[] roots, int count, double shift) {
+        double discriminant = b * b - 4 * c;
+        if (discriminant < 0) return count;
+        double root = Math.sqrt(discriminant);
+        roots[count++] = (-b + root) / 2 + shift;
+        roots[count++] = (-b - root) / 2 + shift;
+        return count;
+    }
+
+    /**
+     * Finds the largest real root of the monic cubic x^3 + a x^2 + b x + c = 0.
+     *
+     * @param a the coefficient of x^2
+     * @param b the coefficient of x
+     * @param c the constant coefficient
+     *
+     * @return the largest real root
+     */
+    private static double largestCubicRoot(double a, double b, double c) {
+        // depress the cubic, x = y - a / 3, to y^3 + p y + q = 0
+        double p = b - a * a / 3;
+        double q = 2 * a * a * a / 27 - a * b / 3 + c;
+        double shift = -a / 3;
+        double discriminant = q * q / 4 + p * p * p / 27;
+
+        if (discriminant > 0) {
+            // one real root, Cardano's formula
+            double root = Math.sqrt(discriminant);
+            return Math.cbrt(-q / 2 + root) + Math.cbrt(-q / 2 - root) + shift;
+        }
+
+        // three real roots, the trigonometric form gives the largest with k = 0
+        double radius = Math.sqrt(Math.max(-p / 3, 0));
+        if (radius < EPSILON) {
+            return Math.cbrt(-q) + shift;
+        }
+        double angle = Math.acos(Math.max(-1, Math.min(1, -q / (2 * radius * radius * radius))));
+        return 2 * radius * Math.cos(angle / 3) + shift;
+    }
+
+    /**
+     * Computes the squared distance between two points of an interleaved array.
+     */
+    private static double squaredDistance(double[] points, int i, int j) {
+        double dx = points[3 * i] - points[3 * j];
+        double dy = points[3 * i + 1] - points[3 * j + 1];
+        double dz = points[3 * i + 2] - points[3 * j + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Computes the dot product of two vectors of an interleaved array.
+     */
+    private static double dot(double[] vectors, int i, int j) {
+        return vectors[3 * i] * vectors[3 * j] + vectors[3 * i + 1] * vectors[3 * j + 1] + vectors[3 * i + 2] * vectors[3 * j + 2];
+    }
+}
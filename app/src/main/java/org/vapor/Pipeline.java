@@ -0,0 +1,189 @@
+package org.vapor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Runs the stages of visual odometry on their own threads, handing frames between them through bounded
+ * single-producer single-consumer queues.
+ *
+ * The source stage loads frames and hands each one to a left and a right detection stage, which detect the two images
+ * concurrently. The matching stage pairs their features up, and the estimation stage, running on the calling thread,
+ * estimates the motion and emits the pose. While frame N is being estimated, frame N+1 is being matched and later
+ * frames are being detected, so the sustained frame rate is set by the slowest stage rather than the sum of all of
+ * them. The queue metrics show which stage that is.
+ */
+public class Pipeline {
+    /** The default number of items each queue holds. */
+    public static final int DEFAULT_CAPACITY = 4;
+
+    /* The odometry engine whose stages are run. */
+    private final VisualOdometry odometry;
+
+    /* The handoff queues, in stream order. */
+    private final SpscQueue<Frame> leftFrames;
+    private final SpscQueue<Frame> rightFrames;
+    private final SpscQueue<VisualOdometry.Detected> leftFeatures;
+    private final SpscQueue<VisualOdometry.Detected> rightFeatures;
+    private final SpscQueue<VisualOdometry.Step> steps;
+
+    /* The first failure of any stage. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Constructs a pipeline with queues of the default capacity.
+     *
+     * @param odometry the odometry engine whose stages are run, which must not be used elsewhere while running
+     */
+    public Pipeline(VisualOdometry odometry) {
+        this(odometry, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a pipeline.
+     *
+     * @param odometry the odometry engine whose stages are run, which must not be used elsewhere while running
+     * @param capacity the number of items each queue holds, bounding how many frames are in flight
+     */
+    public Pipeline(VisualOdometry odometry, int capacity) {
+        this.odometry = odometry;
+        this.leftFrames = new SpscQueue<>("left frames", capacity);
+        this.rightFrames = new SpscQueue<>("right frames", capacity);
+        this.leftFeatures = new SpscQueue<>("left features", capacity);
+        this.rightFeatures = new SpscQueue<>("right features", capacity);
+        this.steps = new SpscQueue<>("correspondences", capacity);
+    }
+
+    /**
+     * Processes every frame of a stream, emitting the pose of each one in order on the calling thread. A pipeline
+     * runs a single stream.
+     *
+     * @param frames the frames, loaded on demand by the source stage
+     * @param output the consumer of the poses
+     */
+    public void run(Iterator<Frame> frames, Consumer<Pose> output) {
+        List<Thread> threads = new ArrayList<>();
+
+        // load frames and hand each one to both detection stages
+        threads.add(stage("vapor-source", () -> {
+            try {
+                while (frames.hasNext()) {
+                    Frame frame = frames.next();
+                    if (!leftFrames.put(frame) || !rightFrames.put(frame)) break;
+                }
+            } finally {
+                leftFrames.close();
+                rightFrames.close();
+            }
+        }));
+
+        // detect the left and right images concurrently, each stage with its own detector, the right images only for
+        // keyframes
+        threads.add(stage("vapor-detect-left", () -> detect(leftFrames, leftFeatures, odometry.leftDetection, true)));
+        threads.add(stage("vapor-detect-right", () -> detect(rightFrames, rightFeatures, odometry.rightDetection, false)));
+
+        // pair the features of each frame up and collect its correspondences
+        threads.add(stage("vapor-match", () -> {
+            try {
+                while (true) {
+                    VisualOdometry.Detected left = leftFeatures.take();
+                    VisualOdometry.Detected right = rightFeatures.take();
+                    if (left == null || right == null) break;
+                    if (!steps.put(odometry.match(left, right))) break;
+                }
+            } finally {
+                steps.close();
+            }
+        }));
+
+        // estimate the poses on this thread, in order
+        try {
+            VisualOdometry.Step step;
+            while ((step = steps.take()) != null) {
+                output.accept(odometry.estimate(step));
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+
+        // wait for the other stages, and rethrow the first failure
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new RuntimeException("A pipeline stage failed.", cause);
+        }
+    }
+
+    /**
+     * Runs a detection stage.
+     *
+     * @param input the frames to detect
+     * @param output the features of the detected images
+     * @param detection the detector of the stage
+     * @param left whether the stage detects the left images
+     */
+    private void detect(SpscQueue<Frame> input, SpscQueue<VisualOdometry.Detected> output, Detection detection, boolean left) {
+        try {
+            Frame frame;
+            while ((frame = input.take()) != null) {
+                VisualOdometry.Detected detected = left
+                        ? odometry.detect(detection, odometry.getCameras().getReferenceImage(frame))
+                        : odometry.detectForKeyframe(detection, odometry.getCameras().getOtherImage(frame));
+                if (!output.put(detected)) break;
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Starts a stage on its own thread, tearing the pipeline down if it fails.
+     *
+     * @param name the name of the thread
+     * @param body the body of the stage
+     *
+     * @return the started thread
+     */
+    private Thread stage(String name, Runnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Records a failure and aborts every queue, so that no stage stays blocked on a stage that has stopped.
+     *
+     * @param cause the failure
+     */
+    private void fail(Throwable cause) {
+        failure.compareAndSet(null, cause);
+        for (SpscQueue<?> queue : getQueues()) {
+            queue.abort();
+        }
+    }
+
+    /**
+     * Returns the handoff queues, whose depth and stall metrics show which stage limits the pipeline.
+     *
+     * @return the queues, in stream order
+     */
+    public List<SpscQueue<?>> getQueues() {
+        return List.of(leftFrames, rightFrames, leftFeatures, rightFeatures, steps);
+    }
+}
@@ -0,0 +1,53 @@
+package org.vapor;
+
+import java.util.Arrays;
+
+/**
+ * The pose of the reference camera after one frame of visual odometry, with the time spent on each stage.
+ */
+public class Pose {
+    public final long frame;           // index of the frame in the stream
+    public final double[] rotation;    // row-major 3x3 rotation from the camera to the world frame
+    public final double[] position;    // 3x1 position of the camera in the world frame
+    public final Motion motion;        // motion from the keyframe before, or null if it could not be estimated
+    public final int features;         // number of features detected in the reference image
+    public final int correspondences;  // number of 2D-3D correspondences the motion was estimated from
+    public final boolean keyframe;     // whether the frame became a keyframe
+
+    public final long detectionNanos;     // time spent detecting features in the frame
+    public final long matchingNanos;      // time spent matching features against the keyframe, and across a new keyframe
+    public final long triangulationNanos; // time spent triangulating the stereo matches of a new keyframe
+    public final long estimationNanos;    // time spent estimating the motion
+    public final long totalNanos;         // time spent on the whole frame
+
+    public Pose(long frame, double[] rotation, double[] position, Motion motion, int features, int correspondences, boolean keyframe,
+                long detectionNanos, long matchingNanos, long triangulationNanos, long estimationNanos, long totalNanos) {
+        this.frame = frame;
+        this.rotation = rotation;
+        this.position = position;
+        this.motion = motion;
+        this.features = features;
+        this.correspondences = correspondences;
+        this.keyframe = keyframe;
+        this.detectionNanos = detectionNanos;
+        this.matchingNanos = matchingNanos;
+        this.triangulationNanos = triangulationNanos;
+        this.estimationNanos = estimationNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Returns whether the motion from the keyframe was estimated, rather than the pose being carried over.
+     *
+     * @return true if the frame was tracked
+     */
+    public boolean isTracked() {
+        return motion != null;
+    }
+
+    @Override
+    public String toString() {
+        return "Pose{frame=" + frame + ", position=" + Arrays.toString(position) + ", tracked=" + isTracked() + ", keyframe=" + keyframe
+                + ", features=" + features + ", correspondences=" + correspondences + ", total=" + totalNanos / 1E6 + " ms}";
+    }
+}
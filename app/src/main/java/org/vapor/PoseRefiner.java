@@ -0,0 +1,363 @@
+package org.vapor;
+
+/**
+ * Levenberg-Marquardt refinement of a camera pose on the inliers of a set of correspondences.
+ *
+ * The pose is updated by a left-multiplied increment {w, v}, X_c' = exp([w]x) (R X + t) + v, so the Jacobian of
+ * each projection is the analytic 2x6 matrix of a pinhole camera in the camera frame, and the normal equations are a
+ * fixed-size 6x6 system solved by Cholesky decomposition. Residuals are measured in normalized coordinates scaled by
+ * the focal length, so that the robust Cauchy weighting and the inlier threshold are expressed in pixels.
+ *
+ * All scratch space is kept in the instance, so an iteration does not allocate. An instance must not be shared
+ * between threads.
+ */
+public class PoseRefiner {
+    /** The deadline meaning that a refinement may run all of its iterations. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** The scale of the Cauchy loss in pixels, residuals much larger than this are strongly down-weighted. */
+    private static final double CAUCHY_SCALE = 1.0;
+
+    /** The initial damping factor, relative to the diagonal of the normal equations. */
+    private static final double INITIAL_LAMBDA = 1E-3;
+
+    /** The factor by which the damping grows after a rejected step and shrinks after an accepted one. */
+    private static final double LAMBDA_FACTOR = 10;
+
+    /** The damping beyond which no step can make progress. */
+    private static final double MAX_LAMBDA = 1E10;
+
+    /** The relative decrease in cost below which the refinement has converged. */
+    private static final double COST_TOLERANCE = 1E-10;
+
+    /* The focal length used to express normalized residuals in pixels. */
+    private final double focal;
+
+    /* The largest pixel error of an inlier. */
+    private final double threshold;
+
+    /* The maximum number of iterations. */
+    private final int maxIterations;
+
+    /* The normal equations H * delta = -g, and the damped copy of H being factorized. */
+    private final double[] H = new double[36];
+    private final double[] damped = new double[36];
+    private final double[] g = new double[6];
+    private final double[] delta = new double[6];
+
+    /* The rows of the Jacobian of one projection. */
+    private final double[] ju = new double[6];
+    private final double[] jv = new double[6];
+
+    /* The current and candidate poses. */
+    private final double[] R = new double[9];
+    private final double[] t = new double[3];
+    private final double[] candidateR = new double[9];
+    private final double[] candidateT = new double[3];
+    private final double[] increment = new double[9];
+
+    /* The indices of the inliers, grown when a larger set of correspondences is refined. */
+    private int[] inliers = new int[0];
+    private int inlierCount;
+
+    /* The number of iterations run by the last refinement. */
+    private int iterations;
+
+    /**
+     * Constructs a pose refiner.
+     *
+     * @param focal the focal length in pixels, used to express residuals in pixels
+     * @param threshold the largest reprojection error in pixels of a correspondence kept for the refinement
+     * @param maxIterations the maximum number of iterations
+     */
+    public PoseRefiner(double focal, double threshold, int maxIterations) {
+        this.focal = focal;
+        this.threshold = threshold;
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Refines a motion in place on the inliers of its initial pose.
+     *
+     * @param motion the motion to refine, its Rodrigues rotation and translation are overwritten
+     * @param correspondences the correspondences, using their normalized image coordinates
+     *
+     * @return the number of inliers the motion was refined on
+     */
+    public int refine(Motion motion, Correspondences correspondences) {
+        return refine(motion, correspondences, NO_DEADLINE);
+    }
+
+    /**
+     * Refines a motion in place on the inliers of its initial pose, starting no iteration after a deadline, so that
+     * the motion is only refined as far as the time left allows.
+     *
+     * @param motion the motion to refine, its Rodrigues rotation and translation are overwritten
+     * @param correspondences the correspondences, using their normalized image coordinates
+     * @param deadline the {@link System#nanoTime} after which no iteration starts, or {@link #NO_DEADLINE}
+     *
+     * @return the number of inliers the motion was refined on
+     */
+    public int refine(Motion motion, Correspondences correspondences, long deadline) {
+        Events.Refinement event = new Events.Refinement();
+        event.begin();
+        Rotation.toMatrix(motion.rotation, R);
+        System.arraycopy(motion.translation, 0, t, 0, 3);
+        iterations = 0;
+
+        // restrict the refinement to the inliers of the initial pose
+        selectInliers(correspondences);
+        if (inlierCount < 3) {
+            commit(event, Double.NaN, Double.NaN);
+            return inlierCount;
+        }
+
+        double lambda = INITIAL_LAMBDA;
+        double cost = buildNormalEquations(correspondences);
+        double initialCost = cost;
+        while (iterations < maxIterations && (deadline == NO_DEADLINE || System.nanoTime() - deadline < 0)) {
+            iterations++;
+
+            // try increasingly damped steps until one lowers the cost
+            boolean accepted = false;
+            while (lambda < MAX_LAMBDA) {
+                if (solveDamped(lambda)) {
+                    applyIncrement();
+                    double candidateCost = cost(correspondences, candidateR, candidateT);
+                    if (candidateCost < cost) {
+                        System.arraycopy(candidateR, 0, R, 0, 9);
+                        System.arraycopy(candidateT, 0, t, 0, 3);
+                        lambda = Math.max(lambda / LAMBDA_FACTOR, 1E-12);
+                        boolean converged = cost - candidateCost < COST_TOLERANCE * cost;
+                        cost = buildNormalEquations(correspondences);
+                        accepted = !converged;
+                        break;
+                    }
+                }
+                lambda *= LAMBDA_FACTOR;
+            }
+            if (!accepted) {
+                break;
+            }
+        }
+
+        Rotation.toVector(R, motion.rotation);
+        System.arraycopy(t, 0, motion.translation, 0, 3);
+        commit(event, initialCost, cost);
+        return inlierCount;
+    }
+
+    /**
+     * Fills in and commits the flight recorder event of the last refinement, if it is enabled.
+     *
+     * @param event the event, begun when the refinement started
+     * @param initialCost the robust cost of the initial pose, NaN if there were too few inliers to refine
+     * @param finalCost the robust cost of the refined pose, NaN if there were too few inliers to refine
+     */
+    private void commit(Events.Refinement event, double initialCost, double finalCost) {
+        if (event.shouldCommit()) {
+            event.inliers = inlierCount;
+            event.iterations = iterations;
+            event.initialCost = initialCost;
+            event.finalCost = finalCost;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the number of iterations run by the last refinement.
+     *
+     * @return the number of iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Collects the correspondences whose reprojection error under the current pose is within the threshold.
+     *
+     * @param correspondences the correspondences
+     */
+    private void selectInliers(Correspondences correspondences) {
+        if (inliers.length < correspondences.size) {
+            inliers = new int[correspondences.size];
+        }
+        inlierCount = 0;
+        double threshold2 = threshold * threshold;
+        double[] world = correspondences.world;
+        double[] normalized = correspondences.normalized;
+        for (int i = 0; i < correspondences.size; i++) {
+            double X = world[3 * i];
+            double Y = world[3 * i + 1];
+            double Z = world[3 * i + 2];
+            double xc = R[0] * X + R[1] * Y + R[2] * Z + t[0];
+            double yc = R[3] * X + R[4] * Y + R[5] * Z + t[1];
+            double zc = R[6] * X + R[7] * Y + R[8] * Z + t[2];
+            if (zc <= 0) continue;
+            double du = focal * (xc / zc - normalized[2 * i]);
+            double dv = focal * (yc / zc - normalized[2 * i + 1]);
+            if (du * du + dv * dv < threshold2) {
+                inliers[inlierCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * Accumulates the Cauchy-weighted normal equations of the current pose over the inliers.
+     *
+     * @param correspondences the correspondences
+     *
+     * @return the robust cost of the current pose
+     */
+    private double buildNormalEquations(Correspondences correspondences) {
+        for (int i = 0; i < 36; i++) {
+            H[i] = 0;
+        }
+        for (int i = 0; i < 6; i++) {
+            g[i] = 0;
+        }
+
+        double c2 = CAUCHY_SCALE * CAUCHY_SCALE;
+        double cost = 0;
+        double[] world = correspondences.world;
+        double[] normalized = correspondences.normalized;
+        for (int k = 0; k < inlierCount; k++) {
+            int i = inliers[k];
+            double X = world[3 * i];
+            double Y = world[3 * i + 1];
+            double Z = world[3 * i + 2];
+            double xc = R[0] * X + R[1] * Y + R[2] * Z + t[0];
+            double yc = R[3] * X + R[4] * Y + R[5] * Z + t[1];
+            double zc = R[6] * X + R[7] * Y + R[8] * Z + t[2];
+            if (zc <= 0) continue;
+            double iz = 1 / zc;
+            double x = xc * iz;
+            double y = yc * iz;
+            double ru = focal * (x - normalized[2 * i]);
+            double rv = focal * (y - normalized[2 * i + 1]);
+
+            // Cauchy loss and its iteratively reweighted least squares weight
+            double r2 = ru * ru + rv * rv;
+            cost += c2 * Math.log(1 + r2 / c2);
+            double weight = 1 / (1 + r2 / c2);
+
+            // analytic Jacobian of the projection with respect to {w, v}
+            ju[0] = -focal * x * y;       ju[1] = focal * (1 + x * x); ju[2] = -focal * y;
+            ju[3] = focal * iz;           ju[4] = 0;                   ju[5] = -focal * x * iz;
+            jv[0] = -focal * (1 + y * y); jv[1] = focal * x * y;       jv[2] = focal * x;
+            jv[3] = 0;                    jv[4] = focal * iz;          jv[5] = -focal * y * iz;
+
+            // accumulate the upper triangle of J^T W J and J^T W r
+            for (int a = 0; a < 6; a++) {
+                double wa = weight * ju[a];
+                double wb = weight * jv[a];
+                for (int b = a; b < 6; b++) {
+                    H[a * 6 + b] += wa * ju[b] + wb * jv[b];
+                }
+                g[a] += wa * ru + wb * rv;
+            }
+        }
+
+        // mirror the upper triangle
+        for (int a = 0; a < 6; a++) {
+            for (int b = 0; b < a; b++) {
+                H[a * 6 + b] = H[b * 6 + a];
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Solves the damped normal equations (H + lambda * diag(H)) delta = -g by Cholesky decomposition.
+     *
+     * @param lambda the damping factor
+     *
+     * @return false if the damped system is not positive definite
+     */
+    private boolean solveDamped(double lambda) {
+        System.arraycopy(H, 0, damped, 0, 36);
+        for (int i = 0; i < 6; i++) {
+            damped[i * 6 + i] += lambda * Math.max(H[i * 6 + i], 1E-12);
+        }
+
+        // factorize in place into the lower triangle, damped = L L^T
+        for (int j = 0; j < 6; j++) {
+            double sum = damped[j * 6 + j];
+            for (int k = 0; k < j; k++) {
+                sum -= damped[j * 6 + k] * damped[j * 6 + k];
+            }
+            if (sum <= 0) {
+                return false;
+            }
+            double diagonal = Math.sqrt(sum);
+            damped[j * 6 + j] = diagonal;
+            for (int i = j + 1; i < 6; i++) {
+                double value = damped[i * 6 + j];
+                for (int k = 0; k < j; k++) {
+                    value -= damped[i * 6 + k] * damped[j * 6 + k];
+                }
+                damped[i * 6 + j] = value / diagonal;
+            }
+        }
+
+        // forward substitution, L y = -g
+        for (int i = 0; i < 6; i++) {
+            double value = -g[i];
+            for (int k = 0; k < i; k++) {
+                value -= damped[i * 6 + k] * delta[k];
+            }
+            delta[i] = value / damped[i * 6 + i];
+        }
+
+        // back substitution, L^T delta = y
+        for (int i = 5; i >= 0; i--) {
+            double value = delta[i];
+            for (int k = i + 1; k < 6; k++) {
+                value -= damped[k * 6 + i] * delta[k];
+            }
+            delta[i] = value / damped[i * 6 + i];
+        }
+        return true;
+    }
+
+    /**
+     * Applies the current step to the pose, candidateR = exp([w]x) R and candidateT = exp([w]x) t + v.
+     */
+    private void applyIncrement() {
+        Rotation.toMatrix(delta, increment);
+        Rotation.multiply(increment, R, candidateR);
+        candidateT[0] = increment[0] * t[0] + increment[1] * t[1] + increment[2] * t[2] + delta[3];
+        candidateT[1] = increment[3] * t[0] + increment[4] * t[1] + increment[5] * t[2] + delta[4];
+        candidateT[2] = increment[6] * t[0] + increment[7] * t[1] + increment[8] * t[2] + delta[5];
+    }
+
+    /**
+     * Computes the robust cost of a pose over the inliers.
+     *
+     * @param correspondences the correspondences
+     * @param R the row-major 3x3 rotation
+     * @param t the 3x1 translation
+     *
+     * @return the Cauchy cost of the pose
+     */
+    private double cost(Correspondences correspondences, double[] R, double[] t) {
+        double c2 = CAUCHY_SCALE * CAUCHY_SCALE;
+        double cost = 0;
+        double[] world = correspondences.world;
+        double[] normalized = correspondences.normalized;
+        for (int k = 0; k < inlierCount; k++) {
+            int i = inliers[k];
+            double X = world[3 * i];
+            double Y = world[3 * i + 1];
+            double Z = world[3 * i + 2];
+            double xc = R[0] * X + R[1] * Y + R[2] * Z + t[0];
+            double yc = R[3] * X + R[4] * Y + R[5] * Z + t[1];
+            double zc = R[6] * X + R[7] * Y + R[8] * Z + t[2];
+            if (zc <= 0) continue;
+            double ru = focal * (xc / zc - normalized[2 * i]);
+            double rv = focal * (yc / zc - normalized[2 * i + 1]);
+            cost += c2 * Math.log(1 + (ru * ru + rv * rv) / c2);
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,96 @@
+package org.vapor;
+
+/**
+ * Projects batches of 3D points into a camera with the 5-coefficient Brown-Conrady distortion model
+ * {k1, k2, p1, p2, k3}, the same model OpenCV uses, without going through native code.
+ *
+ * Points and projections are stored interleaved in flat arrays, so a batch is projected by a single counted loop of
+ * straight-line arithmetic into a buffer the caller reuses. A projection is immutable and can be shared between
+ * threads.
+ */
+public class Projection {
+    /* The intrinsics. */
+    private final double fx, fy, cx, cy;
+
+    /* The distortion coefficients. */
+    private final double k1, k2, p1, p2, k3;
+
+    /**
+     * Constructs a projection.
+     *
+     * @param intrinsics the intrinsics {fx, fy, cx, cy}
+     * @param distortion the distortion coefficients {k1, k2, p1, p2, k3}
+     */
+    public Projection(double[] intrinsics, double[] distortion) {
+        this.fx = intrinsics[0];
+        this.fy = intrinsics[1];
+        this.cx = intrinsics[2];
+        this.cy = intrinsics[3];
+        this.k1 = distortion[0];
+        this.k2 = distortion[1];
+        this.p1 = distortion[2];
+        this.p2 = distortion[3];
+        this.k3 = distortion[4];
+    }
+
+    /**
+     * Constructs the projection of the reference camera of a stereo system.
+     *
+     * @param cameras the stereo camera system
+     */
+    public Projection(Stereo cameras) {
+        this(cameras.getIntrinsics(), cameras.getDistortionCoefficients());
+    }
+
+    /**
+     * Projects a batch of points under a pose, X_c = R X + t.
+     *
+     * @param R the row-major 3x3 rotation
+     * @param t the 3x1 translation
+     * @param points the 3D points, interleaved {x, y, z}
+     * @param count the number of points to project
+     * @param out the output pixel coordinates, interleaved {x, y}, of at least 2 * count values
+     */
+    public void project(double[] R, double[] t, double[] points, int count, double[] out) {
+        double r0 = R[0], r1 = R[1], r2 = R[2];
+        double r3 = R[3], r4 = R[4], r5 = R[5];
+        double r6 = R[6], r7 = R[7], r8 = R[8];
+        double t0 = t[0], t1 = t[1], t2 = t[2];
+        for (int i = 0; i < count; i++) {
+            double X = points[3 * i];
+            double Y = points[3 * i + 1];
+            double Z = points[3 * i + 2];
+            double iz = 1 / (r6 * X + r7 * Y + r8 * Z + t2);
+            double x = (r0 * X + r1 * Y + r2 * Z + t0) * iz;
+            double y = (r3 * X + r4 * Y + r5 * Z + t1) * iz;
+
+            double rr = x * x + y * y;
+            double radial = 1 + rr * (k1 + rr * (k2 + rr * k3));
+            double xy = 2 * x * y;
+            double xd = x * radial + p1 * xy + p2 * (rr + 2 * x * x);
+            double yd = y * radial + p1 * (rr + 2 * y * y) + p2 * xy;
+            out[2 * i] = fx * xd + cx;
+            out[2 * i + 1] = fy * yd + cy;
+        }
+    }
+
+    /**
+     * Computes the Cauchy log-likelihood of the reprojection errors of a batch, -sum(log(1 + |e|^2)), as a sum of logs
+     * so that it neither underflows nor overflows however many points are scored.
+     *
+     * @param projected the projected pixel coordinates, interleaved {x, y}
+     * @param observed the observed pixel coordinates, interleaved {x, y}
+     * @param count the number of points
+     *
+     * @return the log-likelihood, higher is better
+     */
+    public static double logLikelihood(double[] projected, double[] observed, int count) {
+        double sum = 0;
+        for (int i = 0; i < 2 * count; i += 2) {
+            double dx = projected[i] - observed[i];
+            double dy = projected[i + 1] - observed[i + 1];
+            sum += Math.log(1 + dx * dx + dy * dy);
+        }
+        return -sum;
+    }
+}
@@ -1,88 +1,223 @@
 package org.vapor;
 
-import org.opencv.calib3d.Calib3d;
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
 import org.opencv.core.Point3;
-import org.opencv.core.Scalar;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Collections;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
+/**
+ * Preemptive RANSAC for the camera motion from 2D-3D correspondences.
+ *
+ * Hypotheses are generated in batches. Each batch is scored with a preemption schedule, and its winner is evaluated
+ * on every correspondence to update the best inlier ratio seen so far, from which the number of hypotheses needed to
+ * reach the target confidence is recomputed. Generation stops once that many hypotheses have been drawn, once the
+ * hypothesis cap is reached, or once the time budget of the estimation runs out, in which case the best hypothesis
+ * found so far is returned marked as not converged. The budget is checked before every hypothesis is drawn, before
+ * every preemption round and before every refinement iteration, so an estimation overruns it by at most one P3P
+ * solve, one block of scoring or one Levenberg-Marquardt iteration, plus the evaluation of a batch winner.
+ *
+ * Hypothesis generation and scoring are spread across a fork-join pool. The work is split into a fixed number of
+ * tasks that does not depend on the pool size, and every generation task draws from its own SplittableRandom split in
+ * a fixed order from the seed, so a given seed gives the same best hypothesis on any number of threads.
+ */
 public class RANSAC {
-    private static final int NUM_HYPOTHESES = 500;
+    private static final int MAX_HYPOTHESES = 500;
     private static final int MIN_SAMPLE_SIZE = 4; // For a PnP problem
     private static final int PREEMPTION_GROUP_SIZE = 10;
 
+    /** The number of hypotheses generated or scored by one task, small enough to give a batch several tasks. */
+    private static final int HYPOTHESES_PER_TASK = 8;
+
+    /** The number of hypotheses generated between two updates of the required number of hypotheses. */
+    private static final int BATCH_SIZE = 64;
+
+    /** The reprojection error in pixels below which a correspondence counts as an inlier. */
+    private static final double INLIER_THRESHOLD = 2.0;
+
+    /** The maximum number of Levenberg-Marquardt iterations refining the best hypothesis on its inliers. */
+    private static final int REFINEMENT_ITERATIONS = 20;
+
+    /** The default probability that at least one hypothesis is drawn from inliers only. */
+    public static final double DEFAULT_CONFIDENCE = 0.99;
+
+    /** The time budget meaning that an estimation may take as long as it needs. */
+    public static final long NO_TIME_BUDGET = Long.MAX_VALUE;
+
+    /** The pool that hypothesis generation and scoring are spread across. */
+    private final ForkJoinPool pool;
+
+    /** The probability that at least one hypothesis is drawn from inliers only. */
+    private final double confidence;
+
+    /** The wall-clock time budget of one estimation, in nanoseconds. */
+    private final long timeBudget;
+
     /**
-     * Randomly selects a sample of matches from the input list.
+     * Constructs a RANSAC estimator that runs on the given pool, with the default confidence and no time budget.
      *
-     * @param points the list of feature correspondences
-     * @param sampleSize the number of matches to select
-     * @param random the random number generator
+     * @param pool the pool that hypothesis generation and scoring are spread across
+     */
+    public RANSAC(ForkJoinPool pool) {
+        this(pool, DEFAULT_CONFIDENCE, NO_TIME_BUDGET);
+    }
+
+    /**
+     * Constructs a RANSAC estimator that runs on the given pool.
      *
-     * @return a list of feature correspondences representing the random sample
+     * @param pool the pool that hypothesis generation and scoring are spread across
+     * @param confidence the probability that at least one hypothesis is drawn from inliers only, in (0, 1)
+     * @param timeBudget the wall-clock time budget of one estimation in nanoseconds, or {@link #NO_TIME_BUDGET}
      */
-    private static List<Object[]> getRandomSample(List<Object[]> points, int sampleSize, Random random) {
-        ArrayList<Object[]> sample = new ArrayList<>(points);
-        Collections.shuffle(sample, random);
-        return sample.subList(0, sampleSize);
+    public RANSAC(ForkJoinPool pool, double confidence, long timeBudget) {
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IllegalArgumentException("RANSAC confidence must be strictly between 0 and 1.");
+        }
+        if (timeBudget <= 0) {
+            throw new IllegalArgumentException("RANSAC time budget must be positive.");
+        }
+        this.pool = pool;
+        this.confidence = confidence;
+        this.timeBudget = timeBudget;
     }
 
     /**
-     * Estimates the camera motion from a sample of feature correspondences, using a PNP algorithm.
+     * Computes the number of hypotheses needed so that, with the given inlier ratio, at least one of them is drawn
+     * from inliers only with the target confidence, N = log(1 - p) / log(1 - w^m).
      *
-     * @param points2D the 2D points in the image from the reference camera
-     * @param points3D the 3D points in the world frame
-     * @param cameras the stereo camera system
+     * @param inlierRatio the inlier ratio w
      *
-     * @return the estimated camera motion
+     * @return the number of hypotheses needed, possibly infinite
      */
-    private static Motion estimateMotion(MatOfPoint2f points2D, MatOfPoint3f points3D, Stereo cameras) {
-        // solve the PnP problem, storing the result in rvec and tvec
-        Mat rvec = new Mat();
-        Mat tvec = new Mat();
-        Calib3d.solvePnP(points3D, points2D, cameras.getCamera(), cameras.getDistortion(), rvec, tvec);
+    private double requiredHypotheses(double inlierRatio) {
+        double allInliers = Math.pow(inlierRatio, MIN_SAMPLE_SIZE);
+        if (allInliers >= 1) {
+            return 1;
+        }
+        if (allInliers <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.ceil(Math.log(1 - confidence) / Math.log(1 - allInliers));
+    }
+
+    /**
+     * Checks whether the time budget of an estimation has run out.
+     *
+     * @param start the {@link System#nanoTime} at which the estimation started
+     *
+     * @return true if the estimation has no time left
+     */
+    private boolean expired(long start) {
+        return timeBudget != NO_TIME_BUDGET && System.nanoTime() - start >= timeBudget;
+    }
+
+    /**
+     * Estimates the camera motion from a minimal sample of feature correspondences, using a P3P algorithm.
+     *
+     * @param correspondences the correspondences
+     * @param sample the indices of the correspondences in the sample, the fourth used for disambiguation
+     * @param solver the P3P solver
+     *
+     * @return the estimated camera motion, or null if the sample has no solution
+     */
+    private static Motion estimateMotion(Correspondences correspondences, int[] sample, P3P solver) {
+        double[] R = new double[9];
+        double[] tvec = new double[3];
+        if (!solver.solve(correspondences.normalized, correspondences.world, sample, R, tvec)) {
+            return null;
+        }
+        double[] rvec = new double[3];
+        Rotation.toVector(R, rvec);
         return new Motion(rvec, tvec);
     }
 
     /**
-     * Scores a list of hypotheses by computing the reprojection error of each hypothesis.
+     * Scores a list of hypotheses with a breadth-first preemption schedule. The points are shuffled once and split
+     * into blocks of PREEMPTION_GROUP_SIZE, the last block holding whatever is left over. Every surviving hypothesis
+     * is scored on a block, in parallel, then only the best {@link #preemption} of them are kept for the next block,
+     * until a single hypothesis remains, the points run out, or the time budget runs out.
      *
      * @param hypotheses a list of the motion hypotheses to score
-     * @param points3D the 3D points to reproject
-     * @param points2D the 2D points to compare against
-     * @param cameras the stereo camera system
+     * @param correspondences the correspondences
+     * @param projection the projection of the reference camera
+     * @param random the random number generator used to shuffle the points
+     * @param start the {@link System#nanoTime} at which the estimation started
      *
-     * @return the best hypothesis
+     * @return the best hypothesis, or null if there are no hypotheses
      */
-    private static Motion score(List<Motion> hypotheses, MatOfPoint3f points3D, MatOfPoint2f points2D, Stereo cameras) {
-        // split the points into buckets of PREEMPTION_GROUP_SIZE points each
-        List<MatOfPoint3f> groups3D = new ArrayList<>();
-        List<MatOfPoint2f> groups2D = new ArrayList<>();
-        for (int i = 0; i < points3D.rows(); i += PREEMPTION_GROUP_SIZE) {
-            MatOfPoint3f group3D = new MatOfPoint3f();
-            MatOfPoint2f group2D = new MatOfPoint2f();
-            for (int j = 0; j < PREEMPTION_GROUP_SIZE; j++) {
-                group3D.push_back(points3D.row(i + j));
-                group2D.push_back(points2D.row(i + j));
+    private Motion score(List<Motion> hypotheses, Correspondences correspondences, Projection projection, SplittableRandom random, long start) {
+        // shuffle the point order once, so that every block is an unbiased sample of the points
+        int count = correspondences.size;
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        // score the surviving hypotheses block by block, assuming a Cauchy distribution of the errors
+        ArrayList<Motion> remaining = new ArrayList<>(hypotheses);
+        double[] blockWorld = new double[3 * PREEMPTION_GROUP_SIZE];
+        double[] blockImage = new double[2 * PREEMPTION_GROUP_SIZE];
+        int scored = 0;
+        int round = 0;
+        while (remaining.size() > 1 && scored < count && !expired(start)) {
+            Events.PreemptionRound event = new Events.PreemptionRound();
+            event.begin();
+
+            // gather the block into contiguous arrays shared by every hypothesis
+            int size = Math.min(PREEMPTION_GROUP_SIZE, count - scored);
+            for (int j = 0; j < size; j++) {
+                int index = order[scored + j];
+                System.arraycopy(correspondences.world, 3 * index, blockWorld, 3 * j, 3);
+                System.arraycopy(correspondences.image, 2 * index, blockImage, 2 * j, 2);
+            }
+
+            // each task scores a slice of the survivors into its own projection buffer
+            int survivors = remaining.size();
+            parallelFor((survivors + HYPOTHESES_PER_TASK - 1) / HYPOTHESES_PER_TASK, task -> {
+                double[] R = new double[9];
+                double[] projected = new double[2 * PREEMPTION_GROUP_SIZE];
+                int end = Math.min(survivors, (task + 1) * HYPOTHESES_PER_TASK);
+                for (int h = task * HYPOTHESES_PER_TASK; h < end; h++) {
+                    Motion hypothesis = remaining.get(h);
+                    Rotation.toMatrix(hypothesis.rotation, R);
+                    projection.project(R, hypothesis.translation, blockWorld, size, projected);
+                    hypothesis.score += Projection.logLikelihood(projected, blockImage, size);
+                }
+            });
+            scored += size;
+
+            // drop all but the best hypotheses allowed by the preemption function, the stable sort keeping ties in
+            // generation order
+            int keep = preemption(scored, hypotheses.size());
+            if (keep < remaining.size()) {
+                remaining.sort((a, b) -> Double.compare(b.score, a.score));
+                remaining.subList(keep, remaining.size()).clear();
+            }
+
+            if (event.shouldCommit()) {
+                event.round = round;
+                event.survivors = survivors;
+                event.block = size;
+                event.scored = scored;
+                event.kept = remaining.size();
+                event.commit();
             }
-            groups3D.add(group3D);
-            groups2D.add(group2D);
+            round++;
         }
 
-        // score each hypothesis by computing the reprojection error, assuming a Cauchy distribution
+        // pick the best of the survivors
         Motion best_hypothesis = null;
-        for (Motion hypothesis: hypotheses) {
-            for (int i = 0; i < groups3D.size(); i++) {
-                double error = computeReprojectionError(hypothesis, groups3D.get(i), groups2D.get(i), cameras);
-                hypothesis.score += error;
-            }
+        for (Motion hypothesis : remaining) {
             if (best_hypothesis == null || hypothesis.score > best_hypothesis.score) {
                 best_hypothesis = hypothesis;
             }
@@ -92,153 +227,250 @@ public class RANSAC {
     }
 
     /**
-     * Computes the reprojection error of a hypothesis.
+     * The preemption function f(i) = floor(M * 2^(-floor(i / B))), giving the number of hypotheses kept after i
+     * points have been scored, halving after every block.
      *
-     * @param hypothesis the motion hypothesis to test
-     * @param points3D the 3D points to reproject
-     * @param points2D the 2D points to compare against
-     * @param cameras the stereo camera system
+     * @param scored the number of points scored so far
+     * @param total the total number of hypotheses M
      *
-     * @return the reprojection error, log-likeliness of the product of all the scaled squared magnitudes of the errors
+     * @return the number of hypotheses to keep, at least 1
      */
-    private static double computeReprojectionError(Motion hypothesis, MatOfPoint3f points3D, MatOfPoint2f points2D, Stereo cameras) {
-        MatOfPoint2f projectedPoints = new MatOfPoint2f();
-        Mat rvec = hypothesis.rotation;
-        Mat tvec = hypothesis.translation;
-        Calib3d.projectPoints(points3D, rvec, tvec, cameras.getCamera(), cameras.getDistortion(), projectedPoints);
-
-        // compute the error
-        Mat diff = new Mat();
-        Core.subtract(projectedPoints, points2D, diff);
-        Mat squaredDiff = new Mat();
-        Core.multiply(diff, diff, squaredDiff);
-        Core.add(squaredDiff, Scalar.all(1), squaredDiff);
-
-        // calculate product of all the scaled squared magnitudes of the errors
-        double product = 1;
-        for (int i = 0; i < squaredDiff.rows(); i++) {
-            double error = squaredDiff.get(i, 0)[0] + squaredDiff.get(i, 1)[0];
-            product *= error;
-        }
-
-        // get log-likeness
-        return -1 * Math.log(product);
+    private static int preemption(int scored, int total) {
+        int halvings = scored / PREEMPTION_GROUP_SIZE;
+        if (halvings >= Integer.SIZE - 1) {
+            return 1;
+        }
+        return Math.max(1, total >> halvings);
     }
 
     /**
-     * Refines the initial solution using a Levenberg-Marquardt optimization.
+     * Generates a list of hypotheses from minimal samples of matches. The hypotheses are generated by a fixed number
+     * of tasks, each with its own random number generator split from the given one and its own solver, and are
+     * returned in task order.
      *
-     * @param initialSolution the initial solution to refine
-     * @param cameras the stereo camera system
-     * @param points2D the 2D points of the features
-     * @param points3D the triangulated 3D points of the features
-     * @param maxIterations the maximum number of iterations
-     * @param lambda the damping factor
-     * @param epsilon the convergence threshold
+     * @param correspondences the correspondences
+     * @param sampler the sampler drawing minimal samples from the correspondences
+     * @param random the random number generator the per-task generators are split from
+     * @param first the number of hypotheses drawn before this call, so that sampling schedules carry on
+     * @param count the number of hypotheses to draw
+     * @param start the {@link System#nanoTime} at which the estimation started, no hypothesis being drawn once its
+     *              time budget has run out
+     * @param drawn the output number of hypotheses drawn by each task, of at least as many elements as tasks
+     *
+     * @return a list of hypotheses
      */
-    private static void refineSolution(Motion initialSolution, Stereo cameras, MatOfPoint2f points2D, MatOfPoint3f points3D, int maxIterations, double lambda, double epsilon) {
-        for (int iteration = 0; iteration < maxIterations; iteration++) {
-            Mat jacobian = new Mat();
-            MatOfPoint2f projectedPoints = new MatOfPoint2f();
-
-            Mat rvec = initialSolution.rotation;
-            Mat tvec = initialSolution.translation;
-            Calib3d.projectPoints(points3D, rvec, tvec, cameras.getCamera(), cameras.getDistortion(), projectedPoints, jacobian);
-
-            Mat residuals = new Mat();
-            Core.subtract(points2D, projectedPoints, residuals);
-            residuals = residuals.reshape(1, residuals.rows() * 2);
-
-            Mat JTJ = new Mat();
-            Mat JTr = new Mat();
-            Core.gemm(jacobian.t(), jacobian, 1, new Mat(), 0, JTJ);
-            Core.gemm(jacobian.t(), residuals, 1, new Mat(), 0, JTr);
-
-            // Add lambda to diagonal of JTJ
-            for (int i = 0; i < JTJ.rows(); i++) {
-                JTJ.put(i, i, JTJ.get(i, i)[0] + lambda);
+    List<Motion> generateHypotheses(Correspondences correspondences, Sampler sampler, SplittableRandom random, int first, int count,
+                                    long start, int[] drawn) {
+        Events.HypothesisGeneration event = new Events.HypothesisGeneration();
+        event.begin();
+
+        // split the generators in task order, before any task runs
+        int tasks = (count + HYPOTHESES_PER_TASK - 1) / HYPOTHESES_PER_TASK;
+        SplittableRandom[] randoms = new SplittableRandom[tasks];
+        for (int task = 0; task < tasks; task++) {
+            randoms[task] = random.split();
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<Motion>[] results = new List[tasks];
+        parallelFor(tasks, task -> {
+            ArrayList<Motion> hypotheses = new ArrayList<>();
+            P3P solver = new P3P();
+            int[] sample = new int[MIN_SAMPLE_SIZE];
+
+            int end = Math.min(count, (task + 1) * HYPOTHESES_PER_TASK);
+            drawn[task] = 0;
+            for (int i = task * HYPOTHESES_PER_TASK; i < end && !expired(start); i++) {
+                drawn[task]++;
+
+                // draw the sample numbered from the start of the estimation and estimate its motion hypothesis
+                sampler.draw(first + i + 1, randoms[task], sample);
+                Motion hypothesis = estimateMotion(correspondences, sample, solver);
+                if (hypothesis != null) {
+                    hypotheses.add(hypothesis);
+                }
             }
+            results[task] = hypotheses;
+        });
+
+        // gather the hypotheses in task order
+        ArrayList<Motion> hypotheses = new ArrayList<>();
+        for (List<Motion> result : results) {
+            hypotheses.addAll(result);
+        }
 
-            Mat delta = new Mat();
-            Core.solve(JTJ, JTr, delta, Core.DECOMP_CHOLESKY);
+        if (event.shouldCommit()) {
+            event.first = first;
+            event.requested = count;
+            event.generated = hypotheses.size();
+            event.correspondences = correspondences.size;
+            event.commit();
+        }
+        return hypotheses;
+    }
 
-            // Update rvec and tvec
-            for (int i = 0; i < 3; i++) {
-                rvec.put(i, 0, rvec.get(i, 0)[0] + delta.get(i, 0)[0]);
-                tvec.put(i, 0, tvec.get(i, 0)[0] + delta.get(i + 3, 0)[0]);
+    /**
+     * Runs a body once for every index in parallel on the pool, returning when all have finished.
+     *
+     * @param count the number of indices
+     * @param body the body to run for each index
+     */
+    private void parallelFor(int count, IntConsumer body) {
+        if (count == 1 || pool.getParallelism() == 1) {
+            for (int i = 0; i < count; i++) {
+                body.accept(i);
+            }
+            return;
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ArrayList<RecursiveAction> actions = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int index = i;
+                    actions.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            body.accept(index);
+                        }
+                    });
+                }
+                invokeAll(actions);
             }
+        });
+    }
 
-            // Check for convergence
-            if (Core.norm(delta) < epsilon) {
-                break;
+    /**
+     * Evaluates a hypothesis on every correspondence, replacing its score with the Cauchy log-likelihood of all the
+     * reprojection errors.
+     *
+     * @param hypothesis the motion hypothesis to evaluate
+     * @param correspondences the correspondences
+     * @param projection the projection of the reference camera
+     * @param projected the buffer receiving the projections, of at least twice as many values as correspondences
+     *
+     * @return the number of inliers of the hypothesis
+     */
+    private static int evaluate(Motion hypothesis, Correspondences correspondences, Projection projection, double[] projected) {
+        double[] R = new double[9];
+        Rotation.toMatrix(hypothesis.rotation, R);
+        projection.project(R, hypothesis.translation, correspondences.world, correspondences.size, projected);
+
+        // accumulate the log-likelihood as a sum of logs and count the errors under the inlier threshold
+        double threshold = INLIER_THRESHOLD * INLIER_THRESHOLD;
+        double score = 0;
+        int inliers = 0;
+        for (int i = 0; i < correspondences.size; i++) {
+            double dx = projected[2 * i] - correspondences.image[2 * i];
+            double dy = projected[2 * i + 1] - correspondences.image[2 * i + 1];
+            double error = dx * dx + dy * dy;
+            score -= Math.log(1 + error);
+            if (error < threshold) {
+                inliers++;
             }
         }
+        hypothesis.score = score;
+        return inliers;
     }
 
     /**
-     * Generates a list of hypotheses by randomly selecting samples of matches.
+     * Runs the RANSAC algorithm to estimate the camera motion.
      *
      * @param points2D the 2D points in the image from the reference camera
      * @param points3D the 3D points in the world frame
+     * @param sad the SAD match score of each correspondence, lower is better, to sample with PROSAC, or null to
+     *            sample uniformly
      * @param cameras the stereo camera system
+     * @param seed the seed of the random number generators, the same seed always giving the same motion unless the
+     *             time budget runs out
      *
-     * @return a list of hypotheses
+     * @return the best estimated camera motion, or null if no hypothesis could be generated
      */
-    private static List<Motion> generateHypotheses(MatOfPoint2f points2D, MatOfPoint3f points3D, Stereo cameras) {
-        ArrayList<Motion> hypotheses = new ArrayList<>();
-        Random random = new Random();
-
-        // marry the 2D and 3D points together
-        List<Object[]> points = new ArrayList<>();
-        for (int j = 0; j < points2D.rows(); j++) {
-            points.add(new Object[]{ points2D.get(j, 0), points3D.get(j, 0) });
+    public Motion estimate(List<Point> points2D, List<Point3> points3D, int[] sad, Stereo cameras, long seed) {
+        long start = System.nanoTime();
+        if (points2D.size() < MIN_SAMPLE_SIZE || points2D.size() != points3D.size()) {
+            throw new IllegalArgumentException("RANSAC needs at least " + MIN_SAMPLE_SIZE + " paired 2D and 3D points.");
         }
 
-        for (int i = 0; i < NUM_HYPOTHESES; i++) {
-            // get a random sample of matches
-            List<Object[]> sample = getRandomSample(points, MIN_SAMPLE_SIZE, random);
+        Correspondences correspondences = new Correspondences(points2D, points3D, sad, cameras);
+        Sampler sampler = new Sampler(correspondences.size, MIN_SAMPLE_SIZE, correspondences.ranking);
+        SplittableRandom random = new SplittableRandom(seed);
+        Projection projection = new Projection(cameras);
+        double[] projected = new double[2 * correspondences.size];
+
+        // run preemptive RANSAC batch by batch, until enough hypotheses have been drawn for the best inlier ratio
+        Motion best_hypothesis = null;
+        int bestInliers = -1;
+        int generated = 0;
+        double required = MAX_HYPOTHESES;
+        boolean timedOut = false;
+        int[] drawn = new int[(BATCH_SIZE + HYPOTHESES_PER_TASK - 1) / HYPOTHESES_PER_TASK];
+        while (generated < Math.min(required, MAX_HYPOTHESES)) {
+            int count = Math.min(BATCH_SIZE, MAX_HYPOTHESES - generated);
+            List<Motion> hypotheses = generateHypotheses(correspondences, sampler, random, generated, count, start, drawn);
+            for (int task = 0; task < (count + HYPOTHESES_PER_TASK - 1) / HYPOTHESES_PER_TASK; task++) {
+                generated += drawn[task];
+            }
+
+            // keep the batch winner if it has more inliers than the best so far
+            Motion leader = score(hypotheses, correspondences, projection, random.split(), start);
+            if (leader != null) {
+                int inliers = evaluate(leader, correspondences, projection, projected);
+                if (inliers > bestInliers || (inliers == bestInliers && leader.score > best_hypothesis.score)) {
+                    best_hypothesis = leader;
+                    bestInliers = inliers;
+                    required = requiredHypotheses((double) inliers / correspondences.size);
+                }
+            }
 
-            // divorce the 2D and 3D points in the sample
-            ArrayList<Point> list2D = new ArrayList<Point>();
-            ArrayList<Point3> list3D = new ArrayList<Point3>();
-            for (Object[] correspondence : sample) {
-                list2D.add((Point) correspondence[0]);
-                list3D.add((Point3) correspondence[1]);
+            if (expired(start)) {
+                timedOut = true;
+                break;
             }
-            MatOfPoint2f sample2D = new MatOfPoint2f();
-            MatOfPoint3f sample3D = new MatOfPoint3f();
-            sample2D.fromList(list2D);
-            sample3D.fromList(list3D);
+        }
+        if (best_hypothesis == null) {
+            return null;
+        }
 
-            // estimate the motion hypothesis
-            Motion hypothesis = estimateMotion(sample2D, sample3D, cameras);
-            hypotheses.add(hypothesis);
+        // refine the best hypothesis as far as the time left allows
+        if (!timedOut) {
+            PoseRefiner refiner = new PoseRefiner(cameras.getIntrinsics()[0], INLIER_THRESHOLD, REFINEMENT_ITERATIONS);
+            refiner.refine(best_hypothesis, correspondences,
+                    timeBudget == NO_TIME_BUDGET ? PoseRefiner.NO_DEADLINE : start + timeBudget);
+            timedOut = expired(start);
         }
+        best_hypothesis.hypotheses = generated;
+        best_hypothesis.inliers = bestInliers;
+        best_hypothesis.converged = !timedOut && generated >= required;
 
-        return hypotheses;
+        return best_hypothesis;
     }
 
     /**
-     * Runs the RANSAC algorithm to estimate the camera motion.
+     * Runs the RANSAC algorithm to estimate the camera motion on the common pool, with a fresh random seed.
      *
      * @param points2D the 2D points in the image from the reference camera
      * @param points3D the 3D points in the world frame
      * @param cameras the stereo camera system
      *
-     * @return the best estimated camera motion
+     * @return the best estimated camera motion, or null if no hypothesis could be generated
      */
     public static Motion ransac(ArrayList<Point> points2D, ArrayList<Point3> points3D, Stereo cameras) {
-        // Convert matches to points
-        MatOfPoint2f srcMat = new MatOfPoint2f();
-        MatOfPoint3f triangulatedMat = new MatOfPoint3f();
-        srcMat.fromList(points2D);
-        triangulatedMat.fromList(points3D);
-
-        // run preemptive RANSAC by generating hypotheses, scoring them, and refining the best one
-        List<Motion> hypotheses = generateHypotheses(srcMat, triangulatedMat, cameras);
-        Motion best_hypothesis = score(hypotheses, triangulatedMat, srcMat, cameras);
-        refineSolution(best_hypothesis, cameras, srcMat, triangulatedMat, 100, 0.1, 0.01);
+        return ransac(points2D, points3D, null, cameras);
+    }
 
-        return best_hypothesis;
+    /**
+     * Runs the RANSAC algorithm to estimate the camera motion on the common pool, with a fresh random seed, sampling
+     * with PROSAC in order of match quality.
+     *
+     * @param points2D the 2D points in the image from the reference camera
+     * @param points3D the 3D points in the world frame
+     * @param sad the SAD match score of each correspondence, lower is better, or null to sample uniformly
+     * @param cameras the stereo camera system
+     *
+     * @return the best estimated camera motion, or null if no hypothesis could be generated
+     */
+    public static Motion ransac(ArrayList<Point> points2D, ArrayList<Point3> points3D, int[] sad, Stereo cameras) {
+        return new RANSAC(ForkJoinPool.commonPool()).estimate(points2D, points3D, sad, cameras, new SplittableRandom().nextLong());
     }
 }
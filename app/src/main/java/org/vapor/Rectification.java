@@ -0,0 +1,392 @@
+package org.vapor;
+
+/**
+ * Stereo rectification and undistortion for a calibrated camera pair.
+ *
+ * The rectifying rotations follow Bouguet's method: each camera is rotated by half of the relative rotation, then
+ * both are rotated together so that the baseline lies along the image rows. Both rectified cameras share one pinhole
+ * intrinsics matrix with no distortion, so a feature in the left image has its match on the same row of the right
+ * image, and its depth follows from the disparity alone. The odometry rectifies only the pixels of its features, to
+ * search stereo matches along the rows and triangulate them, while whole images can be remapped for dense matching.
+ *
+ * When the image size is known, a remap lookup table is computed once per camera. Each entry holds the source pixel
+ * for a rectified pixel, packed as two unsigned 16-bit fixed-point coordinates with {@link #REMAP_BITS} fractional
+ * bits, so that remapping a frame is a single pass of integer bilinear interpolation.
+ */
+public class Rectification {
+    /** The index of the left (reference) camera. */
+    public static final int LEFT = 0;
+
+    /** The index of the right camera. */
+    public static final int RIGHT = 1;
+
+    /** The number of fractional bits in the fixed-point remap coordinates. */
+    public static final int REMAP_BITS = 5;
+
+    /** The fixed-point scale of the remap coordinates. */
+    private static final int REMAP_SCALE = 1 << REMAP_BITS;
+
+    /** The largest image dimension that fits into 16 bits of fixed-point coordinates. */
+    public static final int MAX_DIMENSION = (1 << (16 - REMAP_BITS)) - 1;
+
+    /** The lookup table entry marking a rectified pixel with no source pixel in the original image. */
+    private static final int INVALID = -1;
+
+    /** The number of fixed point iterations used to invert the distortion model. */
+    private static final int UNDISTORT_ITERATIONS = 10;
+
+    /* The original intrinsics {fx, fy, cx, cy} of each camera. */
+    private final double[][] intrinsics;
+
+    /* The original distortion coefficients {k1, k2, p1, p2, k3} of each camera. */
+    private final double[][] distortion;
+
+    /* The row-major 3x3 rectifying rotation of each camera. */
+    private final double[][] rotations;
+
+    /* The shared rectified intrinsics {f, f, cx, cy}. */
+    private final double[] rectified;
+
+    /* The signed baseline of the rectified pair, in the units of the calibration translation. */
+    private final double baseline;
+
+    /* The image axis the baseline is aligned with, 0 for columns or 1 for rows. */
+    private final int axis;
+
+    /* The image dimensions the lookup tables were built for, or 0 if there are no lookup tables. */
+    private final int width;
+    private final int height;
+
+    /* The packed fixed-point remap lookup table of each camera, or null if there are no lookup tables. */
+    private final int[][] maps;
+
+    /**
+     * Computes the rectification of a stereo pair, and the remap lookup tables if an image size is given.
+     *
+     * @param intrinsics1 the intrinsics {fx, fy, cx, cy} of the left camera
+     * @param distortion1 the distortion coefficients {k1, k2, p1, p2, k3} of the left camera
+     * @param intrinsics2 the intrinsics {fx, fy, cx, cy} of the right camera
+     * @param distortion2 the distortion coefficients {k1, k2, p1, p2, k3} of the right camera
+     * @param R the row-major 3x3 rotation from the left camera frame to the right camera frame
+     * @param T the 3x1 translation from the left camera frame to the right camera frame
+     * @param width the image width in pixels, or 0 to skip building lookup tables
+     * @param height the image height in pixels, or 0 to skip building lookup tables
+     */
+    public Rectification(double[] intrinsics1, double[] distortion1, double[] intrinsics2, double[] distortion2,
+                         double[] R, double[] T, int width, int height) {
+        if (width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            throw new IllegalArgumentException("Image dimensions must be at most " + MAX_DIMENSION + " pixels to rectify.");
+        }
+        this.intrinsics = new double[][]{ intrinsics1.clone(), intrinsics2.clone() };
+        this.distortion = new double[][]{ distortion1.clone(), distortion2.clone() };
+
+        // split the relative rotation in half between the two cameras
+        double[] om = new double[3];
+        Rotation.toVector(R, om);
+        double[] halfVector = { -0.5 * om[0], -0.5 * om[1], -0.5 * om[2] };
+        double[] half = new double[9];
+        Rotation.toMatrix(halfVector, half);
+
+        // rotate both cameras so the baseline is aligned with the closest image axis
+        double[] t = new double[3];
+        Rotation.apply(half, T, t);
+        int axis = Math.abs(t[0]) > Math.abs(t[1]) ? 0 : 1;
+        this.axis = axis;
+        double c = t[axis];
+        double norm = Math.sqrt(t[0] * t[0] + t[1] * t[1] + t[2] * t[2]);
+        double[] uu = new double[3];
+        uu[axis] = c > 0 ? 1 : -1;
+        double[] ww = {
+                t[1] * uu[2] - t[2] * uu[1],
+                t[2] * uu[0] - t[0] * uu[2],
+                t[0] * uu[1] - t[1] * uu[0]
+        };
+        double nw = Math.sqrt(ww[0] * ww[0] + ww[1] * ww[1] + ww[2] * ww[2]);
+        if (nw > 0) {
+            double angle = Math.acos(Math.abs(c) / norm) / nw;
+            ww[0] *= angle;
+            ww[1] *= angle;
+            ww[2] *= angle;
+        }
+        double[] wR = new double[9];
+        Rotation.toMatrix(ww, wR);
+
+        // R1 = wR * half^T, R2 = wR * half
+        double[] R1 = new double[9];
+        double[] R2 = new double[9];
+        Rotation.multiplyByTransposed(wR, half, R1);
+        Rotation.multiply(wR, half, R2);
+        this.rotations = new double[][]{ R1, R2 };
+
+        // in the rectified frames the right camera center sits at -R2 * T
+        double[] tNew = new double[3];
+        Rotation.apply(R2, T, tNew);
+        this.baseline = -tNew[axis];
+
+        // common focal length keeps the narrower field of view, and the principal point is chosen so that the original
+        // optical axes land, on average, on the original principal points
+        double f = Math.min(Math.min(intrinsics1[0], intrinsics1[1]), Math.min(intrinsics2[0], intrinsics2[1]));
+        double cx = 0, cy = 0;
+        for (int i = 0; i < 2; i++) {
+            double[] k = this.intrinsics[i];
+            double[] ray = new double[3];
+            Rotation.apply(rotations[i], new double[]{ 0, 0, 1 }, ray);
+            cx += 0.5 * (k[2] - f * ray[0] / ray[2]);
+            cy += 0.5 * (k[3] - f * ray[1] / ray[2]);
+        }
+        this.rectified = new double[]{ f, f, cx, cy };
+
+        // build the remap lookup tables once
+        this.width = Math.max(width, 0);
+        this.height = Math.max(height, 0);
+        if (this.width > 0 && this.height > 0) {
+            this.maps = new int[][]{ buildMap(LEFT), buildMap(RIGHT) };
+        } else {
+            this.maps = null;
+        }
+    }
+
+    /**
+     * Builds the packed fixed-point remap lookup table of a camera.
+     *
+     * @param camera the camera index, {@link #LEFT} or {@link #RIGHT}
+     *
+     * @return the row-major lookup table, with one packed source coordinate per rectified pixel
+     */
+    private int[] buildMap(int camera) {
+        int[] map = new int[width * height];
+        double[] k = intrinsics[camera];
+        double[] d = distortion[camera];
+        double[] Ri = rotations[camera];
+        double[] ray = new double[3];
+        double[] source = new double[3];
+        double[] distorted = new double[2];
+
+        for (int v = 0; v < height; v++) {
+            for (int u = 0; u < width; u++) {
+                // back-project the rectified pixel and rotate it into the original camera frame
+                ray[0] = (u - rectified[2]) / rectified[0];
+                ray[1] = (v - rectified[3]) / rectified[1];
+                ray[2] = 1;
+                Rotation.applyTransposed(Ri, ray, source);
+                if (source[2] <= 0) {
+                    map[v * width + u] = INVALID;
+                    continue;
+                }
+
+                // distort and project into the original image
+                distort(d, source[0] / source[2], source[1] / source[2], distorted);
+                double x = k[0] * distorted[0] + k[2];
+                double y = k[1] * distorted[1] + k[3];
+                if (x < 0 || y < 0 || x >= width - 1 || y >= height - 1) {
+                    map[v * width + u] = INVALID;
+                    continue;
+                }
+
+                // pack the fixed-point coordinates, truncating so the bilinear neighbours stay inside the image
+                int xq = (int) (x * REMAP_SCALE);
+                int yq = (int) (y * REMAP_SCALE);
+                map[v * width + u] = (xq << 16) | yq;
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Remaps a grayscale image into its rectified form with fixed-point bilinear interpolation.
+     *
+     * @param camera the camera index, {@link #LEFT} or {@link #RIGHT}
+     * @param source the original grayscale image, indexed [row][column]
+     * @param target the rectified grayscale image of the same size, indexed [row][column]
+     */
+    public void remap(int camera, int[][] source, int[][] target) {
+        if (maps == null) {
+            throw new IllegalStateException("Rectification was built without an image size.");
+        }
+        if (source.length != height || source[0].length != width) {
+            throw new IllegalArgumentException("Image size does not match the rectification lookup tables.");
+        }
+
+        int[] map = maps[camera];
+        int mask = REMAP_SCALE - 1;
+        int round = 1 << (2 * REMAP_BITS - 1);
+        for (int v = 0; v < height; v++) {
+            int[] out = target[v];
+            int offset = v * width;
+            for (int u = 0; u < width; u++) {
+                int packed = map[offset + u];
+                if (packed == INVALID) {
+                    out[u] = 0;
+                    continue;
+                }
+
+                // split the packed coordinate into integer pixel and fractional weights
+                int x = packed >>> 16;
+                int y = packed & 0xFFFF;
+                int ix = x >> REMAP_BITS;
+                int iy = y >> REMAP_BITS;
+                int fx = x & mask;
+                int fy = y & mask;
+                int[] row0 = source[iy];
+                int[] row1 = source[iy + 1];
+                int top = row0[ix] * (REMAP_SCALE - fx) + row0[ix + 1] * fx;
+                int bottom = row1[ix] * (REMAP_SCALE - fx) + row1[ix + 1] * fx;
+                out[u] = (top * (REMAP_SCALE - fy) + bottom * fy + round) >> (2 * REMAP_BITS);
+            }
+        }
+    }
+
+    /**
+     * Maps a single pixel of an original image to its position in the rectified image.
+     *
+     * @param camera the camera index, {@link #LEFT} or {@link #RIGHT}
+     * @param u the column of the pixel in the original image
+     * @param v the row of the pixel in the original image
+     * @param out the rectified {column, row} of the pixel
+     */
+    public void rectifyPoint(int camera, double u, double v, double[] out) {
+        // undistort into the output, then rotate the ray {x, y, 1} into the rectified frame
+        undistortPoint(intrinsics[camera], distortion[camera], u, v, out);
+        double[] Ri = rotations[camera];
+        double x = out[0];
+        double y = out[1];
+        double rx = Ri[0] * x + Ri[1] * y + Ri[2];
+        double ry = Ri[3] * x + Ri[4] * y + Ri[5];
+        double rz = Ri[6] * x + Ri[7] * y + Ri[8];
+        out[0] = rectified[0] * rx / rz + rectified[2];
+        out[1] = rectified[1] * ry / rz + rectified[3];
+    }
+
+    /**
+     * Triangulates a point from its rectified pixels in both cameras by their disparity, Z = f * baseline / d.
+     *
+     * @param left the rectified {column, row} of the point in the left camera
+     * @param right the rectified {column, row} of the point in the right camera
+     * @param out the point in the original frame of the left camera
+     *
+     * @return true if the point is in front of the cameras, false if the disparity puts it at or behind them
+     */
+    public boolean triangulate(double[] left, double[] right, double[] out) {
+        double depth = rectified[0] * baseline / (left[axis] - right[axis]);
+        if (!(depth > 0) || Double.isInfinite(depth)) {
+            return false;
+        }
+
+        // back-project the left pixel, then rotate it out of the rectified frame
+        double x = (left[0] - rectified[2]) * depth / rectified[0];
+        double y = (left[1] - rectified[3]) * depth / rectified[1];
+        double[] R1 = rotations[LEFT];
+        out[0] = R1[0] * x + R1[3] * y + R1[6] * depth;
+        out[1] = R1[1] * x + R1[4] * y + R1[7] * depth;
+        out[2] = R1[2] * x + R1[5] * y + R1[8] * depth;
+        return true;
+    }
+
+    /**
+     * Applies the Brown-Conrady distortion model to normalized image coordinates.
+     *
+     * @param d the distortion coefficients {k1, k2, p1, p2, k3}
+     * @param x the undistorted normalized x-coordinate
+     * @param y the undistorted normalized y-coordinate
+     * @param out the distorted normalized {x, y}
+     */
+    public static void distort(double[] d, double x, double y, double[] out) {
+        double r2 = x * x + y * y;
+        double radial = 1 + r2 * (d[0] + r2 * (d[1] + r2 * d[4]));
+        out[0] = x * radial + 2 * d[2] * x * y + d[3] * (r2 + 2 * x * x);
+        out[1] = y * radial + d[2] * (r2 + 2 * y * y) + 2 * d[3] * x * y;
+    }
+
+    /**
+     * Removes lens distortion from a pixel, returning its normalized pinhole coordinates.
+     *
+     * @param k the intrinsics {fx, fy, cx, cy}
+     * @param d the distortion coefficients {k1, k2, p1, p2, k3}
+     * @param u the column of the distorted pixel
+     * @param v the row of the distorted pixel
+     * @param out the undistorted normalized {x, y}
+     */
+    public static void undistortPoint(double[] k, double[] d, double u, double v, double[] out) {
+        double x0 = (u - k[2]) / k[0];
+        double y0 = (v - k[3]) / k[1];
+        double x = x0;
+        double y = y0;
+        for (int i = 0; i < UNDISTORT_ITERATIONS; i++) {
+            double r2 = x * x + y * y;
+            double icdist = 1 / (1 + r2 * (d[0] + r2 * (d[1] + r2 * d[4])));
+            double dx = 2 * d[2] * x * y + d[3] * (r2 + 2 * x * x);
+            double dy = d[2] * (r2 + 2 * y * y) + 2 * d[3] * x * y;
+            x = (x0 - dx) * icdist;
+            y = (y0 - dy) * icdist;
+        }
+        out[0] = x;
+        out[1] = y;
+    }
+
+    /**
+     * Returns the shared intrinsics of the rectified cameras.
+     *
+     * @return the rectified intrinsics {f, f, cx, cy}, with no distortion
+     */
+    public double[] getIntrinsics() {
+        return rectified.clone();
+    }
+
+    /**
+     * Returns the rectifying rotation of a camera.
+     *
+     * @param camera the camera index, {@link #LEFT} or {@link #RIGHT}
+     *
+     * @return the row-major 3x3 rotation from the original camera frame to the rectified frame
+     */
+    public double[] getRotation(int camera) {
+        return rotations[camera].clone();
+    }
+
+    /**
+     * Returns the signed baseline of the rectified pair. A point at depth Z appears in the right image shifted by the
+     * disparity f * baseline / Z towards smaller columns.
+     *
+     * @return the baseline, in the units of the calibration translation
+     */
+    public double getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * Returns the image axis the baseline of the rectified pair is aligned with. Stereo matches differ only along it.
+     *
+     * @return 0 if matches lie on the same row and differ in column, or 1 if they lie on the same column
+     */
+    public int getAxis() {
+        return axis;
+    }
+
+    /**
+     * Returns whether remap lookup tables were built for this rectification.
+     *
+     * @return true if {@link #remap} can be used
+     */
+    public boolean hasMaps() {
+        return maps != null;
+    }
+
+    /**
+     * Returns the image width the lookup tables were built for.
+     *
+     * @return the width in pixels, or 0 if there are no lookup tables
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the image height the lookup tables were built for.
+     *
+     * @return the height in pixels, or 0 if there are no lookup tables
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,152 @@
+package org.vapor;
+
+/**
+ * Pure-Java helpers for 3D rotations, stored as row-major 3x3 arrays or 3x1 Rodrigues vectors.
+ */
+public class Rotation {
+    /** Below this angle the Rodrigues conversions fall back to their first-order expansions. */
+    private static final double EPSILON = 1E-9;
+
+    /**
+     * Converts a Rodrigues rotation vector to a rotation matrix.
+     *
+     * @param rvec the rotation vector, whose direction is the axis and whose norm is the angle
+     * @param R the row-major 3x3 output matrix
+     */
+    public static void toMatrix(double[] rvec, double[] R) {
+        double theta = Math.sqrt(rvec[0] * rvec[0] + rvec[1] * rvec[1] + rvec[2] * rvec[2]);
+        if (theta < EPSILON) {
+            R[0] = 1;        R[1] = -rvec[2]; R[2] = rvec[1];
+            R[3] = rvec[2];  R[4] = 1;        R[5] = -rvec[0];
+            R[6] = -rvec[1]; R[7] = rvec[0];  R[8] = 1;
+            return;
+        }
+
+        // R = cos(theta) I + (1 - cos(theta)) r r^T + sin(theta) [r]x
+        double x = rvec[0] / theta;
+        double y = rvec[1] / theta;
+        double z = rvec[2] / theta;
+        double c = Math.cos(theta);
+        double s = Math.sin(theta);
+        double c1 = 1 - c;
+        R[0] = c + c1 * x * x;     R[1] = c1 * x * y - s * z; R[2] = c1 * x * z + s * y;
+        R[3] = c1 * x * y + s * z; R[4] = c + c1 * y * y;     R[5] = c1 * y * z - s * x;
+        R[6] = c1 * x * z - s * y; R[7] = c1 * y * z + s * x; R[8] = c + c1 * z * z;
+    }
+
+    /**
+     * Converts a rotation matrix to a Rodrigues rotation vector.
+     *
+     * @param R the row-major 3x3 rotation matrix
+     * @param rvec the 3x1 output rotation vector
+     */
+    public static void toVector(double[] R, double[] rvec) {
+        double rx = R[7] - R[5];
+        double ry = R[2] - R[6];
+        double rz = R[3] - R[1];
+        double s = 0.5 * Math.sqrt(rx * rx + ry * ry + rz * rz);
+        double c = Math.max(-1, Math.min(1, (R[0] + R[4] + R[8] - 1) * 0.5));
+
+        if (s > 1E-5) {
+            double theta = Math.atan2(s, c);
+            double scale = theta / (2 * s);
+            rvec[0] = rx * scale;
+            rvec[1] = ry * scale;
+            rvec[2] = rz * scale;
+            return;
+        }
+
+        // small angle, the skew-symmetric part is already the rotation vector
+        if (c > 0) {
+            rvec[0] = rx * 0.5;
+            rvec[1] = ry * 0.5;
+            rvec[2] = rz * 0.5;
+            return;
+        }
+
+        // angle close to pi, recover the axis from the symmetric part (R + I) / 2
+        double ax = Math.sqrt(Math.max((R[0] + 1) * 0.5, 0));
+        double ay = Math.sqrt(Math.max((R[4] + 1) * 0.5, 0));
+        double az = Math.sqrt(Math.max((R[8] + 1) * 0.5, 0));
+        if (ax > 0) {
+            if (R[1] < 0) ay = -ay;
+            if (R[2] < 0) az = -az;
+        } else if (R[5] < 0) {
+            az = -az;
+        }
+        rvec[0] = ax * Math.PI;
+        rvec[1] = ay * Math.PI;
+        rvec[2] = az * Math.PI;
+    }
+
+    /**
+     * Multiplies two 3x3 matrices, out = a * b. The output may not alias either input.
+     *
+     * @param a the left 3x3 matrix
+     * @param b the right 3x3 matrix
+     * @param out the 3x3 output matrix
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[i * 3 + j] = a[i * 3] * b[j] + a[i * 3 + 1] * b[3 + j] + a[i * 3 + 2] * b[6 + j];
+            }
+        }
+    }
+
+    /**
+     * Multiplies the transpose of a 3x3 matrix with another, out = a^T * b. The output may not alias either input.
+     *
+     * @param a the 3x3 matrix to transpose
+     * @param b the right 3x3 matrix
+     * @param out the 3x3 output matrix
+     */
+    public static void multiplyTransposed(double[] a, double[] b, double[] out) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[i * 3 + j] = a[i] * b[j] + a[3 + i] * b[3 + j] + a[6 + i] * b[6 + j];
+            }
+        }
+    }
+
+    /**
+     * Multiplies a 3x3 matrix with the transpose of another, out = a * b^T. The output may not alias either input.
+     *
+     * @param a the left 3x3 matrix
+     * @param b the 3x3 matrix to transpose
+     * @param out the 3x3 output matrix
+     */
+    public static void multiplyByTransposed(double[] a, double[] b, double[] out) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[i * 3 + j] = a[i * 3] * b[j * 3] + a[i * 3 + 1] * b[j * 3 + 1] + a[i * 3 + 2] * b[j * 3 + 2];
+            }
+        }
+    }
+
+    /**
+     * Applies a 3x3 matrix to a vector, out = R * v. The output may not alias the input vector.
+     *
+     * @param R the row-major 3x3 matrix
+     * @param v the 3x1 vector
+     * @param out the 3x1 output vector
+     */
+    public static void apply(double[] R, double[] v, double[] out) {
+        out[0] = R[0] * v[0] + R[1] * v[1] + R[2] * v[2];
+        out[1] = R[3] * v[0] + R[4] * v[1] + R[5] * v[2];
+        out[2] = R[6] * v[0] + R[7] * v[1] + R[8] * v[2];
+    }
+
+    /**
+     * Applies the transpose of a 3x3 matrix to a vector, out = R^T * v. The output may not alias the input vector.
+     *
+     * @param R the row-major 3x3 matrix
+     * @param v the 3x1 vector
+     * @param out the 3x1 output vector
+     */
+    public static void applyTransposed(double[] R, double[] v, double[] out) {
+        out[0] = R[0] * v[0] + R[3] * v[1] + R[6] * v[2];
+        out[1] = R[1] * v[0] + R[4] * v[1] + R[7] * v[2];
+        out[2] = R[2] * v[0] + R[5] * v[1] + R[8] * v[2];
+    }
+}
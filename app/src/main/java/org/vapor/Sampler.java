@@ -0,0 +1,133 @@
+package org.vapor;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws minimal samples of distinct correspondence indices for RANSAC.
+ *
+ * Without a ranking, every sample is drawn uniformly with Floyd's algorithm, which takes O(k) draws for a sample of
+ * size k and touches no per-correspondence state. With a ranking, samples follow the PROSAC schedule: early samples
+ * come from the few best-ranked correspondences, and the pool grows towards all of them as hypotheses are drawn, so
+ * good hypotheses appear after far fewer draws when the ranking is informative.
+ *
+ * The t-th sample depends only on t and the random number generator, so samples can be drawn by parallel tasks in any
+ * order. A sampler is immutable and can be shared between threads.
+ */
+public class Sampler {
+    /** The number of samples after which PROSAC has grown to draw uniformly from all correspondences. */
+    private static final double PROSAC_MAX_SAMPLES = 200000;
+
+    /* The number of correspondences. */
+    private final int size;
+
+    /* The number of indices in a sample. */
+    private final int sampleSize;
+
+    /* The correspondence indices from best to worst, or null to sample uniformly. */
+    private final int[] ranking;
+
+    /* The PROSAC growth function T'_n, the sample number at which the pool grows past the n best correspondences. */
+    private final int[] growth;
+
+    /**
+     * Constructs a sampler over a set of correspondences.
+     *
+     * @param size the number of correspondences
+     * @param sampleSize the number of indices in a sample
+     * @param ranking the correspondence indices from best to worst, or null to sample uniformly
+     */
+    public Sampler(int size, int sampleSize, int[] ranking) {
+        if (size < sampleSize) {
+            throw new IllegalArgumentException("Cannot draw samples of " + sampleSize + " from " + size + " correspondences.");
+        }
+        this.size = size;
+        this.sampleSize = sampleSize;
+        this.ranking = ranking;
+        this.growth = ranking == null ? null : growthFunction(size, sampleSize);
+    }
+
+    /**
+     * Computes the PROSAC growth function, T'_m = 1 and T'_{n+1} = T'_n + ceil(T_{n+1} - T_n), where T_n is the
+     * expected number of the first samples drawn only from the n best correspondences.
+     *
+     * @param size the number of correspondences N
+     * @param sampleSize the number of indices in a sample m
+     *
+     * @return the growth function, indexed by n from m to N
+     */
+    private static int[] growthFunction(int size, int sampleSize) {
+        int[] growth = new int[size + 1];
+        double T = PROSAC_MAX_SAMPLES;
+        for (int i = 0; i < sampleSize; i++) {
+            T *= (double) (sampleSize - i) / (size - i);
+        }
+        growth[sampleSize] = 1;
+        for (int n = sampleSize; n < size; n++) {
+            double next = T * (n + 1) / (n + 1 - sampleSize);
+            growth[n + 1] = growth[n] + (int) Math.ceil(next - T);
+            T = next;
+        }
+        return growth;
+    }
+
+    /**
+     * Draws the t-th sample.
+     *
+     * @param t the 1-based number of the sample
+     * @param random the random number generator
+     * @param sample the output array of at least sampleSize correspondence indices
+     */
+    public void draw(int t, SplittableRandom random, int[] sample) {
+        if (ranking == null) {
+            drawDistinct(size, sampleSize, random, sample, 0);
+            return;
+        }
+
+        // the pool holds the n best correspondences, where n is one past the largest n with T'_n <= t
+        int low = sampleSize;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (growth[middle] <= t) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int n = Math.min(low + 1, size);
+
+        // once the pool has stopped growing, draw from it uniformly, otherwise always include its worst member
+        if (growth[n] < t) {
+            drawDistinct(n, sampleSize, random, sample, 0);
+        } else {
+            sample[0] = n - 1;
+            drawDistinct(n - 1, sampleSize - 1, random, sample, 1);
+        }
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = ranking[sample[i]];
+        }
+    }
+
+    /**
+     * Draws k distinct integers from [0, n) with Floyd's algorithm.
+     *
+     * @param n the exclusive upper bound
+     * @param k the number of integers to draw
+     * @param random the random number generator
+     * @param out the output array
+     * @param offset the position of the first integer in the output array
+     */
+    private static void drawDistinct(int n, int k, SplittableRandom random, int[] out, int offset) {
+        int count = 0;
+        for (int j = n - k; j < n; j++) {
+            int value = random.nextInt(j + 1);
+            for (int i = 0; i < count; i++) {
+                if (out[offset + i] == value) {
+                    value = j;
+                    break;
+                }
+            }
+            out[offset + count++] = value;
+        }
+    }
+}
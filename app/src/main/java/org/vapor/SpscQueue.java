@@ -0,0 +1,229 @@
+package org.vapor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer single-consumer queue handing items between two pipeline stages.
+ *
+ * Items are stored in a power-of-two ring buffer indexed by two ever-increasing counters, each written by only one
+ * side, so neither side takes a lock. A side that finds the queue full or empty spins briefly and then parks in short
+ * intervals, and the time it spends waiting is recorded as a stall, so that the stage limiting the pipeline can be
+ * read off the queue metrics: the queues in front of it stay full and the ones behind it stay empty.
+ *
+ * @param <T> the type of the items
+ */
+public class SpscQueue<T> {
+    /** The number of busy spins before a waiting side starts parking. */
+    private static final int SPINS = 100;
+
+    /** The time a waiting side parks for between two checks. */
+    private static final long PARK_NANOS = 20_000;
+
+    /* The name of the queue in the metrics. */
+    private final String name;
+
+    /* The ring buffer, and the mask mapping a counter to its slot. */
+    private final Object[] buffer;
+    private final int mask;
+
+    /* The number of items taken, written only by the consumer, and the number of items put, written only by the producer. */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /* Whether the producer has put its last item, and whether the pipeline has been torn down. */
+    private volatile boolean closed;
+    private volatile boolean aborted;
+
+    /* The producer metrics, written only by the producer. */
+    private volatile long maxDepth;
+    private volatile long producerStalls;
+    private volatile long producerStallNanos;
+
+    /* The consumer metrics, written only by the consumer. */
+    private volatile long consumerStalls;
+    private volatile long consumerStallNanos;
+
+    /**
+     * Constructs a queue.
+     *
+     * @param name the name of the queue in the metrics
+     * @param capacity the smallest number of items the queue must hold, rounded up to a power of two
+     */
+    public SpscQueue(String name, int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("The queue capacity must be between 1 and " + (1 << 30) + ".");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Puts an item, waiting while the queue is full. Must only be called by the producer.
+     *
+     * @param item the item
+     *
+     * @return false if the queue was aborted and the item dropped
+     */
+    public boolean put(T item) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            // wait for the consumer to free a slot
+            long start = System.nanoTime();
+            int idle = 0;
+            while (t - head.get() == buffer.length) {
+                if (aborted) {
+                    return false;
+                }
+                idle = backoff(idle);
+            }
+            producerStalls++;
+            producerStallNanos += System.nanoTime() - start;
+        }
+        buffer[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+
+        long depth = t + 1 - head.get();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return !aborted;
+    }
+
+    /**
+     * Takes the next item, waiting while the queue is empty. Must only be called by the consumer.
+     *
+     * @return the item, or null once the queue is closed and drained, or aborted
+     */
+    @SuppressWarnings("unchecked")
+    public T take() {
+        long h = head.get();
+        if (h == tail.get()) {
+            // wait for the producer to put an item or close the queue
+            long start = System.nanoTime();
+            int idle = 0;
+            while (h == tail.get()) {
+                if (aborted || (closed && h == tail.get())) {
+                    return null;
+                }
+                idle = backoff(idle);
+            }
+            consumerStalls++;
+            consumerStallNanos += System.nanoTime() - start;
+        }
+        if (aborted) {
+            return null;
+        }
+        int slot = (int) h & mask;
+        T item = (T) buffer[slot];
+        buffer[slot] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * Marks the end of the stream, after which the consumer drains the remaining items. Must only be called by the
+     * producer.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Tears the queue down, waking both sides and dropping every item, after a stage failed.
+     */
+    public void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Waits for the other side, spinning at first and then parking.
+     *
+     * @param idle the number of times the caller has waited so far
+     *
+     * @return the number of times the caller has waited, including this one
+     */
+    private static int backoff(int idle) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    /**
+     * Returns the name of the queue.
+     *
+     * @return the name of the queue
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of items currently in the queue.
+     *
+     * @return the number of items in the queue
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Returns the largest number of items the queue has held.
+     *
+     * @return the maximum depth
+     */
+    public long getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of times the producer waited on a full queue.
+     *
+     * @return the number of producer stalls
+     */
+    public long getProducerStalls() {
+        return producerStalls;
+    }
+
+    /**
+     * Returns the total time the producer waited on a full queue.
+     *
+     * @return the producer stall time in nanoseconds
+     */
+    public long getProducerStallNanos() {
+        return producerStallNanos;
+    }
+
+    /**
+     * Returns the number of times the consumer waited on an empty queue.
+     *
+     * @return the number of consumer stalls
+     */
+    public long getConsumerStalls() {
+        return consumerStalls;
+    }
+
+    /**
+     * Returns the total time the consumer waited on an empty queue.
+     *
+     * @return the consumer stall time in nanoseconds
+     */
+    public long getConsumerStallNanos() {
+        return consumerStallNanos;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{depth=" + size() + ", maxDepth=" + maxDepth + ", producerStalls=" + producerStalls
+                + " (" + producerStallNanos / 1_000_000 + " ms), consumerStalls=" + consumerStalls
+                + " (" + consumerStallNanos / 1_000_000 + " ms)}";
+    }
+}
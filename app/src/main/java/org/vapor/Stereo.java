@@ -2,15 +2,12 @@ package org.vapor;
 
 import org.ejml.simple.SimpleMatrix;
 import org.ejml.simple.SimpleSVD;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
 import org.opencv.core.Point3;
 
-import java.util.HashMap;
-
 /**
- * Represents a stereo camera system.
+ * Represents a stereo camera system. Either camera can be the reference camera, whose image is tracked and in whose
+ * frame landmarks are triangulated, so that rigs mounted in different orientations share the same odometry.
  */
 public class Stereo {
     /* A 3x3 intrinsics matrix for camera 1. */
@@ -19,11 +16,11 @@ public class Stereo {
     /* A 3x3 intrinsics matrix for camera 2. */
     private final SimpleMatrix mtx2;
 
-    /* A 1x5 distortion matrix for camera 1. */
-    public final MatOfDouble dist1;
+    /* The distortion coefficients {k1, k2, p1, p2, k3} of camera 1, copied so that they cannot change. */
+    private final double[] dist1;
 
-    /* A 1x5 distortion matrix for camera 2. */
-    public final MatOfDouble dist2;
+    /* The distortion coefficients {k1, k2, p1, p2, k3} of camera 2, copied so that they cannot change. */
+    private final double[] dist2;
 
     /* A 3x4 projection matrix for camera 1. */
     private final SimpleMatrix proj1;
@@ -34,18 +31,71 @@ public class Stereo {
     /* A pointer to the reference camera's instrinsics matrix. */
     private final SimpleMatrix camera;
 
-    /* A hashmap of features, mapping from the first image to the second image. */
-    private final HashMap<Feature, Feature> featureMap;
+    /* The reference camera, {@link Rectification#LEFT} for camera 1 or {@link Rectification#RIGHT} for camera 2. */
+    private final int reference;
+
+    /* The row-major 3x3 rotation and 3x1 translation from camera 1 to camera 2. */
+    private final double[] rotation = new double[9];
+    private final double[] translation = new double[3];
+
+    /* The reference camera's intrinsics {fx, fy, cx, cy} and distortion coefficients {k1, k2, p1, p2, k3}. */
+    private final double[] cameraIntrinsics;
+    private final double[] cameraDistortion;
+
+    /* The rectification of the stereo pair, with remap lookup tables if the image size is known. */
+    private final Rectification rectification;
 
     public Stereo(SimpleMatrix mtx1, SimpleMatrix mtx2, MatOfDouble dist1, MatOfDouble dist2, SimpleMatrix R, SimpleMatrix T) {
-        // store the camera and distortion matrices
+        this(mtx1, mtx2, dist1, dist2, R, T, 0, 0);
+    }
+
+    /**
+     * Constructs a stereo camera system, precomputing the rectification lookup tables for the given image size.
+     *
+     * @param mtx1 the 3x3 intrinsics matrix of camera 1
+     * @param mtx2 the 3x3 intrinsics matrix of camera 2
+     * @param dist1 the 1x5 distortion coefficients of camera 1
+     * @param dist2 the 1x5 distortion coefficients of camera 2
+     * @param R the 3x3 rotation from camera 1 to camera 2
+     * @param T the 3x1 translation from camera 1 to camera 2
+     * @param width the image width in pixels, or 0 to skip building lookup tables
+     * @param height the image height in pixels, or 0 to skip building lookup tables
+     */
+    public Stereo(SimpleMatrix mtx1, SimpleMatrix mtx2, MatOfDouble dist1, MatOfDouble dist2, SimpleMatrix R, SimpleMatrix T, int width, int height) {
+        this(mtx1, mtx2, dist1, dist2, R, T, width, height, Rectification.LEFT);
+    }
+
+    /**
+     * Constructs a stereo camera system with a given reference camera, precomputing the rectification lookup tables
+     * for the given image size.
+     *
+     * @param mtx1 the 3x3 intrinsics matrix of camera 1
+     * @param mtx2 the 3x3 intrinsics matrix of camera 2
+     * @param dist1 the 1x5 distortion coefficients of camera 1
+     * @param dist2 the 1x5 distortion coefficients of camera 2
+     * @param R the 3x3 rotation from camera 1 to camera 2
+     * @param T the 3x1 translation from camera 1 to camera 2
+     * @param width the image width in pixels, or 0 to skip building lookup tables
+     * @param height the image height in pixels, or 0 to skip building lookup tables
+     * @param reference {@link Rectification#LEFT} to track camera 1, or {@link Rectification#RIGHT} to track camera 2
+     */
+    public Stereo(SimpleMatrix mtx1, SimpleMatrix mtx2, MatOfDouble dist1, MatOfDouble dist2, SimpleMatrix R, SimpleMatrix T,
+                  int width, int height, int reference) {
+        if (reference != Rectification.LEFT && reference != Rectification.RIGHT) {
+            throw new IllegalArgumentException("The reference camera must be Rectification.LEFT or Rectification.RIGHT.");
+        }
+
+        // store the camera matrices and copies of the distortion coefficients
         this.mtx1 = mtx1;
         this.mtx2 = mtx2;
-        this.dist1 = dist1;
-        this.dist2 = dist2;
+        this.dist1 = dist1.toArray();
+        this.dist2 = dist2.toArray();
 
-        // set reference camera to be the first camera
-        this.camera = mtx1;
+        // set the reference camera, caching its parameters
+        this.reference = reference;
+        this.camera = reference == Rectification.LEFT ? mtx1 : mtx2;
+        this.cameraIntrinsics = toIntrinsics(camera);
+        this.cameraDistortion = (reference == Rectification.LEFT ? this.dist1 : this.dist2).clone();
 
         // RT matrix for C1 is identity (3x4)
         SimpleMatrix RT1 = SimpleMatrix.identity(4);
@@ -62,8 +112,26 @@ public class Stereo {
         // projection matrix for C2 (3x4)
         this.proj2 =  mtx2.mult(RT2);
 
-        // initialize feature map
-        this.featureMap = new HashMap<>();
+        // precompute the rectification and its lookup tables
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                rotation[i * 3 + j] = R.get(i, j);
+            }
+            translation[i] = T.get(i, 0);
+        }
+        this.rectification = new Rectification(toIntrinsics(mtx1), this.dist1, toIntrinsics(mtx2), this.dist2,
+                rotation, translation, width, height);
+    }
+
+    /**
+     * Extracts the pinhole parameters from an intrinsics matrix.
+     *
+     * @param mtx the 3x3 intrinsics matrix
+     *
+     * @return the intrinsics {fx, fy, cx, cy}
+     */
+    private static double[] toIntrinsics(SimpleMatrix mtx) {
+        return new double[]{ mtx.get(0, 0), mtx.get(1, 1), mtx.get(0, 2), mtx.get(1, 2) };
     }
 
     /**
@@ -122,48 +190,176 @@ public class Stereo {
                 triangulatedPoint[2] / w
         };
 
-        System.out.println("Triangulated point: ");
-        System.out.println("x: " + normalizedPoint[0] + ", y: " + normalizedPoint[1] + ", z: " + normalizedPoint[2]);
-
         return new Point3(normalizedPoint[0], normalizedPoint[1], normalizedPoint[2]);
     }
 
     /**
-     * Converts an EJML SimpleMatrix to an OpenCV Mat.
+     * Triangulates a 3D point in the reference camera's frame from a pixel of the reference camera and the matching
+     * pixel of the other camera.
      *
-     * @param simpleMatrix The EJML SimpleMatrix to convert
+     * @param reference the 2D point in the reference camera's image, as {column, row}
+     * @param other the 2D point in the other camera's image, as {column, row}
      *
-     * @return An OpenCV Mat containing the same data
+     * @return the triangulated 3D point in the reference camera's frame
      */
-    private Mat simpleMatrixToMat(SimpleMatrix simpleMatrix) {
-        int rows = simpleMatrix.getNumRows();
-        int cols = simpleMatrix.getNumCols();
-        Mat mat = new Mat(rows, cols, CvType.CV_64F);
+    public Point3 triangulateFromReference(double[] reference, double[] other) {
+        if (this.reference == Rectification.LEFT) {
+            return triangulate(reference, other);
+        }
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                mat.put(i, j, simpleMatrix.get(i, j));
-            }
+        // move the point from camera 1 into camera 2, X_2 = R X_1 + T
+        Point3 point = triangulate(other, reference);
+        double[] p = { point.x, point.y, point.z };
+        double[] q = new double[3];
+        Rotation.apply(rotation, p, q);
+        return new Point3(q[0] + translation[0], q[1] + translation[1], q[2] + translation[2]);
+    }
+
+    /**
+     * Triangulates a 3D point in the reference camera's frame from the rectified pixels of the reference camera and
+     * the other camera, by their disparity.
+     *
+     * @param reference the rectified {column, row} of the point in the reference camera's image
+     * @param other the rectified {column, row} of the point in the other camera's image
+     * @param out the point in the reference camera's frame
+     *
+     * @return true if the point is in front of the cameras
+     */
+    public boolean triangulateRectified(double[] reference, double[] other, double[] out) {
+        if (this.reference == Rectification.LEFT) {
+            return rectification.triangulate(reference, other, out);
         }
+        if (!rectification.triangulate(other, reference, out)) {
+            return false;
+        }
+
+        // move the point from camera 1 into camera 2, X_2 = R X_1 + T
+        double x = out[0];
+        double y = out[1];
+        double z = out[2];
+        out[0] = rotation[0] * x + rotation[1] * y + rotation[2] * z + translation[0];
+        out[1] = rotation[3] * x + rotation[4] * y + rotation[5] * z + translation[1];
+        out[2] = rotation[6] * x + rotation[7] * y + rotation[8] * z + translation[2];
+        return out[2] > 0;
+    }
+
+    /**
+     * Returns the pinhole parameters of one camera.
+     *
+     * @param camera {@link Rectification#LEFT} for camera 1, or {@link Rectification#RIGHT} for camera 2
+     *
+     * @return the intrinsics {fx, fy, cx, cy} of the camera
+     */
+    public double[] getIntrinsics(int camera) {
+        return toIntrinsics(camera == Rectification.LEFT ? mtx1 : mtx2);
+    }
+
+    /**
+     * Returns the distortion coefficients of one camera.
+     *
+     * @param camera {@link Rectification#LEFT} for camera 1, or {@link Rectification#RIGHT} for camera 2
+     *
+     * @return the distortion coefficients {k1, k2, p1, p2, k3} of the camera
+     */
+    public double[] getDistortionCoefficients(int camera) {
+        return (camera == Rectification.LEFT ? dist1 : dist2).clone();
+    }
+
+    /**
+     * Returns the rotation from camera 1 to camera 2, X_2 = R X_1 + T.
+     *
+     * @return the row-major 3x3 rotation
+     */
+    public double[] getStereoRotation() {
+        return rotation.clone();
+    }
+
+    /**
+     * Returns the translation from camera 1 to camera 2, X_2 = R X_1 + T.
+     *
+     * @return the 3x1 translation
+     */
+    public double[] getStereoTranslation() {
+        return translation.clone();
+    }
 
-        return mat;
+    /**
+     * Returns the reference camera.
+     *
+     * @return {@link Rectification#LEFT} for camera 1, or {@link Rectification#RIGHT} for camera 2
+     */
+    public int getReference() {
+        return reference;
+    }
+
+    /**
+     * Returns the grayscale image of a frame taken by the reference camera.
+     *
+     * @param frame the frame
+     *
+     * @return the grayscale values of the reference camera's image
+     */
+    public int[][] getReferenceImage(Frame frame) {
+        return reference == Rectification.LEFT ? frame.leftGrayImage : frame.rightGrayImage;
     }
 
     /**
-     * Returns the camera matrix for the reference camera.
+     * Returns the grayscale image of a frame taken by the other camera.
+     *
+     * @param frame the frame
      *
-     * @return the camera matrix for the reference camera
+     * @return the grayscale values of the other camera's image
      */
-    public Mat getCamera() {
-        return simpleMatrixToMat(camera);
+    public int[][] getOtherImage(Frame frame) {
+        return reference == Rectification.LEFT ? frame.rightGrayImage : frame.leftGrayImage;
     }
 
     /**
-     * Returns the distortion matrix for the reference camera
+     * Returns the distortion matrix for the reference camera. The matrix is a new copy, owned by the caller.
      *
      * @return the distortion matrix for the reference camera
      */
     public MatOfDouble getDistortion() {
-        return camera == mtx1 ? dist1 : dist2;
+        return new MatOfDouble(cameraDistortion);
+    }
+
+    /**
+     * Returns the rectification of the stereo pair.
+     *
+     * @return the rectification of the stereo pair
+     */
+    public Rectification getRectification() {
+        return rectification;
+    }
+
+    /**
+     * Rectifies the grayscale images of a frame into images owned by the caller, so that stereo matches lie on the
+     * same row. The frame is left as it is, and the same images can be reused for every frame.
+     *
+     * @param frame the frame to rectify, whose images must match the size given at construction
+     * @param left the rectified image of camera 1, of the same size
+     * @param right the rectified image of camera 2, of the same size
+     */
+    public void rectify(Frame frame, int[][] left, int[][] right) {
+        rectification.remap(Rectification.LEFT, frame.leftGrayImage, left);
+        rectification.remap(Rectification.RIGHT, frame.rightGrayImage, right);
+    }
+
+    /**
+     * Returns the pinhole parameters of the reference camera.
+     *
+     * @return the intrinsics {fx, fy, cx, cy} of the reference camera
+     */
+    public double[] getIntrinsics() {
+        return cameraIntrinsics.clone();
+    }
+
+    /**
+     * Returns the distortion coefficients of the reference camera.
+     *
+     * @return the distortion coefficients {k1, k2, p1, p2, k3} of the reference camera
+     */
+    public double[] getDistortionCoefficients() {
+        return cameraDistortion.clone();
     }
 }
@@ -0,0 +1,479 @@
+package org.vapor;
+
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A deterministic synthetic scene in front of a stereo rig, rendered along a known trajectory.
+ *
+ * The scene is a set of textured rectangles at random depths and tilts, each covered with a grid of random gray
+ * cells whose corners give the detector features. Both cameras are rendered by casting a ray through every pixel,
+ * undistorted with the camera's own calibration, so the images follow the same model as the real rig. The reference
+ * camera moves at a constant velocity and turns at a constant rate from the origin of the world frame, and every
+ * distance is scaled by the baseline, so the same scene suits any rig.
+ *
+ * Besides the frames, the scene gives the true pose of the reference camera at every frame, the true motion between
+ * two frames, and true 2D-3D correspondences between them, so the whole pipeline, or RANSAC alone, can be measured
+ * and checked without any recorded data. Everything is generated from the seed, so the same seed always gives the
+ * same images.
+ */
+public class SyntheticScene {
+    /** The default number of rectangles in the scene. */
+    public static final int DEFAULT_PLANES = 32;
+
+    /** The default standard deviation of the image noise, in gray levels. */
+    public static final double DEFAULT_NOISE = 2.0;
+
+    /** The default velocity of the reference camera, in baselines per frame in the world frame. */
+    private static final double[] DEFAULT_VELOCITY = {0.05, 0, 0.25};
+
+    /** The default angular velocity of the reference camera, as a Rodrigues vector per frame. */
+    private static final double[] DEFAULT_ANGULAR_VELOCITY = {0, 0.002, 0};
+
+    /** The nearest depth and the depth range of the rectangles, in baselines. */
+    private static final double MIN_DEPTH = 10;
+    private static final double DEPTH_RANGE = 50;
+
+    /** The smallest and largest half-size of a rectangle, in baselines. */
+    private static final double MIN_HALF_SIZE = 1.5;
+    private static final double MAX_HALF_SIZE = 5;
+
+    /** The largest tilt of a rectangle away from facing the camera, in radians. */
+    private static final double MAX_TILT = 0.6;
+
+    /** The size of a texture cell in pixels, at the depth of its rectangle. */
+    private static final double CELL_PIXELS = 8;
+
+    /** The gray level of the background, which has no texture. */
+    private static final int BACKGROUND = 96;
+
+    /* The size of the images. */
+    private final int width;
+    private final int height;
+
+    /* The standard deviation of the image noise, and the seed of everything. */
+    private final double noise;
+    private final long seed;
+
+    /* The motion of the reference camera per frame. */
+    private final double[] velocity;
+    private final double[] angularVelocity;
+
+    /* The pose of each camera relative to the reference camera, X_r = rigRotation * X_c + rigPosition. */
+    private final double[][] rigRotation = new double[2][];
+    private final double[][] rigPosition = new double[2][];
+
+    /* The calibration of each camera, and the reference camera. */
+    private final double[][] intrinsics = new double[2][];
+    private final double[][] distortion = new double[2][];
+    private final int reference;
+
+    /* The undistorted normalized ray of every pixel of each camera, interleaved {x, y}, computed on first use. */
+    private final double[][] rays = new double[2][];
+
+    /* The rectangles: center, unit normal, unit in-plane axes, half-size, texture cell size and texture seed. */
+    private final double[][] centers;
+    private final double[][] normals;
+    private final double[][] axesU;
+    private final double[][] axesV;
+    private final double[] halfSizes;
+    private final double[] cellSizes;
+    private final long[] textures;
+
+    /**
+     * Constructs a scene with the default number of rectangles, noise and trajectory.
+     *
+     * @param cameras the stereo rig
+     * @param width the width of the images
+     * @param height the height of the images
+     * @param seed the seed of the scene
+     */
+    public SyntheticScene(Stereo cameras, int width, int height, long seed) {
+        this(cameras, width, height, DEFAULT_PLANES, DEFAULT_NOISE, DEFAULT_VELOCITY, DEFAULT_ANGULAR_VELOCITY, seed);
+    }
+
+    /**
+     * Constructs a scene.
+     *
+     * @param cameras the stereo rig
+     * @param width the width of the images
+     * @param height the height of the images
+     * @param planes the number of rectangles, more giving more features
+     * @param noise the standard deviation of the image noise, in gray levels
+     * @param velocity the velocity of the reference camera, in baselines per frame in the world frame
+     * @param angularVelocity the angular velocity of the reference camera, as a Rodrigues vector per frame
+     * @param seed the seed of the scene
+     */
+    public SyntheticScene(Stereo cameras, int width, int height, int planes, double noise, double[] velocity,
+                          double[] angularVelocity, long seed) {
+        this.width = width;
+        this.height = height;
+        this.noise = noise;
+        this.seed = seed;
+        this.reference = cameras.getReference();
+
+        // the calibration of both cameras, and where each sits on the rig relative to the reference camera
+        double[] R = cameras.getStereoRotation();
+        double[] T = cameras.getStereoTranslation();
+        double baseline = Math.sqrt(T[0] * T[0] + T[1] * T[1] + T[2] * T[2]);
+        int other = reference == Rectification.LEFT ? Rectification.RIGHT : Rectification.LEFT;
+        for (int c = 0; c < 2; c++) {
+            intrinsics[c] = cameras.getIntrinsics(c);
+            distortion[c] = cameras.getDistortionCoefficients(c);
+        }
+        rigRotation[reference] = new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+        rigPosition[reference] = new double[3];
+        if (reference == Rectification.LEFT) {
+            // X_1 = R^T (X_2 - T)
+            rigRotation[other] = new double[9];
+            rigPosition[other] = new double[3];
+            transpose(R, rigRotation[other]);
+            Rotation.applyTransposed(R, T, rigPosition[other]);
+            scale(rigPosition[other], -1);
+        } else {
+            // X_2 = R X_1 + T
+            rigRotation[other] = R;
+            rigPosition[other] = T;
+        }
+        this.velocity = velocity.clone();
+        this.angularVelocity = angularVelocity.clone();
+        scale(this.velocity, baseline);
+
+        // scatter the rectangles in front of the starting pose, within the reference camera's field of view
+        SplittableRandom random = new SplittableRandom(seed);
+        double focal = intrinsics[reference][0];
+        double halfWidth = width / (2 * focal);
+        double halfHeight = height / (2 * intrinsics[reference][1]);
+        centers = new double[planes][];
+        normals = new double[planes][];
+        axesU = new double[planes][];
+        axesV = new double[planes][];
+        halfSizes = new double[planes];
+        cellSizes = new double[planes];
+        textures = new long[planes];
+        for (int i = 0; i < planes; i++) {
+            double depth = baseline * (MIN_DEPTH + DEPTH_RANGE * random.nextDouble());
+            centers[i] = new double[]{
+                    depth * halfWidth * (2 * random.nextDouble() - 1),
+                    depth * halfHeight * (2 * random.nextDouble() - 1),
+                    depth
+            };
+
+            // a rectangle facing the camera, tilted about a random axis
+            double[] tilt = {MAX_TILT * (2 * random.nextDouble() - 1), MAX_TILT * (2 * random.nextDouble() - 1), Math.PI * random.nextDouble()};
+            double[] orientation = new double[9];
+            Rotation.toMatrix(tilt, orientation);
+            axesU[i] = new double[]{orientation[0], orientation[3], orientation[6]};
+            axesV[i] = new double[]{orientation[1], orientation[4], orientation[7]};
+            normals[i] = new double[]{orientation[2], orientation[5], orientation[8]};
+            halfSizes[i] = baseline * (MIN_HALF_SIZE + (MAX_HALF_SIZE - MIN_HALF_SIZE) * random.nextDouble());
+            cellSizes[i] = depth / focal * CELL_PIXELS * (0.75 + 0.75 * random.nextDouble());
+            textures[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Renders the stereo pair at a frame.
+     *
+     * @param frame the index of the frame
+     *
+     * @return the rendered frame
+     */
+    public Frame frame(int frame) {
+        return new Frame(render(frame, Rectification.LEFT), render(frame, Rectification.RIGHT));
+    }
+
+    /**
+     * Renders the image of one camera at a frame.
+     *
+     * @param frame the index of the frame
+     * @param camera {@link Rectification#LEFT} for camera 1, or {@link Rectification#RIGHT} for camera 2
+     *
+     * @return the grayscale values, indexed [row][column]
+     */
+    public int[][] render(int frame, int camera) {
+        double[] ray = rays(camera);
+        double[] rotation = new double[9];
+        double[] position = new double[3];
+        cameraPose(frame, camera, rotation, position);
+
+        int[][] image = new int[height][width];
+        SplittableRandom random = new SplittableRandom(mix(seed + 2L * frame + camera));
+        double[] direction = new double[3];
+        double[] local = new double[3];
+        int[] hit = new int[1];
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                // the ray through the pixel in the world frame
+                local[0] = ray[2 * (i * width + j)];
+                local[1] = ray[2 * (i * width + j) + 1];
+                local[2] = 1;
+                Rotation.apply(rotation, local, direction);
+
+                double t = cast(position, direction, hit);
+                double value = t < Double.POSITIVE_INFINITY ? texture(hit[0], position, direction, t) : BACKGROUND;
+                if (noise > 0) {
+                    value += noise * gaussian(random);
+                }
+                image[i][j] = (int) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the true pose of the reference camera at a frame, X_w = rotation * X_c + position.
+     *
+     * @param frame the index of the frame
+     * @param rotation the output row-major 3x3 rotation from the camera to the world frame
+     * @param position the output 3x1 position of the camera in the world frame
+     */
+    public void pose(int frame, double[] rotation, double[] position) {
+        double[] rvec = new double[3];
+        for (int i = 0; i < 3; i++) {
+            rvec[i] = angularVelocity[i] * frame;
+            position[i] = velocity[i] * frame;
+        }
+        Rotation.toMatrix(rvec, rotation);
+    }
+
+    /**
+     * Returns the true motion of the reference camera between two frames, X_to = R X_from + t.
+     *
+     * @param from the index of the first frame
+     * @param to the index of the second frame
+     *
+     * @return the motion
+     */
+    public Motion motion(int from, int to) {
+        double[] rotationFrom = new double[9];
+        double[] positionFrom = new double[3];
+        double[] rotationTo = new double[9];
+        double[] positionTo = new double[3];
+        pose(from, rotationFrom, positionFrom);
+        pose(to, rotationTo, positionTo);
+
+        // R = R_to^T R_from, t = R_to^T (p_from - p_to)
+        double[] R = new double[9];
+        Rotation.multiplyTransposed(rotationTo, rotationFrom, R);
+        double[] offset = new double[3];
+        for (int i = 0; i < 3; i++) {
+            offset[i] = positionFrom[i] - positionTo[i];
+        }
+        double[] t = new double[3];
+        Rotation.applyTransposed(rotationTo, offset, t);
+        double[] rvec = new double[3];
+        Rotation.toVector(R, rvec);
+        return new Motion(rvec, t);
+    }
+
+    /**
+     * Generates true correspondences between the reference camera at two frames: points on the scene seen by the
+     * first frame, in its camera frame, and the pixels they are seen at in the second frame, without noise. Points
+     * that leave the second image or are hidden behind another rectangle are skipped.
+     *
+     * @param from the index of the frame of the 3D points
+     * @param to the index of the frame of the pixels
+     * @param count the number of correspondences wanted
+     * @param points2D the output pixels in the second frame, as {column, row}
+     * @param points3D the output 3D points in the first frame's reference camera frame
+     *
+     * @return the number of correspondences generated, fewer than asked for if the frames barely overlap
+     */
+    public int correspondences(int from, int to, int count, List<Point> points2D, List<Point3> points3D) {
+        double[] ray = rays(reference);
+        double[] rotationFrom = new double[9];
+        double[] positionFrom = new double[3];
+        double[] rotationTo = new double[9];
+        double[] positionTo = new double[3];
+        pose(from, rotationFrom, positionFrom);
+        pose(to, rotationTo, positionTo);
+
+        SplittableRandom random = new SplittableRandom(mix(seed ^ mix(from * 31L + to)));
+        double[] local = new double[3];
+        double[] direction = new double[3];
+        double[] point = new double[3];
+        double[] offset = new double[3];
+        double[] seen = new double[3];
+        double[] distorted = new double[2];
+        int[] hit = new int[1];
+        double[] k = intrinsics[reference];
+        int generated = 0;
+        for (int attempt = 0; attempt < 20 * count && generated < count; attempt++) {
+            // a point of the scene seen through a random pixel of the first frame
+            int pixel = random.nextInt(width * height);
+            local[0] = ray[2 * pixel];
+            local[1] = ray[2 * pixel + 1];
+            local[2] = 1;
+            Rotation.apply(rotationFrom, local, direction);
+            double t = cast(positionFrom, direction, hit);
+            if (t == Double.POSITIVE_INFINITY) continue;
+            for (int i = 0; i < 3; i++) {
+                point[i] = positionFrom[i] + t * direction[i];
+            }
+
+            // the point in the second frame, which must see it in its image and unoccluded
+            for (int i = 0; i < 3; i++) {
+                offset[i] = point[i] - positionTo[i];
+            }
+            Rotation.applyTransposed(rotationTo, offset, seen);
+            if (!(seen[2] > 0)) continue;
+            Rectification.distort(distortion[reference], seen[0] / seen[2], seen[1] / seen[2], distorted);
+            double u = k[0] * distorted[0] + k[2];
+            double v = k[1] * distorted[1] + k[3];
+            if (u < 0 || v < 0 || u > width - 1 || v > height - 1) continue;
+            local[0] = seen[0] / seen[2];
+            local[1] = seen[1] / seen[2];
+            local[2] = 1;
+            Rotation.apply(rotationTo, local, direction);
+            if (Math.abs(cast(positionTo, direction, hit) - seen[2]) > 1E-6 * seen[2]) continue;
+
+            points2D.add(new Point(u, v));
+            points3D.add(new Point3(t * ray[2 * pixel], t * ray[2 * pixel + 1], t));
+            generated++;
+        }
+        return generated;
+    }
+
+    /**
+     * Returns the pose of one camera at a frame, X_w = rotation * X_c + position.
+     */
+    private void cameraPose(int frame, int camera, double[] rotation, double[] position) {
+        double[] referenceRotation = new double[9];
+        double[] referencePosition = new double[3];
+        pose(frame, referenceRotation, referencePosition);
+        Rotation.multiply(referenceRotation, rigRotation[camera], rotation);
+        Rotation.apply(referenceRotation, rigPosition[camera], position);
+        for (int i = 0; i < 3; i++) {
+            position[i] += referencePosition[i];
+        }
+    }
+
+    /**
+     * Finds the nearest rectangle a ray hits.
+     *
+     * @param origin the origin of the ray
+     * @param direction the direction of the ray
+     * @param hit the output index of the rectangle hit
+     *
+     * @return the distance along the ray in units of its direction, or infinity if it hits nothing
+     */
+    private double cast(double[] origin, double[] direction, int[] hit) {
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int p = 0; p < centers.length; p++) {
+            double[] n = normals[p];
+            double denominator = n[0] * direction[0] + n[1] * direction[1] + n[2] * direction[2];
+            if (Math.abs(denominator) < 1E-12) continue;
+            double[] c = centers[p];
+            double dx = c[0] - origin[0];
+            double dy = c[1] - origin[1];
+            double dz = c[2] - origin[2];
+            double t = (n[0] * dx + n[1] * dy + n[2] * dz) / denominator;
+            if (!(t > 0) || t >= nearest) continue;
+
+            // the hit must lie within the rectangle
+            double hx = t * direction[0] - dx;
+            double hy = t * direction[1] - dy;
+            double hz = t * direction[2] - dz;
+            double[] a = axesU[p];
+            double[] b = axesV[p];
+            double s = halfSizes[p];
+            if (Math.abs(a[0] * hx + a[1] * hy + a[2] * hz) > s || Math.abs(b[0] * hx + b[1] * hy + b[2] * hz) > s) continue;
+            nearest = t;
+            hit[0] = p;
+        }
+        return nearest;
+    }
+
+    /**
+     * Looks up the texture of a rectangle where a ray hits it.
+     */
+    private double texture(int plane, double[] origin, double[] direction, double t) {
+        double[] c = centers[plane];
+        double hx = origin[0] + t * direction[0] - c[0];
+        double hy = origin[1] + t * direction[1] - c[1];
+        double hz = origin[2] + t * direction[2] - c[2];
+        double[] a = axesU[plane];
+        double[] b = axesV[plane];
+        long u = (long) Math.floor((a[0] * hx + a[1] * hy + a[2] * hz) / cellSizes[plane]);
+        long v = (long) Math.floor((b[0] * hx + b[1] * hy + b[2] * hz) / cellSizes[plane]);
+        return 16 + (mix(textures[plane] ^ mix(u * 0x9E3779B97F4A7C15L + v)) >>> 40) % 224;
+    }
+
+    /**
+     * Returns the undistorted normalized ray of every pixel of a camera, computing them on first use.
+     */
+    private double[] rays(int camera) {
+        if (rays[camera] == null) {
+            double[] ray = new double[2 * width * height];
+            double[] normalized = new double[2];
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    Rectification.undistortPoint(intrinsics[camera], distortion[camera], j, i, normalized);
+                    ray[2 * (i * width + j)] = normalized[0];
+                    ray[2 * (i * width + j) + 1] = normalized[1];
+                }
+            }
+            rays[camera] = ray;
+        }
+        return rays[camera];
+    }
+
+    /**
+     * Draws a standard normal value with the Box-Muller transform.
+     */
+    private static double gaussian(SplittableRandom random) {
+        double u = 1 - random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * Scrambles the bits of a value, the SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Transposes a 3x3 matrix.
+     */
+    private static void transpose(double[] m, double[] out) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[3 * j + i] = m[3 * i + j];
+            }
+        }
+    }
+
+    /**
+     * Scales a vector in place.
+     */
+    private static void scale(double[] v, double factor) {
+        for (int i = 0; i < v.length; i++) {
+            v[i] *= factor;
+        }
+    }
+
+    /**
+     * Returns the width of the images.
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the images.
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -4,16 +4,17 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.lang.Math;
 
+/**
+ * Matches features between two images by the SAD of their surrounding windows, keeping mutually best matches.
+ *
+ * Tracking keeps no state between calls, so several pairs of images can be matched concurrently.
+ */
 public class Tracking {
-    /** The FeatureInfo object representing the first image. */
-    static FeatureInfo infoA;
-
-    /** The FeatureInfo object representing the second image. */
-    static FeatureInfo infoB;
-
     /**
      * Calculates the sum of absolute differences between two 11x11 windows in two images.
      *
+     * @param infoA the FeatureInfo object representing the first image.
+     * @param infoB the FeatureInfo object representing the second image.
      * @param ax the x-coordinate of the center of the window in the first image.
      * @param ay the y-coordinate of the center of the window in the first image.
      * @param bx the x-coordinate of the center of the window in the second image.
@@ -21,7 +22,7 @@ public class Tracking {
      *
      * @return the sum of absolute differences between the two windows.
      */
-    private static int sad(int ax, int ay, int bx, int by) {
+    static int sad(FeatureInfo infoA, FeatureInfo infoB, int ax, int ay, int bx, int by) {
         // iterate through 11x11 window in both images
         int sum = 0;
         for (int i = -5; i <= 5; i++) {
@@ -39,13 +40,28 @@ public class Tracking {
     /**
      * Tracks features between two images.
      *
-     * @param infoAIn the FeatureInfo object representing the first image.
-     * @param infoBIn the FeatureInfo object representing the second image.
+     * @param infoA the FeatureInfo object representing the first image.
+     * @param infoB the FeatureInfo object representing the second image.
      */
-    public static HashMap<Feature, Feature> track(FeatureInfo infoAIn, FeatureInfo infoBIn) {
-        // set infoA and infoB
-        infoA = infoAIn;
-        infoB = infoBIn;
+    public static HashMap<Feature, Feature> track(FeatureInfo infoA, FeatureInfo infoB) {
+        return track(infoA, infoB, null, null, 0);
+    }
+
+    /**
+     * Tracks features between the two images of a stereo pair, only comparing the windows of features whose
+     * rectified epipolar lines are within a tolerance of each other, so the search runs along the rectified rows.
+     *
+     * @param infoA the FeatureInfo object representing the first image.
+     * @param infoB the FeatureInfo object representing the second image.
+     * @param linesA the rectified epipolar line of every feature of the first image, indexed by x * width + y, or null
+     *               to compare every feature in the search window.
+     * @param linesB the rectified epipolar line of every feature of the second image, indexed the same way.
+     * @param maxLineError the largest distance between the epipolar lines of two features that are compared.
+     */
+    public static HashMap<Feature, Feature> track(FeatureInfo infoA, FeatureInfo infoB, float[] linesA, float[] linesB,
+                                                  float maxLineError) {
+        Events.Matching event = new Events.Matching();
+        event.begin();
 
         // get height and width
         int height = infoA.height;
@@ -54,12 +70,16 @@ public class Tracking {
         // initialize hashmaps to track maximally correlated features between infoA and infoB
         HashMap<Feature, Feature> mapA = new HashMap<Feature, Feature>();
         HashMap<Feature, Feature> mapB = new HashMap<Feature, Feature>();
+        int features = 0;
+        long candidates = 0;
 
         // iterate through the features in infoA
         for (int i = 0; i < height; i++) {
             for (int j = 0; j < width; j++) {
                 // check if feature exists
                 if (infoA.features[i][j] == 0) { continue; }
+                features++;
+                float line = linesA == null ? 0 : linesA[i * width + j];
 
                 // search within 10% of image size for features in infoB
                 int xMin = Math.max(i - height / 10, 0);
@@ -73,8 +93,12 @@ public class Tracking {
                         // check if feature exists
                         if (infoB.features[x][y] == 0) { continue; }
 
+                        // skip features off the epipolar line
+                        if (linesA != null && Math.abs(linesB[x * width + y] - line) > maxLineError) { continue; }
+
                         // get SAD
-                        int sad = sad(i, j, x, y);
+                        int sad = sad(infoA, infoB, i, j, x, y);
+                        candidates++;
                         if (sad < minSAD) {
                             minSAD = sad;
                             bestMatch = new Feature(infoB.strengths[x-3][y-3], x, y, infoB.features);
@@ -112,6 +136,13 @@ public class Tracking {
             }
         }
 
+        if (event.shouldCommit()) {
+            event.features = features;
+            event.candidates = candidates;
+            event.proposed = mapA.size();
+            event.matches = matches.size();
+            event.commit();
+        }
         return matches;
     }
 }
@@ -0,0 +1,845 @@
+package org.vapor;
+
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Stereo visual odometry over a stream of frames, tracked against keyframes. The left image below is the image of the
+ * rig's reference camera, which need not be camera 1, see {@link Stereo#getReference()}.
+ *
+ * A keyframe is detected and matched across its stereo pair, comparing only features on the same row of the rectified
+ * pair, and its matched left features are rectified and triangulated from their disparity into landmarks in its left
+ * camera. Every later frame only detects its left image and matches it against the keyframe's left features, giving
+ * 2D-3D correspondences with the keyframe's landmarks. Its motion relative to the keyframe is first refined from the
+ * previous frame's motion with Levenberg-Marquardt, which is enough while the camera moves slowly, and estimated with
+ * RANSAC when that fails. The pose of the camera in the world frame, which starts at the first frame, is the keyframe's
+ * pose composed with that motion.
+ *
+ * A new keyframe is requested when the motion is lost, when too few landmarks are still tracked, when too few
+ * correspondences agree with the motion, or when the parallax to the keyframe grows large. The next frame then pays
+ * for the right image, stereo matching and triangulation, so a stationary or slowly moving camera only pays for them
+ * once in a while.
+ *
+ * The landmarks of the keyframe and of the frame being promoted live in two sets of primitive arrays that are swapped
+ * on every keyframe and only grow, keyed by the pixel of their left feature so that matches find them by binary
+ * search.
+ *
+ * Every keyframe is also handed to a {@link BundleAdjustment} running in the background, which jointly refines the
+ * last keyframes and their landmarks. Its correction of the current keyframe's pose is applied as soon as it is
+ * ready, moving every frame tracked against that keyframe with it, so the drift of the chained keyframe poses is
+ * bounded by the window rather than accumulated keyframe after keyframe.
+ *
+ * The landmarks of every keyframe are also kept in a {@link LandmarkMap} in the world frame. A new keyframe matches the
+ * map landmarks in view of its pose by their windows of image: the landmarks it triangulated again are refined rather
+ * than added twice, and when enough of them were last seen before the bundle adjustment window, the camera is back in
+ * an area it mapped before and the keyframe is relocalized against them with RANSAC. That takes out the drift gathered
+ * since the area was left, and the keyframe restarts the bundle adjustment window as its anchor. The map is matched by
+ * the estimation stage, which owns it and the pose, after the matching stage has already triangulated the keyframe, so
+ * a landmark seen again is still triangulated anew: the map saves adding it twice, not the triangulation.
+ *
+ * The work of a frame is split into stages, the detection of each image, matching and estimation, each owning its own
+ * state, so that a {@link Pipeline} can run every stage on its own thread with consecutive frames overlapping.
+ * Otherwise an instance must be used from one thread, processing frames one after another.
+ */
+public class VisualOdometry implements AutoCloseable {
+    /** The smallest number of correspondences a motion is estimated from, below which the pose is carried over. */
+    private static final int MIN_CORRESPONDENCES = 8;
+
+    /** The initial capacity of the landmark arrays. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The fraction of the keyframe's landmarks that must still be matched for it to stay the keyframe. */
+    private static final double MIN_TRACKED_RATIO = 0.5;
+
+    /** The fraction of correspondences that must agree with the motion for the keyframe to stay the keyframe. */
+    private static final double MIN_INLIER_RATIO = 0.5;
+
+    /** The largest distance from the keyframe, relative to the median depth of its landmarks, before a new keyframe. */
+    private static final double MAX_PARALLAX = 0.05;
+
+    /** The reprojection error in pixels below which a correspondence agrees with a refined motion. */
+    private static final double INLIER_THRESHOLD = 2.0;
+
+    /** The maximum number of iterations of the refinement of a motion from the previous frame's. */
+    private static final int REFINEMENT_ITERATIONS = 10;
+
+    /** The smallest number of map landmarks last seen before the bundle adjustment window to relocalize against. */
+    private static final int MIN_REVISITED = 20;
+
+    /** The search radius in pixels around the projection of a map landmark. */
+    private static final int MAP_SEARCH_RADIUS = 16;
+
+    /** The largest distance between a map landmark and its new triangulation, relative to its depth, to refine it. */
+    private static final double MAX_FUSION_DISTANCE = 0.1;
+
+    /** The largest distance in pixels between the rectified epipolar lines of a stereo match. */
+    private static final float MAX_LINE_ERROR = 2;
+
+    /* The stereo camera system. */
+    private final Stereo cameras;
+
+    /* The estimator of the motion between two frames. */
+    private final RANSAC ransac;
+
+    /* The refiner of a motion from the previous frame's motion, used by the estimation stage only. */
+    private final PoseRefiner refiner;
+
+    /* The sliding-window refinement of the keyframes, running on its own thread. */
+    private final BundleAdjustment bundleAdjustment;
+
+    /* The landmarks of every keyframe in the world frame and their matches with a new keyframe, owned by the
+     * estimation stage. */
+    private final LandmarkMap landmarkMap;
+    private final LandmarkMap.Matches mapMatches = new LandmarkMap.Matches();
+
+    /* The pinhole parameters and distortion of the reference camera, to normalize the observations of keyframes. */
+    private final double[] intrinsics;
+    private final double[] distortion;
+
+    /* The generator of the seed of each estimation, so that a stream always gives the same trajectory. */
+    private final SplittableRandom seeds;
+
+    /*
+     * The number of keyframes when the estimation stage last requested a new keyframe, so that the request is pending
+     * until matching promotes a frame past it. Each stage writes only its own counter, so a promotion can neither lose
+     * a request made against the new keyframe nor be followed by a stale request made against the old one.
+     */
+    private volatile long keyframeRequest;
+
+    /* The number of keyframes, written by the matching stage. */
+    private volatile long keyframes;
+
+    /* The pose of the current keyframe, X_w = rotation * X_c + position, owned by the estimation stage. */
+    private final double[] keyframeRotation = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private final double[] keyframePosition = new double[3];
+
+    /* The number of the current keyframe as seen by the estimation stage, which corrections must refer to. */
+    private long keyframeNumber;
+
+    /* The motion of the last frame relative to the current keyframe, or null if it has none. */
+    private Motion lastMotion;
+
+    /* The pose of the reference camera at the last frame, X_w = rotation * X_c + position. */
+    private final double[] rotation = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private final double[] position = new double[3];
+
+    /* The motion rotation, reused for every frame. */
+    private final double[] motionRotation = new double[9];
+
+    /* The left features of the keyframe, or null before the first keyframe, owned by the matching stage. */
+    private FeatureInfo keyframe;
+
+    /* The landmarks of the keyframe, sorted by the pixel key of their left feature, and their median depth. */
+    private int[] keyframeKeys = new int[INITIAL_CAPACITY];
+    private double[] keyframePoints = new double[3 * INITIAL_CAPACITY];
+    private int keyframeCount;
+    private double keyframeDepth;
+
+    /* The landmarks of the frame being promoted, built while the keyframe's are still in use. */
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private double[] points = new double[3 * INITIAL_CAPACITY];
+    private double[] staging = new double[3 * INITIAL_CAPACITY];
+    private double[] depths = new double[INITIAL_CAPACITY];
+    private long[] order = new long[INITIAL_CAPACITY];
+    private int count;
+    private double depth;
+
+    /* The rectified epipolar line of every feature of the stereo pair being promoted, indexed by pixel, and the
+     * rectified pixels and triangulation of one stereo match, reused by the matching stage. */
+    private float[] referenceLines = new float[0];
+    private float[] otherLines = new float[0];
+    private final double[] rectifiedReference = new double[2];
+    private final double[] rectifiedOther = new double[2];
+    private final double[] triangulated = new double[3];
+
+    /* The detectors of the reference and other cameras, each only ever used by one thread at a time. */
+    final Detection leftDetection = new Detection();
+    final Detection rightDetection = new Detection();
+
+    /* The number of frames processed. */
+    private long frames;
+
+    /* The latency and allocation of every stage, and of whole frames. */
+    private final Benchmark benchmark = new Benchmark();
+    private final Benchmark.Stage detectionStage = benchmark.stage("detection");
+    private final Benchmark.Stage matchingStage = benchmark.stage("matching");
+    private final Benchmark.Stage estimationStage = benchmark.stage("estimation");
+    private final Benchmark.Stage frameStage = benchmark.stage("frame");
+
+    /**
+     * Constructs a visual odometry engine estimating motions on the common pool.
+     *
+     * @param cameras the stereo camera system
+     */
+    public VisualOdometry(Stereo cameras) {
+        this(cameras, new RANSAC(ForkJoinPool.commonPool()), new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Constructs a visual odometry engine.
+     *
+     * @param cameras the stereo camera system
+     * @param ransac the estimator of the motion between two frames
+     * @param seed the seed of the estimations, the same seed always giving the same trajectory for the same stream
+     */
+    public VisualOdometry(Stereo cameras, RANSAC ransac, long seed) {
+        this.cameras = cameras;
+        this.ransac = ransac;
+        this.refiner = new PoseRefiner(cameras.getIntrinsics()[0], INLIER_THRESHOLD, REFINEMENT_ITERATIONS);
+        this.bundleAdjustment = new BundleAdjustment(cameras, BundleAdjustment.DEFAULT_WINDOW);
+        this.landmarkMap = new LandmarkMap(cameras);
+        this.intrinsics = cameras.getIntrinsics();
+        this.distortion = cameras.getDistortionCoefficients();
+        this.seeds = new SplittableRandom(seed);
+    }
+
+    /**
+     * Returns the stereo camera system.
+     *
+     * @return the stereo camera system
+     */
+    public Stereo getCameras() {
+        return cameras;
+    }
+
+    /**
+     * Returns the sliding-window refinement of the keyframes.
+     *
+     * @return the bundle adjustment
+     */
+    public BundleAdjustment getBundleAdjustment() {
+        return bundleAdjustment;
+    }
+
+    /**
+     * Returns the map of the landmarks of every keyframe, which must only be read between frames.
+     *
+     * @return the landmark map
+     */
+    public LandmarkMap getLandmarkMap() {
+        return landmarkMap;
+    }
+
+    /**
+     * Returns the latency histograms and allocation of the detection, matching and estimation stages, and the latency
+     * of whole frames.
+     *
+     * @return the benchmark of the stages
+     */
+    public Benchmark getBenchmark() {
+        return benchmark;
+    }
+
+    /**
+     * Stops the background refinement of the keyframes.
+     */
+    @Override
+    public void close() {
+        bundleAdjustment.close();
+    }
+
+    /**
+     * Processes every frame of a stream, emitting the pose of each one as soon as it is estimated.
+     *
+     * @param frames the frames, loaded on demand so that only the current frame is held in memory
+     * @param output the consumer of the poses
+     */
+    public void run(Iterator<Frame> frames, Consumer<Pose> output) {
+        while (frames.hasNext()) {
+            output.accept(process(frames.next()));
+        }
+    }
+
+    /**
+     * Processes the next frame of the stream, running every stage one after another on the calling thread.
+     *
+     * @param frame the frame
+     *
+     * @return the pose of the reference camera at the frame
+     */
+    public Pose process(Frame frame) {
+        Detected left = detect(leftDetection, cameras.getReferenceImage(frame));
+        Detected right = detectForKeyframe(rightDetection, cameras.getOtherImage(frame));
+        return estimate(match(left, right));
+    }
+
+    /**
+     * Detects the features of one image of a frame. This stage keeps no state besides the detector, so the two images
+     * of a frame can be detected concurrently with separate detectors.
+     *
+     * @param detection the detector of the camera
+     * @param grayscale the grayscale values of the image
+     *
+     * @return the features of the image, stamped with when the detection started and how long it took
+     */
+    Detected detect(Detection detection, int[][] grayscale) {
+        long start = detectionStage.start();
+        long bytes = detectionStage.startAllocation();
+        FeatureInfo features = detection.detect(grayscale);
+        return new Detected(features, start, detectionStage.stop(start, bytes));
+    }
+
+    /**
+     * Detects the features of the right image of a frame, only if a keyframe has been requested, since other frames
+     * are not matched across their stereo pair.
+     *
+     * @param detection the detector of the right camera
+     * @param grayscale the grayscale values of the right image
+     *
+     * @return the features of the image, or no features if no keyframe has been requested
+     */
+    Detected detectForKeyframe(Detection detection, int[][] grayscale) {
+        if (!keyframeRequested()) {
+            return new Detected(null, System.nanoTime(), 0);
+        }
+        return detect(detection, grayscale);
+    }
+
+    /**
+     * Matches the left features of a frame against the keyframe and collects the correspondences of its motion. If a
+     * keyframe has been requested and the right image was detected, the frame is also matched across its stereo pair
+     * and triangulated, and becomes the keyframe. This stage owns the keyframe's features and landmarks, so it must
+     * always run on the same thread, one frame after another.
+     *
+     * @param left the features of the left image
+     * @param right the features of the right image, or no features if it was not detected
+     *
+     * @return the correspondences between the landmarks of the keyframe and the features of this frame
+     */
+    Step match(Detected left, Detected right) {
+        long start = matchingStage.start();
+        long bytes = matchingStage.startAllocation();
+
+        // a request the right detection saw too late carries over to the next frame
+        boolean promote = keyframeRequested() && right.features != null;
+
+        // match against the keyframe, and across the stereo pair of a new keyframe
+        HashMap<Feature, Feature> temporalMatches = keyframe == null ? null : Tracking.track(keyframe, left.features);
+        HashMap<Feature, Feature> stereoMatches = promote ? trackStereo(left.features, right.features) : null;
+        long matched = System.nanoTime();
+
+        // triangulate the landmarks of a new keyframe
+        if (promote) {
+            triangulate(stereoMatches, left.features.width);
+        }
+        long triangulated = System.nanoTime();
+
+        // collect the correspondences against the landmarks of the keyframe
+        Step step = new Step(Math.min(left.start, right.start), left.nanos + right.nanos, keyframes, keyframeCount, keyframeDepth, promote,
+                left.features);
+        if (temporalMatches != null) {
+            collectCorrespondences(temporalMatches, keyframe.width, step);
+        }
+        if (promote) {
+            step.keys = Arrays.copyOf(keys, count);
+            step.points = Arrays.copyOf(points, 3 * count);
+            step.width = left.features.width;
+        }
+        step.matchingNanos = matched - start;
+        step.triangulationNanos = triangulated - matched;
+
+        // promote the frame
+        if (promote) {
+            swapLandmarks();
+            keyframe = left.features;
+            keyframes++;
+        }
+        matchingStage.stop(start, bytes);
+        return step;
+    }
+
+    /**
+     * Estimates the motion of a frame relative to its keyframe, composes the pose, and requests a new keyframe if the
+     * keyframe no longer fits. This stage owns the poses, so it must always run on the same thread, one frame after
+     * another.
+     *
+     * @param step the correspondences of the frame
+     *
+     * @return the pose of the reference camera at the frame
+     */
+    Pose estimate(Step step) {
+        long start = estimationStage.start();
+        long bytes = estimationStage.startAllocation();
+
+        // the refined pose of the current keyframe, if the bundle adjustment has caught up with it
+        BundleAdjustment.Correction correction = bundleAdjustment.poll();
+        if (correction != null && correction.keyframe == keyframeNumber) {
+            System.arraycopy(correction.rotation, 0, keyframeRotation, 0, 9);
+            System.arraycopy(correction.position, 0, keyframePosition, 0, 3);
+        }
+
+        Motion motion = null;
+        int correspondences = step.points2D.size();
+        if (correspondences >= MIN_CORRESPONDENCES) {
+            int[] sad = Arrays.copyOf(step.sads, correspondences);
+            motion = refine(step, sad);
+            if (motion == null) {
+                motion = ransac.estimate(step.points2D, step.points3D, sad, cameras, seeds.nextLong());
+            }
+        }
+
+        // the pose of the frame, carried over if the motion is lost
+        if (motion != null) {
+            compose(motion);
+        }
+        boolean first = step.reference == 0;
+        if (first || step.promote) {
+            // a keyframe back in a mapped area is relocalized against the map
+            boolean anchored = false;
+            if (step.promote) {
+                keyframeNumber = step.reference + 1;
+                landmarkMap.match(step.image, rotation, position, MAP_SEARCH_RADIUS, mapMatches);
+                anchored = relocalize(step);
+            }
+
+            // a keyframe's pose becomes the reference of the frames tracked against it
+            System.arraycopy(rotation, 0, keyframeRotation, 0, 9);
+            System.arraycopy(position, 0, keyframePosition, 0, 3);
+            lastMotion = null;
+            if (step.promote) {
+                updateMap(step);
+                bundleAdjustment.submit(toKeyframe(step, anchored));
+            }
+        } else {
+            lastMotion = motion;
+            if (needsKeyframe(step, motion)) {
+                keyframeRequest = step.reference;
+            }
+        }
+        long estimated = System.nanoTime();
+        estimationStage.stop(start, bytes);
+        frameStage.record(estimated - step.start, 0);
+
+        return new Pose(frames++, rotation.clone(), position.clone(), motion, step.image.count, correspondences, step.promote,
+                step.detectionNanos, step.matchingNanos, step.triangulationNanos, estimated - start, estimated - step.start);
+    }
+
+    /**
+     * Refines the motion of the previous frame into the motion of this frame, which is only accepted if enough
+     * correspondences agree with it.
+     *
+     * @param step the correspondences of the frame
+     * @param sad the SAD match score of each correspondence
+     *
+     * @return the refined motion, or null if there is no previous motion or it does not fit
+     */
+    private Motion refine(Step step, int[] sad) {
+        if (lastMotion == null) {
+            return null;
+        }
+        Correspondences correspondences = new Correspondences(step.points2D, step.points3D, sad, cameras);
+        Motion motion = new Motion(lastMotion.rotation.clone(), lastMotion.translation.clone());
+        motion.inliers = refiner.refine(motion, correspondences);
+        if (motion.inliers < MIN_CORRESPONDENCES || motion.inliers < MIN_INLIER_RATIO * correspondences.size) {
+            return null;
+        }
+        motion.converged = true;
+        return motion;
+    }
+
+    /**
+     * Relocalizes a new keyframe against the map landmarks it matched that were last seen before the bundle
+     * adjustment window. The landmarks still in the window drifted along with the odometry, so they are left out, as
+     * they would only vote for the pose the odometry already has. The pose is replaced only if enough of the revisited
+     * landmarks agree with the estimate.
+     *
+     * @param step the step of the new keyframe
+     *
+     * @return true if the pose of the keyframe was relocalized
+     */
+    private boolean relocalize(Step step) {
+        // the revisited landmarks, as 2D-3D correspondences with the world frame
+        ArrayList<Point> points2D = new ArrayList<>();
+        ArrayList<Point3> points3D = new ArrayList<>();
+        int[] sad = new int[mapMatches.count];
+        double[] point = new double[3];
+        for (int i = 0; i < mapMatches.count; i++) {
+            if (landmarkMap.lastSeen(mapMatches.landmarks[i]) > keyframeNumber - BundleAdjustment.DEFAULT_WINDOW) continue;
+            int key = mapMatches.keys[i];
+            sad[points2D.size()] = mapMatches.sads[i];
+            points2D.add(new Point(key % step.image.width, key / step.image.width));
+            landmarkMap.position(mapMatches.landmarks[i], point);
+            points3D.add(new Point3(point[0], point[1], point[2]));
+        }
+        int revisited = points2D.size();
+        if (revisited < MIN_REVISITED) {
+            return false;
+        }
+        Motion motion = ransac.estimate(points2D, points3D, Arrays.copyOf(sad, revisited), cameras, seeds.nextLong());
+        if (motion == null || motion.inliers < MIN_REVISITED || motion.inliers < MIN_INLIER_RATIO * revisited) {
+            return false;
+        }
+
+        // the motion maps the world to the camera, X_c = R X_w + t, so rotation = R^T and position = -R^T t
+        Rotation.toMatrix(motion.rotation, motionRotation);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                rotation[3 * i + j] = motionRotation[3 * j + i];
+            }
+        }
+        Rotation.applyTransposed(motionRotation, motion.translation, position);
+        for (int i = 0; i < 3; i++) {
+            position[i] = -position[i];
+        }
+        return true;
+    }
+
+    /**
+     * Updates the map with the landmarks of a new keyframe, at its final pose. The map landmarks it matched at a
+     * landmark of its own close enough to them are refined with it, the ones it matched at a feature it did not
+     * triangulate are only marked as seen, and its other landmarks are added. Landmarks not seen for too long are
+     * evicted first.
+     *
+     * @param step the step of the new keyframe
+     */
+    private void updateMap(Step step) {
+        int width = step.image.width;
+        boolean[] fused = new boolean[step.keys.length];
+        double[] local = new double[3];
+        double[] world = new double[3];
+        double[] point = new double[3];
+        for (int i = 0; i < mapMatches.count; i++) {
+            int key = mapMatches.keys[i];
+            int landmark = Arrays.binarySearch(step.keys, key);
+            if (landmark < 0) {
+                landmarkMap.touch(mapMatches.landmarks[i], keyframeNumber);
+                continue;
+            }
+
+            // a match whose triangulations disagree is taken for a wrong one, leaving both landmarks in the map
+            toWorld(step.points, landmark, local, world);
+            landmarkMap.position(mapMatches.landmarks[i], point);
+            double dx = world[0] - point[0], dy = world[1] - point[1], dz = world[2] - point[2];
+            if (Math.sqrt(dx * dx + dy * dy + dz * dz) > MAX_FUSION_DISTANCE * local[2]) continue;
+            landmarkMap.fuse(mapMatches.landmarks[i], world, step.image, key / width, key % width, keyframeNumber);
+            fused[landmark] = true;
+        }
+
+        landmarkMap.evictOlderThan(keyframeNumber);
+        for (int i = 0; i < step.keys.length; i++) {
+            if (fused[i]) continue;
+            toWorld(step.points, i, local, world);
+            landmarkMap.add(world, step.image, step.keys[i] / width, step.keys[i] % width, keyframeNumber);
+        }
+    }
+
+    /**
+     * Moves a landmark of the current keyframe into the world frame, X_w = rotation * X_c + position.
+     *
+     * @param points the landmarks of the keyframe in its camera frame, interleaved {x, y, z}
+     * @param landmark the index of the landmark
+     * @param local a buffer for the landmark in the camera frame
+     * @param world the output landmark in the world frame
+     */
+    private void toWorld(double[] points, int landmark, double[] local, double[] world) {
+        System.arraycopy(points, 3 * landmark, local, 0, 3);
+        Rotation.apply(rotation, local, world);
+        for (int i = 0; i < 3; i++) {
+            world[i] += position[i];
+        }
+    }
+
+    /**
+     * Checks whether the estimation stage requested a new keyframe since the last promotion.
+     *
+     * @return true if the next frame should become a keyframe
+     */
+    private boolean keyframeRequested() {
+        return keyframeRequest == keyframes;
+    }
+
+    /**
+     * Checks whether the keyframe of a frame should be replaced.
+     *
+     * @param step the correspondences of the frame
+     * @param motion the motion of the frame relative to its keyframe, or null if it was lost
+     *
+     * @return true if the next frame should become a keyframe
+     */
+    private boolean needsKeyframe(Step step, Motion motion) {
+        // a frame tracked against an older keyframe than the latest one says nothing about the latest one
+        if (step.reference != keyframes) {
+            return false;
+        }
+        if (motion == null) {
+            return true;
+        }
+        int correspondences = step.points2D.size();
+        if (correspondences < MIN_TRACKED_RATIO * step.landmarks) {
+            return true;
+        }
+        if (motion.inliers < MIN_INLIER_RATIO * correspondences) {
+            return true;
+        }
+        double[] t = motion.translation;
+        double distance = Math.sqrt(t[0] * t[0] + t[1] * t[1] + t[2] * t[2]);
+        return distance > MAX_PARALLAX * step.depth;
+    }
+
+    /**
+     * Builds the keyframe handed to the bundle adjustment from the step that promoted it. Landmarks are identified by
+     * the number of the keyframe that triangulated them in the upper half and their index in its sorted landmarks in
+     * the lower half, so that the correspondences of the step name the landmarks of the keyframe before.
+     *
+     * @param step the step of the new keyframe
+     * @param anchored whether the keyframe was relocalized against the map
+     *
+     * @return the keyframe, at the current pose
+     */
+    private BundleAdjustment.Keyframe toKeyframe(Step step, boolean anchored) {
+        double[] normalized = new double[2];
+
+        // the new landmarks, observed at the left feature they were triangulated from
+        long number = step.reference + 1;
+        long[] landmarkIds = new long[step.keys.length];
+        double[] landmarkObservations = new double[2 * step.keys.length];
+        for (int i = 0; i < step.keys.length; i++) {
+            landmarkIds[i] = (number << 32) | i;
+            Rectification.undistortPoint(intrinsics, distortion, step.keys[i] % step.width, step.keys[i] / step.width, normalized);
+            landmarkObservations[2 * i] = normalized[0];
+            landmarkObservations[2 * i + 1] = normalized[1];
+        }
+
+        // the landmarks of the keyframe before, observed at the features they were matched to
+        int tracked = step.points2D.size();
+        long[] trackedIds = new long[tracked];
+        double[] trackedObservations = new double[2 * tracked];
+        for (int i = 0; i < tracked; i++) {
+            trackedIds[i] = (step.reference << 32) | step.landmarkIndices[i];
+            Point point = step.points2D.get(i);
+            Rectification.undistortPoint(intrinsics, distortion, point.x, point.y, normalized);
+            trackedObservations[2 * i] = normalized[0];
+            trackedObservations[2 * i + 1] = normalized[1];
+        }
+        return new BundleAdjustment.Keyframe(number, rotation.clone(), position.clone(), landmarkIds, step.points,
+                landmarkObservations, trackedIds, trackedObservations, anchored);
+    }
+
+    /**
+     * Matches the features of the stereo pair of the frame being promoted, comparing only features whose rectified
+     * epipolar lines agree, so that the search runs along the rows of the rectified pair.
+     *
+     * @param reference the features of the reference camera's image
+     * @param other the features of the other camera's image
+     *
+     * @return the matches from reference to other features
+     */
+    private HashMap<Feature, Feature> trackStereo(FeatureInfo reference, FeatureInfo other) {
+        int pixels = reference.height * reference.width;
+        if (referenceLines.length < pixels) {
+            referenceLines = new float[pixels];
+            otherLines = new float[pixels];
+        }
+        int camera = cameras.getReference();
+        rectifyLines(reference, camera, referenceLines);
+        rectifyLines(other, camera == Rectification.LEFT ? Rectification.RIGHT : Rectification.LEFT, otherLines);
+        return Tracking.track(reference, other, referenceLines, otherLines, MAX_LINE_ERROR);
+    }
+
+    /**
+     * Finds the rectified epipolar line of every feature of an image. The entries of pixels without a feature are
+     * left as they were, since matching never reads them.
+     *
+     * @param info the features of the image
+     * @param camera the camera that took the image
+     * @param lines the line of every feature, indexed by x * width + y
+     */
+    private void rectifyLines(FeatureInfo info, int camera, float[] lines) {
+        Rectification rectification = cameras.getRectification();
+        int across = 1 - rectification.getAxis();
+        for (int i = 0; i < info.height; i++) {
+            int[] row = info.features[i];
+            for (int j = 0; j < info.width; j++) {
+                if (row[j] == 0) continue;
+                rectification.rectifyPoint(camera, j, i, rectifiedReference);
+                lines[i * info.width + j] = (float) rectifiedReference[across];
+            }
+        }
+    }
+
+    /**
+     * Triangulates the stereo matches of the frame being promoted into its landmarks, sorted by the pixel key of
+     * their left feature, and finds their median depth. Each match is rectified and triangulated from its disparity.
+     * Points behind the camera are dropped.
+     *
+     * @param stereoMatches the matches from left to right features
+     * @param width the width of the left image
+     */
+    private void triangulate(HashMap<Feature, Feature> stereoMatches, int width) {
+        Events.Triangulation event = new Events.Triangulation();
+        event.begin();
+        ensureCapacity(stereoMatches.size());
+        count = 0;
+        Rectification rectification = cameras.getRectification();
+        int reference = cameras.getReference();
+        int other = reference == Rectification.LEFT ? Rectification.RIGHT : Rectification.LEFT;
+        for (Map.Entry<Feature, Feature> match : stereoMatches.entrySet()) {
+            Feature left = match.getKey();
+            Feature right = match.getValue();
+
+            // pixels are rectified as {column, row}
+            rectification.rectifyPoint(reference, left.y, left.x, rectifiedReference);
+            rectification.rectifyPoint(other, right.y, right.x, rectifiedOther);
+            if (!cameras.triangulateRectified(rectifiedReference, rectifiedOther, triangulated)) continue;
+
+            staging[3 * count] = triangulated[0];
+            staging[3 * count + 1] = triangulated[1];
+            staging[3 * count + 2] = triangulated[2];
+            depths[count] = triangulated[2];
+            order[count] = ((long) (left.x * width + left.y) << 32) | count;
+            count++;
+        }
+
+        // sort the landmarks by key
+        Arrays.sort(order, 0, count);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) order[i];
+            keys[i] = (int) (order[i] >>> 32);
+            System.arraycopy(staging, 3 * slot, points, 3 * i, 3);
+        }
+        Arrays.sort(depths, 0, count);
+        depth = count == 0 ? 0 : depths[count / 2];
+
+        if (event.shouldCommit()) {
+            event.matches = stereoMatches.size();
+            event.landmarks = count;
+            event.dropped = stereoMatches.size() - count;
+            event.medianDepth = depth;
+            event.commit();
+        }
+    }
+
+    /**
+     * Collects the correspondences between the landmarks of the keyframe and the left features of the current frame
+     * they were matched to.
+     *
+     * @param temporalMatches the matches from keyframe to current left features
+     * @param width the width of the keyframe's left image
+     * @param step the step receiving the correspondences
+     */
+    private void collectCorrespondences(HashMap<Feature, Feature> temporalMatches, int width, Step step) {
+        step.sads = new int[temporalMatches.size()];
+        step.landmarkIndices = new int[temporalMatches.size()];
+        for (Map.Entry<Feature, Feature> match : temporalMatches.entrySet()) {
+            Feature before = match.getKey();
+            Feature after = match.getValue();
+            int landmark = Arrays.binarySearch(keyframeKeys, 0, keyframeCount, before.x * width + before.y);
+            if (landmark < 0) continue;
+
+            step.sads[step.points2D.size()] = before.getSAD();
+            step.landmarkIndices[step.points2D.size()] = landmark;
+            step.points2D.add(new Point(after.y, after.x));
+            step.points3D.add(new Point3(keyframePoints[3 * landmark], keyframePoints[3 * landmark + 1], keyframePoints[3 * landmark + 2]));
+        }
+    }
+
+    /**
+     * Composes a motion from the keyframe to the current camera, X_c = R X_k + t, with the pose of the keyframe into
+     * the pose of the camera, so that rotation = keyframeRotation * R^T and position = keyframePosition - rotation * t.
+     *
+     * @param motion the motion between the keyframe and the current frame
+     */
+    private void compose(Motion motion) {
+        Rotation.toMatrix(motion.rotation, motionRotation);
+        Rotation.multiplyByTransposed(keyframeRotation, motionRotation, rotation);
+        double[] t = motion.translation;
+        for (int i = 0; i < 3; i++) {
+            position[i] = keyframePosition[i] - (rotation[3 * i] * t[0] + rotation[3 * i + 1] * t[1] + rotation[3 * i + 2] * t[2]);
+        }
+    }
+
+    /**
+     * Swaps the landmarks of the keyframe and of the frame being promoted.
+     */
+    private void swapLandmarks() {
+        int[] swapKeys = keyframeKeys;
+        keyframeKeys = keys;
+        keys = swapKeys;
+        double[] swapPoints = keyframePoints;
+        keyframePoints = points;
+        points = swapPoints;
+        keyframeCount = count;
+        keyframeDepth = depth;
+        count = 0;
+    }
+
+    /**
+     * Grows the landmark arrays of the frame being promoted to hold a number of landmarks. Each array is checked on its
+     * own, since swapping in the keyframe's landmarks can leave the keys and points longer than the scratch arrays.
+     *
+     * @param capacity the number of landmarks
+     */
+    private void ensureCapacity(int capacity) {
+        if (keys.length < capacity) {
+            keys = new int[capacity];
+        }
+        if (order.length < capacity) {
+            order = new long[capacity];
+        }
+        if (depths.length < capacity) {
+            depths = new double[capacity];
+        }
+        if (points.length < 3 * capacity) {
+            points = new double[3 * capacity];
+        }
+        if (staging.length < 3 * capacity) {
+            staging = new double[3 * capacity];
+        }
+    }
+
+    /**
+     * The features of one image, handed from a detection stage to the matching stage.
+     */
+    static final class Detected {
+        final FeatureInfo features; // features of the image, or null if it was not detected
+        final long start;           // System.nanoTime at which the detection started
+        final long nanos;           // time the detection took
+
+        Detected(FeatureInfo features, long start, long nanos) {
+            this.features = features;
+            this.start = start;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * The correspondences of one frame, handed from the matching stage to the estimation stage.
+     */
+    static final class Step {
+        final long start;           // System.nanoTime at which the frame's first stage started
+        final long detectionNanos;  // time spent detecting the stereo pair
+        final long reference;       // number of keyframes before this frame, 0 for the first frame
+        final int landmarks;        // number of landmarks of the keyframe
+        final double depth;         // median depth of the landmarks of the keyframe
+        final boolean promote;      // whether this frame becomes the next keyframe
+        final FeatureInfo image;    // features of the left image
+        long matchingNanos;         // time spent matching
+        long triangulationNanos;    // time spent triangulating
+        final ArrayList<Point> points2D = new ArrayList<>();   // features of this frame, as {column, row}
+        final ArrayList<Point3> points3D = new ArrayList<>();  // landmarks of the keyframe
+        int[] sads = new int[0];    // SAD of each temporal match
+        int[] landmarkIndices = new int[0]; // index of the landmark of each temporal match in the keyframe's landmarks
+        int[] keys;                 // pixel keys of the landmarks of a new keyframe, sorted
+        double[] points;            // landmarks of a new keyframe in its camera frame, in key order
+        int width;                  // width of the left image of a new keyframe
+
+        Step(long start, long detectionNanos, long reference, int landmarks, double depth, boolean promote, FeatureInfo image) {
+            this.start = start;
+            this.detectionNanos = detectionNanos;
+            this.reference = reference;
+            this.landmarks = landmarks;
+            this.depth = depth;
+            this.promote = promote;
+            this.image = image;
+        }
+    }
+}
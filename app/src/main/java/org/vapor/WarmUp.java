@@ -0,0 +1,265 @@
+package org.vapor;
+
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Warms the odometry up at startup, so that the first real frames already run at their steady latency instead of
+ * paying for class loading, native library loading and the interpreted and C1-compiled first runs of the hot loops.
+ *
+ * The warm-up renders a few frames of a {@link SyntheticScene} at the resolution of the calibration and plays them
+ * back and forth through a throwaway {@link VisualOdometry}, which detects, matches, triangulates new keyframes,
+ * refines motions and maps landmarks, and also runs a full RANSAC estimation every iteration, since the odometry only
+ * falls back to it once in a while. The two are timed apart, so that the estimation, which may take longer than a
+ * tracked frame, does not hide the latency of the odometry. The JVM offers no portable way to ask whether a method
+ * reached C2, so the pipeline is taken to be hot once the median latencies of both over a window of iterations stay
+ * within a tolerance of the window before, and the JIT compiler spent only a small share of the window compiling.
+ *
+ * A warm-up is not thread-safe, and is meant to run once before the odometry starts consuming frames.
+ */
+public class WarmUp {
+    /** The default wall-clock budget of a warm-up in nanoseconds, after which it gives up on the pipeline getting hot. */
+    public static final long DEFAULT_BUDGET = 20_000_000_000L;
+
+    /** The number of iterations of a window over which latency and compilation are measured. */
+    private static final int WINDOW = 16;
+
+    /** The smallest number of windows before the pipeline can be hot. */
+    private static final int MIN_WINDOWS = 3;
+
+    /** The relative change in median latency between two windows below which latency is steady. */
+    private static final double LATENCY_TOLERANCE = 0.1;
+
+    /** The largest share of a window's wall-clock time the JIT compiler may spend for the pipeline to be hot. */
+    private static final double MAX_COMPILATION_SHARE = 0.02;
+
+    /** The number of frames rendered, played back and forth. */
+    private static final int FRAMES = 8;
+
+    /** The number of correspondences of the RANSAC estimation of every iteration. */
+    private static final int CORRESPONDENCES = 200;
+
+    /* The stereo camera system, the estimator, and the seed of the estimations. */
+    private final Stereo cameras;
+    private final RANSAC ransac;
+    private final long seed;
+
+    /* The resolution of the rendered frames. */
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructs a warm-up at the resolution of the calibration, estimating motions on the common pool.
+     *
+     * @param cameras the stereo camera system
+     */
+    public WarmUp(Stereo cameras) {
+        this(cameras, new RANSAC(ForkJoinPool.commonPool()), 0);
+    }
+
+    /**
+     * Constructs a warm-up at the resolution of the calibration, or at twice the principal point of the reference
+     * camera if the calibration was given no image size.
+     *
+     * @param cameras the stereo camera system
+     * @param ransac the estimator of the odometry, so that its pool is warmed up too
+     * @param seed the seed of the estimations
+     */
+    public WarmUp(Stereo cameras, RANSAC ransac, long seed) {
+        this(cameras, ransac, seed, width(cameras), height(cameras));
+    }
+
+    /**
+     * Constructs a warm-up.
+     *
+     * @param cameras the stereo camera system
+     * @param ransac the estimator of the odometry, so that its pool is warmed up too
+     * @param seed the seed of the estimations
+     * @param width the width of the images
+     * @param height the height of the images
+     */
+    public WarmUp(Stereo cameras, RANSAC ransac, long seed, int width, int height) {
+        this.cameras = cameras;
+        this.ransac = ransac;
+        this.seed = seed;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Runs the warm-up until the pipeline is hot or the budget runs out.
+     *
+     * @param budget the wall-clock budget in nanoseconds
+     *
+     * @return the report of the warm-up
+     */
+    public Report run(long budget) {
+        long start = System.nanoTime();
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        long compilationStart = monitored ? compiler.getTotalCompilationTime() : 0;
+
+        // load the native library and the image codecs, and render the frames
+        OpenCVLibrary.load();
+        SyntheticScene scene = new SyntheticScene(cameras, width, height, seed);
+        Frame[] frames = new Frame[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = scene.frame(i);
+        }
+        loadCodecs(frames[0].leftGrayImage);
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(0, FRAMES - 1, CORRESPONDENCES, points2D, points3D);
+
+        // iterate window after window until both latencies are steady and the compiler is quiet
+        long[] frameLatencies = new long[WINDOW];
+        long[] estimationLatencies = new long[WINDOW];
+        long first = 0;
+        long frameMedian = 0;
+        long estimationMedian = 0;
+        int iterations = 0;
+        int windows = 0;
+        boolean hot = false;
+        try (VisualOdometry odometry = new VisualOdometry(cameras, ransac, seed)) {
+            while (!hot && System.nanoTime() - start < budget) {
+                long windowStart = System.nanoTime();
+                long windowCompilation = monitored ? compiler.getTotalCompilationTime() : 0;
+                for (int i = 0; i < WINDOW; i++) {
+                    long iterationStart = System.nanoTime();
+                    odometry.process(frames[bounce(iterations)]);
+                    long processed = System.nanoTime();
+                    ransac.estimate(points2D, points3D, null, cameras, seed + iterations);
+                    frameLatencies[i] = processed - iterationStart;
+                    estimationLatencies[i] = System.nanoTime() - processed;
+                    if (iterations++ == 0) {
+                        first = frameLatencies[0];
+                    }
+                }
+                windows++;
+
+                long previousFrame = frameMedian;
+                long previousEstimation = estimationMedian;
+                frameMedian = median(frameLatencies);
+                estimationMedian = median(estimationLatencies);
+                long windowNanos = System.nanoTime() - windowStart;
+                double compilationShare = monitored
+                        ? (compiler.getTotalCompilationTime() - windowCompilation) * 1E6 / windowNanos : 0;
+                hot = windows >= MIN_WINDOWS && steady(frameMedian, previousFrame)
+                        && steady(estimationMedian, previousEstimation) && compilationShare <= MAX_COMPILATION_SHARE;
+            }
+        }
+
+        long compilation = monitored ? compiler.getTotalCompilationTime() - compilationStart : -1;
+        return new Report(hot, iterations, System.nanoTime() - start, first, frameMedian, estimationMedian, compilation);
+    }
+
+    /**
+     * Sorts the latencies of a window and returns their median.
+     */
+    private static long median(long[] latencies) {
+        Arrays.sort(latencies);
+        return latencies[latencies.length / 2];
+    }
+
+    /**
+     * Checks whether the median latency of a window is within the tolerance of the window before.
+     */
+    private static boolean steady(long median, long previous) {
+        return Math.abs(median - previous) <= LATENCY_TOLERANCE * previous;
+    }
+
+    /**
+     * Returns the frame of an iteration, playing the frames forward and then backward so that motion stays smooth.
+     */
+    private static int bounce(int iteration) {
+        int period = 2 * (FRAMES - 1);
+        int phase = iteration % period;
+        return phase < FRAMES ? phase : period - phase;
+    }
+
+    /**
+     * Encodes an image to PNG and decodes it back, which loads the image I/O plugins and codecs that the first frame
+     * read from disk would otherwise load.
+     *
+     * @param grayscale the grayscale values of the image
+     */
+    private static void loadCodecs(int[][] grayscale) {
+        BufferedImage image = new BufferedImage(grayscale[0].length, grayscale.length, BufferedImage.TYPE_BYTE_GRAY);
+        for (int i = 0; i < grayscale.length; i++) {
+            for (int j = 0; j < grayscale[0].length; j++) {
+                int gray = grayscale[i][j];
+                image.setRGB(j, i, (gray << 16) | (gray << 8) | gray);
+            }
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", bytes);
+            ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the image width of a calibration, or twice the principal point if it has none.
+     */
+    private static int width(Stereo cameras) {
+        Rectification rectification = cameras.getRectification();
+        return rectification.hasMaps() ? rectification.getWidth() : (int) Math.round(2 * cameras.getIntrinsics()[2]);
+    }
+
+    /**
+     * Returns the image height of a calibration, or twice the principal point if it has none.
+     */
+    private static int height(Stereo cameras) {
+        Rectification rectification = cameras.getRectification();
+        return rectification.hasMaps() ? rectification.getHeight() : (int) Math.round(2 * cameras.getIntrinsics()[3]);
+    }
+
+    /**
+     * The outcome of a warm-up.
+     */
+    public static final class Report {
+        public final boolean hot;             // whether both latencies settled within the budget
+        public final int iterations;          // number of iterations run
+        public final long nanos;              // wall-clock duration of the warm-up
+        public final long firstNanos;         // latency of the first frame through the odometry
+        public final long steadyNanos;        // median latency of a frame through the odometry over the last window
+        public final long estimationNanos;    // median latency of a full RANSAC estimation over the last window
+        public final long compilationMillis;  // time the JIT compiler spent during the warm-up, or -1 if unknown
+
+        Report(boolean hot, int iterations, long nanos, long firstNanos, long steadyNanos, long estimationNanos,
+               long compilationMillis) {
+            this.hot = hot;
+            this.iterations = iterations;
+            this.nanos = nanos;
+            this.firstNanos = firstNanos;
+            this.steadyNanos = steadyNanos;
+            this.estimationNanos = estimationNanos;
+            this.compilationMillis = compilationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "warm-up %s after %d iterations in %.1f s: first frame %.1f ms, steady frame %.1f ms, estimation %.1f ms, %d ms compiling",
+                    hot ? "hot" : "out of budget", iterations, nanos / 1E9, firstNanos / 1E6, steadyNanos / 1E6,
+                    estimationNanos / 1E6, compilationMillis);
+        }
+    }
+}
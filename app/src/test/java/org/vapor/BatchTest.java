@@ -0,0 +1,53 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchTest {
+    @Test void parsesAFullCommandLine() {
+        Batch batch = Batch.parse(new String[]{"--calibration", "rig.properties", "--dataset", "data", "--threads", "3",
+                "--output", "out", "--budget", "15", "--seed", "7", "--warmup", "0"});
+        assertNotNull(batch);
+        assertNull(batch.getWarmUp());
+        assertNotNull(Batch.parse(new String[]{"--dataset", "data"}));
+    }
+
+    @Test void rejectsAnUnknownOption() {
+        assertUsageError("Unknown option --frames.", "--dataset", "data", "--frames", "10");
+    }
+
+    @Test void rejectsAnOptionMissingItsValue() {
+        assertUsageError("Missing the value of --threads.", "--dataset", "data", "--threads");
+    }
+
+    @Test void rejectsAMissingDataset() {
+        assertUsageError("Missing --dataset.", "--calibration", "rig.properties");
+    }
+
+    @Test void rejectsAMalformedNumber() {
+        assertUsageError("Malformed value of --seed: x.", "--dataset", "data", "--seed", "x");
+    }
+
+    @Test void rejectsZeroThreads() {
+        assertUsageError("--threads must be at least 1.", "--dataset", "data", "--threads", "0");
+        assertThrows(IllegalArgumentException.class,
+                () -> new Batch(null, Paths.get("data"), Paths.get("out"), 0, 1, 1, 0));
+    }
+
+    @Test void rejectsANegativeWarmUp() {
+        assertUsageError("--warmup must be at least 0.", "--dataset", "data", "--warmup", "-1");
+        assertThrows(IllegalArgumentException.class,
+                () -> new Batch(null, Paths.get("data"), Paths.get("out"), 1, 1, 1, -1));
+    }
+
+    /**
+     * Checks that a command line is rejected with a message.
+     */
+    private static void assertUsageError(String message, String... args) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Batch.parse(args));
+        assertEquals(message, e.getMessage());
+    }
+}
@@ -0,0 +1,111 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BenchmarkTest {
+    @Test void bucketsAValueWithinASixteenthOfItself() {
+        // every small value has its own bucket
+        for (long value = 0; value < 16; value++) {
+            assertEquals(value, Benchmark.highestValue(Benchmark.bucket(value)));
+        }
+
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong(1L << random.nextInt(4, 41));
+            int bucket = Benchmark.bucket(value);
+            long highest = Benchmark.highestValue(bucket);
+            long lowest = bucket == 0 ? 0 : Benchmark.highestValue(bucket - 1) + 1;
+            assertTrue(lowest <= value && value <= highest, value + " is outside its bucket " + lowest + ".." + highest);
+            assertTrue(highest - value <= value / 16, value + " lands in a bucket up to " + highest);
+        }
+
+        // the buckets are contiguous at every power of two
+        for (int exponent = 4; exponent <= 40; exponent++) {
+            long power = 1L << exponent;
+            assertEquals(Benchmark.bucket(power - 1) + 1, Benchmark.bucket(power), "at 2^" + exponent);
+            assertEquals(power - 1, Benchmark.highestValue(Benchmark.bucket(power - 1)));
+        }
+    }
+
+    @Test void saturatesPastTwoToTheFortieth() {
+        int last = Benchmark.bucket((1L << 41) - 1);
+        assertTrue(Benchmark.bucket((1L << 40) + 1) <= last);
+        assertEquals(last, Benchmark.bucket(1L << 41));
+        assertEquals(last, Benchmark.bucket(1L << 50));
+        assertEquals(last, Benchmark.bucket(Long.MAX_VALUE));
+        assertEquals(0, Benchmark.bucket(-1));
+    }
+
+    @Test void findsThePercentilesOfAKnownDistribution() {
+        Benchmark benchmark = new Benchmark(false);
+        Benchmark.Stage stage = benchmark.stage("stage");
+
+        // 1 to 1000 microseconds, in shuffled order
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i + 1) * 1000L;
+        }
+        SplittableRandom random = new SplittableRandom(2);
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        for (long value : values) {
+            stage.record(value, 0);
+        }
+
+        List<Benchmark.Snapshot> snapshots = benchmark.snapshot(false);
+        assertEquals(1, snapshots.size());
+        Benchmark.Snapshot snapshot = snapshots.get(0);
+        assertEquals("stage", snapshot.name);
+        assertEquals(1000, snapshot.count);
+        assertEquals(500_500, snapshot.meanNanos);
+        assertEquals(1_000_000, snapshot.maxNanos);
+        assertWithinBucket(500_000, snapshot.p50Nanos, snapshot.maxNanos);
+        assertWithinBucket(900_000, snapshot.p90Nanos, snapshot.maxNanos);
+        assertWithinBucket(990_000, snapshot.p99Nanos, snapshot.maxNanos);
+        assertWithinBucket(999_000, snapshot.p999Nanos, snapshot.maxNanos);
+
+        // the bucket of the 99th percentile reaches past the longest span, which bounds it
+        assertEquals(1_000_000, snapshot.p99Nanos);
+        assertEquals(0, snapshot.allocatedBytes);
+    }
+
+    @Test void aResettingSnapshotStartsANewPeriod() {
+        Benchmark benchmark = new Benchmark(false);
+        Benchmark.Stage stage = benchmark.stage("stage");
+        stage.record(5_000_000, 100);
+        stage.record(7_000_000, 100);
+
+        Benchmark.Snapshot first = benchmark.snapshot(true).get(0);
+        assertEquals(2, first.count);
+        assertEquals(7_000_000, first.maxNanos);
+        assertEquals(200, first.allocatedBytes);
+        assertTrue(benchmark.snapshot(false).isEmpty(), "a reset stage has no spans");
+
+        stage.record(1_000, 0);
+        Benchmark.Snapshot second = benchmark.snapshot(false).get(0);
+        assertEquals(1, second.count);
+        assertEquals(1_000, second.meanNanos);
+        assertEquals(1_000, second.maxNanos);
+        assertEquals(1_000, second.p50Nanos);
+        assertEquals(0, second.allocatedBytes);
+        assertSame(stage, benchmark.stage("stage"));
+    }
+
+    /**
+     * Checks that a percentile is the highest value of the bucket of the expected value, or the longest span if that
+     * is lower.
+     */
+    private static void assertWithinBucket(long expected, long actual, long max) {
+        assertEquals(Math.min(Benchmark.highestValue(Benchmark.bucket(expected)), max), actual);
+        assertTrue(actual >= expected && actual - expected <= expected / 16, "expected about " + expected + ", got " + actual);
+    }
+}
@@ -0,0 +1,147 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockMatchingTest {
+    /** The size of the rendered pair. */
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    /** The number of disparities searched and the matching window. */
+    private static final int MAX_DISPARITY = 32;
+    private static final int WINDOW = 7;
+
+    /** The disparity of the rendered plane. */
+    private static final int DISPARITY = 11;
+
+    @Test void findsTheDisparityOfAFrontoParallelPlane() {
+        int[][][] pair = plane(DISPARITY, 1);
+        for (boolean leftRightCheck : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 4}) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    BlockMatching matcher = new BlockMatching(pool, Scenes.rig(), MAX_DISPARITY, WINDOW, leftRightCheck);
+                    short[] disparity = matcher.compute(pair[0], pair[1]);
+
+                    // every pixel whose window and match fit inside both images sees the plane
+                    int radius = WINDOW / 2;
+                    for (int y = radius; y < HEIGHT - radius; y++) {
+                        for (int x = radius + DISPARITY; x < WIDTH - radius; x++) {
+                            assertEquals(DISPARITY, disparity[y * WIDTH + x],
+                                    "pixel " + x + ", " + y + " with check " + leftRightCheck + " on " + threads + " threads");
+                        }
+                    }
+
+                    // pixels whose window leaves the image have no match
+                    for (int x = 0; x < WIDTH; x++) {
+                        assertEquals(BlockMatching.INVALID, disparity[x]);
+                        assertEquals(BlockMatching.INVALID, disparity[(HEIGHT - 1) * WIDTH + x]);
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test void givesTheSameDisparitiesOnAnyPool() {
+        int[][][] pair = plane(DISPARITY, 2);
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool several = new ForkJoinPool(4);
+        try {
+            for (boolean leftRightCheck : new boolean[]{false, true}) {
+                short[] expected = new BlockMatching(single, Scenes.rig(), MAX_DISPARITY, WINDOW, leftRightCheck)
+                        .compute(pair[0], pair[1]).clone();
+                short[] actual = new BlockMatching(several, Scenes.rig(), MAX_DISPARITY, WINDOW, leftRightCheck)
+                        .compute(pair[0], pair[1]);
+                assertArrayEquals(expected, actual, "check " + leftRightCheck);
+            }
+        } finally {
+            single.shutdown();
+            several.shutdown();
+        }
+    }
+
+    @Test void leftRightCheckDiscardsUnmatchedPixels() {
+        // two unrelated images have no true match, so most best matches do not point back
+        int[][][] first = plane(DISPARITY, 3);
+        int[][][] second = plane(DISPARITY, 4);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            short[] unchecked = new BlockMatching(pool, Scenes.rig(), MAX_DISPARITY, WINDOW, false).compute(first[0], second[1]).clone();
+            short[] checked = new BlockMatching(pool, Scenes.rig(), MAX_DISPARITY, WINDOW, true).compute(first[0], second[1]);
+            int radius = WINDOW / 2;
+            int pixels = 0;
+            int discarded = 0;
+            for (int y = radius; y < HEIGHT - radius; y++) {
+                for (int x = radius; x < WIDTH - radius; x++) {
+                    assertNotEquals(BlockMatching.INVALID, unchecked[y * WIDTH + x]);
+                    short d = checked[y * WIDTH + x];
+                    assertTrue(d == BlockMatching.INVALID || d == unchecked[y * WIDTH + x]);
+                    pixels++;
+                    if (d == BlockMatching.INVALID) {
+                        discarded++;
+                    }
+                }
+            }
+            assertTrue(discarded > pixels / 2, "only " + discarded + " of " + pixels + " discarded");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test void convertsDisparityToDepth() {
+        Stereo cameras = Scenes.rig();
+        Rectification rectification = cameras.getRectification();
+        double focal = rectification.getIntrinsics()[0];
+        double baseline = Math.abs(rectification.getBaseline());
+        BlockMatching matcher = new BlockMatching(ForkJoinPool.commonPool(), cameras, MAX_DISPARITY, WINDOW, false);
+
+        short[] disparity = new short[MAX_DISPARITY + 1];
+        disparity[0] = BlockMatching.INVALID;
+        for (int d = 0; d < MAX_DISPARITY; d++) {
+            disparity[d + 1] = (short) d;
+        }
+        float[] depth = new float[disparity.length];
+        matcher.toDepth(disparity, depth);
+
+        assertEquals(0, depth[0]);
+        assertEquals(0, depth[1]);
+        for (int d = 1; d < MAX_DISPARITY; d++) {
+            assertEquals(focal * baseline / d, depth[d + 1], 1E-4 * focal * baseline / d, "disparity " + d);
+            assertEquals(depth[d + 1], matcher.depth(d));
+        }
+        assertEquals(0, matcher.depth(MAX_DISPARITY));
+    }
+
+    /**
+     * Renders a randomly textured fronto-parallel plane into a rectified pair, every pixel of the left image appearing
+     * a fixed number of columns to the left in the right image.
+     *
+     * @param disparity the shift of the right image in columns
+     * @param seed the seed of the texture
+     *
+     * @return the left and right images
+     */
+    private static int[][][] plane(int disparity, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[][] texture = new int[HEIGHT][WIDTH + disparity];
+        for (int[] row : texture) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt(256);
+            }
+        }
+        int[][] left = new int[HEIGHT][WIDTH];
+        int[][] right = new int[HEIGHT][WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(texture[y], 0, left[y], 0, WIDTH);
+            System.arraycopy(texture[y], disparity, right[y], 0, WIDTH);
+        }
+        return new int[][][]{left, right};
+    }
+}
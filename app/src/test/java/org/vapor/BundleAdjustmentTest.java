@@ -0,0 +1,93 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BundleAdjustmentTest {
+    /** The number of keyframes submitted, one per frame of the scene. */
+    private static final int KEYFRAMES = 4;
+
+    /** The number of landmarks triangulated in every keyframe. */
+    private static final int LANDMARKS = 150;
+
+    @Test void pullsPerturbedKeyframesBackToTheScene() throws InterruptedException {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 1);
+
+        try (BundleAdjustment adjustment = new BundleAdjustment(cameras, BundleAdjustment.DEFAULT_WINDOW)) {
+            double[] tracked = null;
+            long[] trackedIds = new long[0];
+            for (int k = 0; k < KEYFRAMES; k++) {
+                // the landmarks of a keyframe are the points of the scene it sees that the next keyframe sees too
+                List<Point> points2D = new ArrayList<>();
+                List<Point3> points3D = new ArrayList<>();
+                int count = scene.correspondences(k, k + 1, LANDMARKS, points2D, points3D);
+                long[] landmarkIds = new long[count];
+                double[] landmarks = new double[3 * count];
+                double[] observations = new double[2 * count];
+                for (int i = 0; i < count; i++) {
+                    Point3 point = points3D.get(i);
+                    landmarkIds[i] = ((long) k << 32) | i;
+                    landmarks[3 * i] = point.x;
+                    landmarks[3 * i + 1] = point.y;
+                    landmarks[3 * i + 2] = point.z;
+                    observations[2 * i] = point.x / point.z;
+                    observations[2 * i + 1] = point.y / point.z;
+                }
+
+                // every keyframe but the first, which fixes the gauge, starts off its true pose
+                double[] rotation = new double[9];
+                double[] position = new double[3];
+                scene.pose(k, rotation, position);
+                if (k > 0) {
+                    perturb(rotation, position, k);
+                }
+
+                adjustment.submit(new BundleAdjustment.Keyframe(k, rotation, position, landmarkIds, landmarks,
+                        observations, trackedIds, tracked == null ? new double[0] : tracked));
+                tracked = new Correspondences(points2D, points3D, null, cameras).normalized;
+                trackedIds = landmarkIds;
+            }
+
+            // wait for the solve that took in the last keyframe
+            BundleAdjustment.Correction correction = null;
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while ((correction == null || correction.keyframe != KEYFRAMES - 1) && System.nanoTime() < deadline) {
+                BundleAdjustment.Correction latest = adjustment.poll();
+                if (latest != null) {
+                    correction = latest;
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+            assertNotNull(correction, "no correction was published");
+            assertEquals(KEYFRAMES - 1, correction.keyframe);
+
+            double[] rotation = new double[9];
+            double[] position = new double[3];
+            scene.pose(KEYFRAMES - 1, rotation, position);
+            assertArrayEquals(rotation, correction.rotation, 1E-6, "rotation");
+            assertArrayEquals(position, correction.position, 1E-5 * Scenes.BASELINE, "position");
+        }
+    }
+
+    /**
+     * Moves a pose off by a few pixels of reprojection error, differently for every keyframe.
+     */
+    private static void perturb(double[] rotation, double[] position, int k) {
+        double[] offset = new double[9];
+        double[] perturbed = new double[9];
+        Rotation.toMatrix(new double[]{0.002 * k, -0.003, 0.001}, offset);
+        Rotation.multiply(offset, rotation, perturbed);
+        System.arraycopy(perturbed, 0, rotation, 0, 9);
+        position[0] += 0.03 * Scenes.BASELINE;
+        position[1] -= 0.01 * k * Scenes.BASELINE;
+        position[2] += 0.02 * Scenes.BASELINE;
+    }
+}
@@ -0,0 +1,85 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CalibrationTest {
+    /** A complete calibration, one key per line. */
+    private static final String[] CALIBRATION = {
+            "left.intrinsics = 700 0 320  0 700 240  0 0 1",
+            "left.distortion = 0.03 -0.1 0.001 -0.002 0.02",
+            "right.intrinsics = 710, 0, 330, 0, 705, 235, 0, 0, 1",
+            "right.distortion = 0.02 -0.05 0 0 0",
+            "rotation = 1 0 0  0 1 0  0 0 1",
+            "translation = -10 0 0",
+    };
+
+    @TempDir
+    Path directory;
+
+    @Test void loadsACalibration() throws IOException {
+        Path path = write(CALIBRATION, "width = 640", "height = 480", "reference = right");
+        OpenCVLibrary.load();
+        Stereo cameras = Calibration.load(path);
+
+        assertEquals(Rectification.RIGHT, cameras.getReference());
+        assertArrayEquals(new double[]{700, 700, 320, 240}, cameras.getIntrinsics(Rectification.LEFT));
+        assertArrayEquals(new double[]{710, 705, 330, 235}, cameras.getIntrinsics(Rectification.RIGHT));
+        assertArrayEquals(new double[]{0.02, -0.05, 0, 0, 0}, cameras.getDistortionCoefficients(Rectification.RIGHT));
+        assertArrayEquals(new double[]{-10, 0, 0}, cameras.getStereoTranslation());
+        assertEquals(640, cameras.getRectification().getWidth());
+        assertEquals(480, cameras.getRectification().getHeight());
+    }
+
+    @Test void rejectsAMissingKey() throws IOException {
+        for (int i = 0; i < CALIBRATION.length; i++) {
+            String[] lines = CALIBRATION.clone();
+            String key = lines[i].substring(0, lines[i].indexOf(' '));
+            lines[i] = "";
+            Path path = write(lines);
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Calibration.load(path));
+            assertEquals(path + ": missing \"" + key + "\".", e.getMessage());
+        }
+    }
+
+    @Test void rejectsTheWrongNumberOfValues() throws IOException {
+        String[] lines = CALIBRATION.clone();
+        lines[5] = "translation = -10 0";
+        Path path = write(lines);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Calibration.load(path));
+        assertEquals(path + ": \"translation\" needs 3 values, got 2.", e.getMessage());
+
+        lines = CALIBRATION.clone();
+        lines[1] = "left.distortion = 0.03 -0.1 0.001 -0.002 0.02 0.5";
+        Path other = write(lines);
+        e = assertThrows(IllegalArgumentException.class, () -> Calibration.load(other));
+        assertEquals(other + ": \"left.distortion\" needs 5 values, got 6.", e.getMessage());
+    }
+
+    @Test void rejectsAnUnknownReference() throws IOException {
+        Path path = write(CALIBRATION, "reference = middle");
+        assertThrows(IllegalArgumentException.class, () -> Calibration.load(path));
+    }
+
+    /**
+     * Writes a calibration file.
+     */
+    private Path write(String[] lines, String... extra) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        for (String line : extra) {
+            text.append(line).append('\n');
+        }
+        Path path = Files.createTempFile(directory, "calibration", ".properties");
+        Files.writeString(path, text);
+        return path;
+    }
+}
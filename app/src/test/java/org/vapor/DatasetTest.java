@@ -0,0 +1,67 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatasetTest {
+    @TempDir
+    Path directory;
+
+    @Test void readsADirectoryThatIsASequence() throws IOException {
+        sequence(directory, 3, 3);
+        Files.createFile(directory.resolve("left").resolve("notes.txt"));
+
+        List<Dataset.Sequence> sequences = Dataset.sequences(directory);
+        assertEquals(1, sequences.size());
+        assertEquals(directory.getFileName().toString(), sequences.get(0).name);
+        assertEquals(3, sequences.get(0).size());
+        assertNull(sequences.get(0).calibration);
+    }
+
+    @Test void findsTheSequencesOfADatasetInNameOrder() throws IOException {
+        sequence(directory.resolve("b"), 2, 2);
+        sequence(directory.resolve("a"), 4, 4);
+        Files.createDirectories(directory.resolve("c").resolve("left"));
+        Files.createFile(directory.resolve("a").resolve(Dataset.CALIBRATION_FILE));
+
+        List<Dataset.Sequence> sequences = Dataset.sequences(directory);
+        assertEquals(2, sequences.size());
+        assertEquals("a", sequences.get(0).name);
+        assertEquals(4, sequences.get(0).size());
+        assertEquals(directory.resolve("a").resolve(Dataset.CALIBRATION_FILE), sequences.get(0).calibration);
+        assertEquals("b", sequences.get(1).name);
+        assertNull(sequences.get(1).calibration);
+    }
+
+    @Test void rejectsUnpairedImages() throws IOException {
+        sequence(directory.resolve("a"), 3, 2);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Dataset.sequences(directory));
+        assertTrue(e.getMessage().endsWith("has 3 left images but 2 right images."), e.getMessage());
+    }
+
+    @Test void rejectsADirectoryWithoutSequences() throws IOException {
+        Files.createDirectories(directory.resolve("a").resolve("left"));
+        assertThrows(IllegalArgumentException.class, () -> Dataset.sequences(directory));
+    }
+
+    /**
+     * Creates a sequence of empty image files, which are only read once a frame is requested.
+     */
+    private static void sequence(Path sequence, int left, int right) throws IOException {
+        Files.createDirectories(sequence.resolve("left"));
+        Files.createDirectories(sequence.resolve("right"));
+        for (int i = 0; i < left; i++) {
+            Files.createFile(sequence.resolve("left").resolve(String.format("%04d.png", i)));
+        }
+        for (int i = 0; i < right; i++) {
+            Files.createFile(sequence.resolve("right").resolve(String.format("%04d.png", i)));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DetectionTest {
+    /** The size of the image, which the buckets do not divide evenly. */
+    private static final int WIDTH = 317;
+    private static final int HEIGHT = 243;
+
+    /** The rows and columns of buckets. */
+    private static final int ROW_BUCKETS = 5;
+    private static final int COL_BUCKETS = 10;
+
+    @Test void detectsEveryUnoccupiedBucketLikeAFullDetection() {
+        for (boolean noisy : new boolean[]{false, true}) {
+            int[][] image = image(1, noisy);
+            List<List<String>> expected = buckets(new Detection().detect(image));
+            assertTrue(expected.stream().filter(bucket -> bucket.isEmpty()).count() < Detection.BUCKETS / 2,
+                    "most buckets have features");
+
+            // a reused detector starts from the strengths of the previous detection, a new one from zeros
+            Detection reused = new Detection();
+            SplittableRandom random = new SplittableRandom(2);
+            for (int mask = 0; mask < 20; mask++) {
+                boolean[] occupied = new boolean[Detection.BUCKETS];
+                double fraction = random.nextDouble();
+                for (int i = 0; i < occupied.length; i++) {
+                    occupied[i] = random.nextDouble() < fraction;
+                }
+                assertMatches(expected, reused.detect(image, occupied), occupied, "mask " + mask + ", reused");
+                assertMatches(expected, new Detection().detect(image, occupied), occupied, "mask " + mask);
+            }
+        }
+    }
+
+    @Test void detectsABucketAloneWhereverItsHaloIsClamped() {
+        int[][] image = image(3, true);
+        List<List<String>> expected = buckets(new Detection().detect(image));
+        Detection reused = new Detection();
+        for (int bucket = 0; bucket < Detection.BUCKETS; bucket++) {
+            // each bucket alone, the corner and edge buckets clamping their halos at the border of the image
+            boolean[] occupied = new boolean[Detection.BUCKETS];
+            Arrays.fill(occupied, true);
+            occupied[bucket] = false;
+            assertMatches(expected, reused.detect(image, occupied), occupied, "bucket " + bucket + " alone");
+            assertMatches(expected, new Detection().detect(image, occupied), occupied, "bucket " + bucket + ", new");
+
+            // and every bucket but it, which splits its row into two spans
+            boolean[] others = new boolean[Detection.BUCKETS];
+            others[bucket] = true;
+            assertMatches(expected, reused.detect(image, others), others, "every bucket but " + bucket);
+        }
+    }
+
+    @Test void detectsEveryBucketWithoutAMask() {
+        int[][] image = image(4, true);
+        List<List<String>> expected = buckets(new Detection().detect(image));
+        assertMatches(expected, new Detection().detect(image, new boolean[Detection.BUCKETS]),
+                new boolean[Detection.BUCKETS], "no bucket occupied");
+        assertThrows(IllegalArgumentException.class, () -> new Detection().detect(image, new boolean[10]));
+    }
+
+    /**
+     * Checks that the unoccupied buckets of a masked detection hold the features of a full detection, and the
+     * occupied buckets none.
+     */
+    private static void assertMatches(List<List<String>> expected, FeatureInfo info, boolean[] occupied,
+                                      String message) {
+        List<List<String>> actual = buckets(info);
+        for (int i = 0; i < Detection.BUCKETS; i++) {
+            if (occupied[i]) {
+                assertTrue(actual.get(i).isEmpty(), message + ": occupied bucket " + i + " has features");
+            } else {
+                assertEquals(expected.get(i), actual.get(i), message + ": bucket " + i);
+            }
+        }
+    }
+
+    /**
+     * Lists the features of each bucket with their strengths, in position order.
+     */
+    private static List<List<String>> buckets(FeatureInfo info) {
+        List<List<String>> buckets = new ArrayList<>();
+        for (int i = 0; i < Detection.BUCKETS; i++) {
+            buckets.add(new ArrayList<>());
+        }
+
+        // features sit 3 pixels below and right of their strength, which the buckets divide
+        double rowBucketSize = (double) (HEIGHT - 6) / ROW_BUCKETS;
+        double colBucketSize = (double) (WIDTH - 6) / COL_BUCKETS;
+        for (int x = 0; x < HEIGHT; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (info.features[x][y] == 0) continue;
+                int rowBucket = Math.min((int) ((x - 3) / rowBucketSize), ROW_BUCKETS - 1);
+                int colBucket = Math.min((int) ((y - 3) / colBucketSize), COL_BUCKETS - 1);
+                buckets.get(rowBucket * COL_BUCKETS + colBucket).add(x + "," + y + ": " + info.strengths[x - 3][y - 3]);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Renders rectangles over a gradient, optionally with pixel noise, which gives every bucket features.
+     */
+    private static int[][] image(long seed, boolean noisy) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[][] image = new int[HEIGHT][WIDTH];
+        for (int i = 0; i < HEIGHT; i++) {
+            for (int j = 0; j < WIDTH; j++) {
+                image[i][j] = 64 + 64 * j / WIDTH + 32 * i / HEIGHT;
+            }
+        }
+        for (int r = 0; r < WIDTH * HEIGHT / 500; r++) {
+            int top = random.nextInt(HEIGHT);
+            int left = random.nextInt(WIDTH);
+            int bottom = Math.min(HEIGHT, top + 4 + random.nextInt(30));
+            int right = Math.min(WIDTH, left + 4 + random.nextInt(30));
+            int value = random.nextInt(256);
+            for (int i = top; i < bottom; i++) {
+                for (int j = left; j < right; j++) {
+                    image[i][j] = value;
+                }
+            }
+        }
+        if (noisy) {
+            for (int i = 0; i < HEIGHT; i++) {
+                for (int j = 0; j < WIDTH; j++) {
+                    image[i][j] = Math.max(0, Math.min(255, image[i][j] + random.nextInt(-40, 41)));
+                }
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,133 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LandmarkMapTest {
+    @Test void matchesTheLandmarksOfAFrameSeenAgain() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 1);
+        FeatureInfo first = detect(cameras, scene, 0);
+        FeatureInfo second = detect(cameras, scene, 1);
+        double[] intrinsics = cameras.getIntrinsics();
+        double[] distortion = cameras.getDistortionCoefficients();
+        double[] rotation = new double[9];
+        double[] position = new double[3];
+
+        // map the points of the scene seen by the first frame that the second frame detects a feature at
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(0, 1, 20000, points2D, points3D);
+        scene.pose(0, rotation, position);
+        LandmarkMap map = new LandmarkMap(cameras);
+        HashMap<Integer, Point> truth = new HashMap<>();
+        double[] local = new double[3];
+        double[] point = new double[3];
+        double[] pixel = new double[2];
+        for (int i = 0; i < points2D.size(); i++) {
+            Point seen = points2D.get(i);
+            if (!nearFeature(second, seen)) continue;
+
+            // the pixel of the point in the first frame, whose window the landmark keeps
+            Point3 p = points3D.get(i);
+            Rectification.distort(distortion, p.x / p.z, p.y / p.z, pixel);
+            int column = (int) Math.round(intrinsics[0] * pixel[0] + intrinsics[2]);
+            int row = (int) Math.round(intrinsics[1] * pixel[1] + intrinsics[3]);
+            if (column < 6 || row < 6 || column >= first.width - 6 || row >= first.height - 6) continue;
+
+            local[0] = p.x;
+            local[1] = p.y;
+            local[2] = p.z;
+            Rotation.apply(rotation, local, point);
+            for (int j = 0; j < 3; j++) {
+                point[j] += position[j];
+            }
+            truth.put(map.add(point, first, row, column, 1), seen);
+        }
+        assertTrue(truth.size() > 50, "too few landmarks: " + truth.size());
+
+        // several landmarks may lie around one feature, which only the best of them claims, but the features
+        // matched from the second frame must be where the scene says their landmarks are
+        scene.pose(1, rotation, position);
+        LandmarkMap.Matches matches = new LandmarkMap.Matches();
+        int count = map.match(second, rotation, position, 16, matches);
+        assertTrue(count > truth.size() / 3, "too few matches: " + count + " of " + truth.size());
+        int close = 0;
+        for (int i = 0; i < count; i++) {
+            Point seen = truth.get(matches.landmarks[i]);
+            int column = matches.keys[i] % second.width;
+            int row = matches.keys[i] / second.width;
+            if (Math.abs(seen.x - column) <= 2 && Math.abs(seen.y - row) <= 2) {
+                close++;
+            }
+        }
+        assertTrue(close >= 0.9 * count, close + " of " + count + " matches are where the scene sees their landmark");
+
+        // a feature is claimed by one landmark at most
+        assertEquals(count, Arrays.stream(matches.keys, 0, count).distinct().count());
+    }
+
+    @Test void evictsOnlyTheOldestTenthWhenFull() {
+        Stereo cameras = Scenes.rig();
+        FeatureInfo image = detect(cameras, Scenes.scene(cameras, 1), 0);
+        LandmarkMap map = new LandmarkMap(cameras, 40, 100, LandmarkMap.DEFAULT_MAX_AGE);
+        double[] point = new double[3];
+
+        // fill the map with landmarks all seen in the same keyframe
+        for (int i = 0; i < 100; i++) {
+            point[0] = i;
+            map.add(point, image, 100, 100, 7);
+        }
+        assertEquals(100, map.size());
+
+        map.add(point, image, 100, 100, 8);
+        assertEquals(91, map.size(), "a tenth of the landmarks should be evicted, not every one of the keyframe");
+        assertEquals(10, map.getEvictions());
+    }
+
+    @Test void evictsLandmarksUnseenForTooLong() {
+        Stereo cameras = Scenes.rig();
+        FeatureInfo image = detect(cameras, Scenes.scene(cameras, 1), 0);
+        LandmarkMap map = new LandmarkMap(cameras, 40, 100, 5);
+        double[] point = new double[3];
+        int old = map.add(point, image, 100, 100, 1);
+        int recent = map.add(point, image, 100, 100, 1);
+        map.touch(recent, 4);
+
+        map.evictOlderThan(7);
+        assertEquals(1, map.size());
+        assertEquals(4, map.lastSeen(recent));
+        assertEquals(old, map.add(point, image, 100, 100, 7), "the freed slot is reused");
+    }
+
+    /**
+     * Checks whether a feature was detected within a pixel of a point.
+     */
+    private static boolean nearFeature(FeatureInfo image, Point point) {
+        int column = (int) Math.round(point.x);
+        int row = (int) Math.round(point.y);
+        for (int r = Math.max(0, row - 1); r <= Math.min(image.height - 1, row + 1); r++) {
+            for (int c = Math.max(0, column - 1); c <= Math.min(image.width - 1, column + 1); c++) {
+                if (image.features[r][c] != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Detects the features of the left image of a frame of the scene.
+     */
+    private static FeatureInfo detect(Stereo cameras, SyntheticScene scene, int frame) {
+        return new Detection().detect(scene.render(frame, cameras.getReference()));
+    }
+}
@@ -0,0 +1,67 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiRigTest {
+    /** The number of frames of each rig. */
+    private static final int FRAMES = 4;
+
+    @Test void rigsOfUnequalCostTakeTurns() {
+        SyntheticScene scene = Scenes.scene(Scenes.rig(), 1);
+        Frame[] frames = new Frame[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = scene.frame(i);
+        }
+
+        // rig 0 takes much longer over each frame than rig 1, and a single worker runs both
+        ForkJoinPool pool = new ForkJoinPool(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        try (MultiRig rigs = new MultiRig(Arrays.asList(Scenes.rig(), Scenes.rig()), pool, MultiRig.DEFAULT_ESTIMATION_BUDGET, 1)) {
+            rigs.run(Arrays.asList(slow(frames, 30), slow(frames, 0)), (rig, pose) -> order.add(rig));
+
+            assertEquals(FRAMES, rigs.getFrames(0));
+            assertEquals(FRAMES, rigs.getFrames(1));
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Integer> turns = new ArrayList<>();
+        for (int i = 0; i < FRAMES; i++) {
+            turns.add(0);
+            turns.add(1);
+        }
+        assertEquals(turns, order, "the rigs should alternate frame by frame");
+    }
+
+    /**
+     * Returns a stream of frames that takes a while to produce each frame.
+     */
+    private static Iterator<Frame> slow(Frame[] frames, long millis) {
+        Iterator<Frame> iterator = Arrays.asList(frames).iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Frame next() {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return iterator.next();
+            }
+        };
+    }
+}
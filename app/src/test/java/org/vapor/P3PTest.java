@@ -0,0 +1,70 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class P3PTest {
+    /** The number of random samples solved. */
+    private static final int SAMPLES = 1000;
+
+    @Test void solvesTheMotionOfTheSceneFromAnySample() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 1);
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(0, 2, 100, points2D, points3D);
+        Correspondences corr = new Correspondences(points2D, points3D, null, cameras);
+
+        Motion truth = scene.motion(0, 2);
+
+        P3P p3p = new P3P();
+        SplittableRandom random = new SplittableRandom(2);
+        int[] sample = new int[4];
+        double[] R = new double[9];
+        double[] t = new double[3];
+        double[] errors = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            // four distinct correspondences
+            for (int j = 0; j < 4; j++) {
+                sample[j] = random.nextInt(corr.size);
+                for (int k = 0; k < j; k++) {
+                    if (sample[k] == sample[j]) {
+                        j--;
+                        break;
+                    }
+                }
+            }
+            assertTrue(p3p.solve(corr.normalized, corr.world, sample, R, t), "sample " + i);
+
+            // a nearly degenerate triangle loses some precision, but never the solution
+            Motion motion = new Motion(new double[3], t);
+            Rotation.toVector(R, motion.rotation);
+            double rotationError = Scenes.rotationError(truth, motion);
+            double translationError = Scenes.translationError(truth, motion) / Scenes.BASELINE;
+            assertTrue(rotationError < 1E-3 && translationError < 1E-2, "sample " + i + " is off by " + rotationError + " rad, " + translationError);
+            errors[i] = Math.max(rotationError, translationError);
+        }
+        Arrays.sort(errors);
+        assertTrue(errors[SAMPLES / 2] < 1E-9, "most samples should be exact");
+        assertTrue(errors[SAMPLES * 95 / 100] < 1E-6, "95% of the samples should be within 1E-6");
+    }
+
+    @Test void rejectsADegenerateSample() {
+        double[] points2D = {0.1, 0.2, -0.3, 0.1, 0.05, -0.2, 0.2, 0.2};
+        double[] points3D = {1, 2, 10, -3, 1, 12, 0.5, -2, 9, 2, 2, 11};
+        double[] R = new double[9];
+        double[] t = {1, 2, 3};
+
+        assertFalse(new P3P().solve(points2D, points3D, new int[]{0, 0, 1, 2}, R, t));
+        assertArrayEquals(new double[9], R);
+        assertArrayEquals(new double[]{1, 2, 3}, t);
+    }
+}
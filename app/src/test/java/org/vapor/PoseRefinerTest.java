@@ -0,0 +1,91 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoseRefinerTest {
+    /** The focal length of the test rig in pixels. */
+    private static final double FOCAL = 700;
+
+    @Test void refinesAPerturbedMotionToTheTrueMotion() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 1);
+        Correspondences corr = correspondences(scene, cameras, 0, 3);
+        Motion truth = scene.motion(0, 3);
+
+        Motion motion = perturbed(truth);
+        assertTrue(Scenes.rotationError(truth, motion) > 1E-3);
+        PoseRefiner refiner = new PoseRefiner(FOCAL, 20, 20);
+        int inliers = refiner.refine(motion, corr);
+
+        assertEquals(corr.size, inliers, "every correspondence is within the threshold of the perturbed motion");
+        assertTrue(refiner.getIterations() > 0);
+        assertEquals(0, Scenes.rotationError(truth, motion), 1E-7, "rotation");
+        assertEquals(0, Scenes.translationError(truth, motion), 1E-6 * Scenes.BASELINE, "translation");
+    }
+
+    @Test void refinesOnlyOnTheInliers() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 2);
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(0, 2, 200, points2D, points3D);
+
+        // throw every fourth pixel far off
+        for (int i = 0; i < points2D.size(); i += 4) {
+            points2D.set(i, new Point(points2D.get(i).x + 60, points2D.get(i).y + 45));
+        }
+        Correspondences corr = new Correspondences(points2D, points3D, null, cameras);
+        Motion truth = scene.motion(0, 2);
+
+        Motion motion = perturbed(truth);
+        int inliers = new PoseRefiner(FOCAL, 20, 20).refine(motion, corr);
+
+        assertEquals(150, inliers);
+        assertEquals(0, Scenes.rotationError(truth, motion), 1E-7, "rotation");
+        assertEquals(0, Scenes.translationError(truth, motion), 1E-6 * Scenes.BASELINE, "translation");
+    }
+
+    @Test void startsNoIterationPastTheDeadline() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 3);
+        Correspondences corr = correspondences(scene, cameras, 1, 2);
+
+        Motion start = perturbed(scene.motion(1, 2));
+        Motion motion = new Motion(start.rotation.clone(), start.translation.clone());
+        PoseRefiner refiner = new PoseRefiner(FOCAL, 20, 20);
+        refiner.refine(motion, corr, System.nanoTime() - 1);
+
+        assertEquals(0, refiner.getIterations());
+        assertEquals(0, Scenes.rotationError(start, motion), 1E-12);
+        assertArrayEquals(start.translation, motion.translation, 1E-12);
+    }
+
+    /**
+     * Returns the noise-free correspondences of the scene between two frames.
+     */
+    private static Correspondences correspondences(SyntheticScene scene, Stereo cameras, int from, int to) {
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(from, to, 200, points2D, points3D);
+        return new Correspondences(points2D, points3D, null, cameras);
+    }
+
+    /**
+     * Returns a motion a few pixels of reprojection error away from a given motion.
+     */
+    private static Motion perturbed(Motion motion) {
+        double[] rotation = motion.rotation.clone();
+        double[] translation = motion.translation.clone();
+        rotation[0] += 0.004;
+        rotation[1] -= 0.003;
+        translation[2] += 0.02 * Scenes.BASELINE;
+        return new Motion(rotation, translation);
+    }
+}
@@ -0,0 +1,78 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RANSACTest {
+    @Test void recoversTheMotionOfTheScene() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 1);
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        assertEquals(300, scene.correspondences(0, 3, 300, points2D, points3D));
+
+        Motion motion = new RANSAC(ForkJoinPool.commonPool()).estimate(points2D, points3D, null, cameras, 7);
+
+        Motion truth = scene.motion(0, 3);
+        assertNotNull(motion, "a motion should be found");
+        assertEquals(0, Scenes.rotationError(truth, motion), 1E-4, "rotation");
+        assertEquals(0, Scenes.translationError(truth, motion), 1E-3 * Scenes.BASELINE, "translation");
+        assertEquals(300, motion.inliers, "every true correspondence is an inlier");
+    }
+
+    @Test void rejectsOutliers() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 2);
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(0, 2, 400, points2D, points3D);
+
+        // move 40% of the pixels anywhere in the image
+        SplittableRandom random = new SplittableRandom(3);
+        for (int i = 0; i < points2D.size(); i += 5) {
+            points2D.set(i, new Point(random.nextDouble(Scenes.WIDTH), random.nextDouble(Scenes.HEIGHT)));
+            points2D.set(i + 1, new Point(random.nextDouble(Scenes.WIDTH), random.nextDouble(Scenes.HEIGHT)));
+        }
+
+        Motion motion = new RANSAC(ForkJoinPool.commonPool()).estimate(points2D, points3D, null, cameras, 11);
+
+        Motion truth = scene.motion(0, 2);
+        assertNotNull(motion, "a motion should be found");
+        assertEquals(0, Scenes.rotationError(truth, motion), 1E-4, "rotation");
+        assertEquals(0, Scenes.translationError(truth, motion), 1E-3 * Scenes.BASELINE, "translation");
+        assertTrue(motion.inliers >= 240 && motion.inliers < 260, "inliers: " + motion.inliers);
+    }
+
+    @Test void givesTheSameMotionOnAnyPool() {
+        Stereo cameras = Scenes.rig();
+        SyntheticScene scene = Scenes.scene(cameras, 4);
+        List<Point> points2D = new ArrayList<>();
+        List<Point3> points3D = new ArrayList<>();
+        scene.correspondences(1, 3, 200, points2D, points3D);
+        for (int i = 0; i < points2D.size(); i += 3) {
+            points2D.set(i, new Point(points2D.get(i).x + 25, points2D.get(i).y - 40));
+        }
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool several = new ForkJoinPool(4);
+        try {
+            Motion a = new RANSAC(single).estimate(points2D, points3D, null, cameras, 5);
+            Motion b = new RANSAC(several).estimate(points2D, points3D, null, cameras, 5);
+            assertArrayEquals(a.rotation, b.rotation);
+            assertArrayEquals(a.translation, b.translation);
+            assertEquals(a.inliers, b.inliers);
+            assertEquals(a.hypotheses, b.hypotheses);
+        } finally {
+            single.shutdown();
+            several.shutdown();
+        }
+    }
+}
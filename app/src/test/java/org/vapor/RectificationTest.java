@@ -0,0 +1,201 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RectificationTest {
+    /** The intrinsics {fx, fy, cx, cy} and distortion {k1, k2, p1, p2, k3} of the two cameras. */
+    private static final double[] INTRINSICS1 = {700, 705, 320, 240};
+    private static final double[] DISTORTION1 = {0.03, -0.1, 0.001, -0.002, 0.02};
+    private static final double[] INTRINSICS2 = {690, 692, 326, 236};
+    private static final double[] DISTORTION2 = {-0.02, 0.05, -0.001, 0.001, 0.0};
+
+    /** The standard deviation of a rendered spot, in pixels. */
+    private static final double SPOT_SIGMA = 1.5;
+
+    @Test void matchesOfAStereoPointLieOnTheSameRow() {
+        Rectification rectification = rectification(0, 0);
+        double[] R = rotation();
+        double[] T = translation();
+        SplittableRandom random = new SplittableRandom(1);
+        double[] left = new double[2];
+        double[] right = new double[2];
+        double[] pixel = new double[2];
+        double[] point = new double[3];
+        double f = rectification.getIntrinsics()[0];
+        for (int i = 0; i < 200; i++) {
+            double[] X = {random.nextDouble(-100, 100), random.nextDouble(-80, 80), random.nextDouble(150, 2000)};
+
+            // project into the original images, then rectify both pixels
+            project(INTRINSICS1, DISTORTION1, X, pixel);
+            rectification.rectifyPoint(Rectification.LEFT, pixel[0], pixel[1], left);
+            project(INTRINSICS2, DISTORTION2, transform(R, T, X), pixel);
+            rectification.rectifyPoint(Rectification.RIGHT, pixel[0], pixel[1], right);
+
+            assertEquals(left[1], right[1], 1E-6, "point " + i + " is off its row");
+            assertTrue(left[0] > right[0], "point " + i + " has a negative disparity");
+
+            // the disparity gives back the point, whose rectified depth is f * baseline / d
+            assertTrue(rectification.triangulate(left, right, point));
+            assertArrayEquals(X, point, 1E-6 * X[2], "point " + i);
+            double[] rectified = new double[3];
+            Rotation.apply(rectification.getRotation(Rectification.LEFT), X, rectified);
+            assertEquals(f * rectification.getBaseline() / rectified[2], left[0] - right[0], 1E-6);
+        }
+    }
+
+    @Test void rejectsAPointAtOrBehindTheCameras() {
+        Rectification rectification = rectification(0, 0);
+        double[] point = new double[3];
+        assertFalse(rectification.triangulate(new double[]{300, 200}, new double[]{300, 200}, point));
+        assertFalse(rectification.triangulate(new double[]{300, 200}, new double[]{310, 200}, point));
+    }
+
+    @Test void rectifyPointAgreesWithTheRemappedImage() {
+        Rectification rectification = rectification(Scenes.WIDTH, Scenes.HEIGHT);
+        int[][] source = new int[Scenes.HEIGHT][Scenes.WIDTH];
+        int[][] target = new int[Scenes.HEIGHT][Scenes.WIDTH];
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+        double[][] spots = {{320, 240}, {60.3, 45.7}, {590.5, 420.2}, {100.8, 400.4}, {500.1, 80.6}};
+        for (int camera = Rectification.LEFT; camera <= Rectification.RIGHT; camera++) {
+            for (double[] spot : spots) {
+                render(source, spot[0], spot[1]);
+                rectification.remap(camera, source, target);
+                rectification.rectifyPoint(camera, spot[0], spot[1], expected);
+                centroid(target, expected, actual);
+                assertEquals(expected[0], actual[0], 0.25, "column of " + spot[0] + ", " + spot[1]);
+                assertEquals(expected[1], actual[1], 0.25, "row of " + spot[0] + ", " + spot[1]);
+            }
+        }
+    }
+
+    @Test void aStereoPointLandsOnTheSameRowOfBothRemappedImages() {
+        Rectification rectification = rectification(Scenes.WIDTH, Scenes.HEIGHT);
+        double[] R = rotation();
+        double[] T = translation();
+        int[][] source = new int[Scenes.HEIGHT][Scenes.WIDTH];
+        int[][] left = new int[Scenes.HEIGHT][Scenes.WIDTH];
+        int[][] right = new int[Scenes.HEIGHT][Scenes.WIDTH];
+        double[] pixel = new double[2];
+        double[] guess = new double[2];
+        double[] leftSpot = new double[2];
+        double[] rightSpot = new double[2];
+        double[][] points = {{0, 0, 500}, {-60, 40, 300}, {80, -50, 400}, {-150, -100, 900}};
+        for (double[] X : points) {
+            project(INTRINSICS1, DISTORTION1, X, pixel);
+            render(source, pixel[0], pixel[1]);
+            rectification.remap(Rectification.LEFT, source, left);
+            rectification.rectifyPoint(Rectification.LEFT, pixel[0], pixel[1], guess);
+            centroid(left, guess, leftSpot);
+
+            project(INTRINSICS2, DISTORTION2, transform(R, T, X), pixel);
+            render(source, pixel[0], pixel[1]);
+            rectification.remap(Rectification.RIGHT, source, right);
+            rectification.rectifyPoint(Rectification.RIGHT, pixel[0], pixel[1], guess);
+            centroid(right, guess, rightSpot);
+
+            assertEquals(leftSpot[1], rightSpot[1], 0.25, "row of " + X[0] + ", " + X[1] + ", " + X[2]);
+        }
+    }
+
+    @Test void stereoTriangulatesInTheFrameOfEitherReferenceCamera() {
+        double[] X = {12, -7, 180};
+        double[] pixel = new double[2];
+        double[] first = new double[2];
+        double[] second = new double[2];
+        double[] point = new double[3];
+        for (int reference = Rectification.LEFT; reference <= Rectification.RIGHT; reference++) {
+            Stereo cameras = Scenes.rig(reference);
+            Rectification rectification = cameras.getRectification();
+            double[] k = cameras.getIntrinsics(Rectification.LEFT);
+            double[] d = cameras.getDistortionCoefficients(Rectification.LEFT);
+            double[] X2 = transform(cameras.getStereoRotation(), cameras.getStereoTranslation(), X);
+            project(k, d, X, pixel);
+            rectification.rectifyPoint(Rectification.LEFT, pixel[0], pixel[1], first);
+            project(k, d, X2, pixel);
+            rectification.rectifyPoint(Rectification.RIGHT, pixel[0], pixel[1], second);
+
+            boolean left = reference == Rectification.LEFT;
+            assertTrue(cameras.triangulateRectified(left ? first : second, left ? second : first, point));
+            assertArrayEquals(left ? X : X2, point, 1E-6, "reference " + reference);
+        }
+    }
+
+    /**
+     * Returns the rectification of a slightly rotated rig, the right camera about one baseline of 60 to the right.
+     */
+    private static Rectification rectification(int width, int height) {
+        return new Rectification(INTRINSICS1, DISTORTION1, INTRINSICS2, DISTORTION2, rotation(), translation(), width,
+                height);
+    }
+
+    private static double[] rotation() {
+        double[] R = new double[9];
+        Rotation.toMatrix(new double[]{0.01, -0.02, 0.005}, R);
+        return R;
+    }
+
+    private static double[] translation() {
+        return new double[]{-60, 1.5, -2};
+    }
+
+    /**
+     * Moves a point from the left camera frame into the right one, X_2 = R X_1 + T.
+     */
+    private static double[] transform(double[] R, double[] T, double[] X) {
+        double[] out = new double[3];
+        Rotation.apply(R, X, out);
+        for (int i = 0; i < 3; i++) {
+            out[i] += T[i];
+        }
+        return out;
+    }
+
+    /**
+     * Projects a point in a camera frame into the original, distorted image, as {column, row}.
+     */
+    private static void project(double[] k, double[] d, double[] X, double[] out) {
+        Rectification.distort(d, X[0] / X[2], X[1] / X[2], out);
+        out[0] = k[0] * out[0] + k[2];
+        out[1] = k[1] * out[1] + k[3];
+    }
+
+    /**
+     * Renders a bright gaussian spot centered at a pixel on a black image.
+     */
+    private static void render(int[][] image, double u, double v) {
+        for (int row = 0; row < image.length; row++) {
+            for (int column = 0; column < image[row].length; column++) {
+                double du = column - u;
+                double dv = row - v;
+                double spread = 2 * SPOT_SIGMA * SPOT_SIGMA;
+                image[row][column] = (int) Math.round(250 * Math.exp(-(du * du + dv * dv) / spread));
+            }
+        }
+    }
+
+    /**
+     * Finds the intensity-weighted centroid of the spot near a guess, as {column, row}.
+     */
+    private static void centroid(int[][] image, double[] guess, double[] out) {
+        double sum = 0, u = 0, v = 0;
+        int radius = (int) Math.ceil(4 * SPOT_SIGMA) + 2;
+        int u0 = (int) Math.round(guess[0]);
+        int v0 = (int) Math.round(guess[1]);
+        for (int row = v0 - radius; row <= v0 + radius; row++) {
+            for (int column = u0 - radius; column <= u0 + radius; column++) {
+                double value = image[row][column];
+                sum += value;
+                u += value * column;
+                v += value * row;
+            }
+        }
+        assertTrue(sum > 0, "no spot near " + guess[0] + ", " + guess[1]);
+        out[0] = u / sum;
+        out[1] = v / sum;
+    }
+}
@@ -0,0 +1,98 @@
+package org.vapor;
+
+import org.ejml.simple.SimpleMatrix;
+import org.opencv.core.MatOfDouble;
+
+/**
+ * The rig and synthetic scene shared by the tests, whose true motions serve as the oracle of the estimators.
+ */
+final class Scenes {
+    /** The width of the images of the rig. */
+    static final int WIDTH = 640;
+
+    /** The height of the images of the rig. */
+    static final int HEIGHT = 480;
+
+    /** The distance between the two cameras of the rig, the unit of the scene. */
+    static final double BASELINE = 10;
+
+    private Scenes() {
+    }
+
+    /**
+     * Constructs a 640x480 stereo rig with a little lens distortion, the right camera one baseline to the right of the
+     * left one.
+     *
+     * @return the stereo camera system
+     */
+    static Stereo rig() {
+        return rig(Rectification.LEFT);
+    }
+
+    /**
+     * Constructs the 640x480 stereo rig with a given reference camera.
+     *
+     * @param reference {@link Rectification#LEFT} to track the left camera, or {@link Rectification#RIGHT} the right one
+     *
+     * @return the stereo camera system
+     */
+    static Stereo rig(int reference) {
+        OpenCVLibrary.load();
+        SimpleMatrix mtx = new SimpleMatrix(new double[][]{
+                {700.0, 0.0, 320.0},
+                {0.0, 700.0, 240.0},
+                {0.0, 0.0, 1.0}
+        });
+        MatOfDouble dist = new MatOfDouble(0.03, -0.1, 0.001, -0.002, 0.02);
+        SimpleMatrix R = SimpleMatrix.identity(3);
+        SimpleMatrix T = new SimpleMatrix(new double[][]{{-BASELINE}, {0.0}, {0.0}});
+        return new Stereo(mtx, mtx, dist, dist, R, T, 0, 0, reference);
+    }
+
+    /**
+     * Constructs the synthetic scene seen by a rig along the default trajectory.
+     *
+     * @param cameras the stereo camera system
+     * @param seed the seed of the scene
+     *
+     * @return the scene
+     */
+    static SyntheticScene scene(Stereo cameras, long seed) {
+        return new SyntheticScene(cameras, WIDTH, HEIGHT, seed);
+    }
+
+    /**
+     * Returns the angle between the rotations of two motions.
+     *
+     * @param expected the first motion
+     * @param actual the second motion
+     *
+     * @return the angle in radians
+     */
+    static double rotationError(Motion expected, Motion actual) {
+        double[] a = new double[9];
+        double[] b = new double[9];
+        double[] difference = new double[9];
+        double[] vector = new double[3];
+        Rotation.toMatrix(expected.rotation, a);
+        Rotation.toMatrix(actual.rotation, b);
+        Rotation.multiplyTransposed(a, b, difference);
+        Rotation.toVector(difference, vector);
+        return Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+    }
+
+    /**
+     * Returns the distance between the translations of two motions.
+     *
+     * @param expected the first motion
+     * @param actual the second motion
+     *
+     * @return the distance in the unit of the scene
+     */
+    static double translationError(Motion expected, Motion actual) {
+        double dx = expected.translation[0] - actual.translation[0];
+        double dy = expected.translation[1] - actual.translation[1];
+        double dz = expected.translation[2] - actual.translation[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,66 @@
+package org.vapor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpscQueueTest {
+    /** The number of motions handed through the queue. */
+    private static final int ITEMS = 2000;
+
+    @Test void handsEveryItemOverInOrder() throws InterruptedException {
+        SyntheticScene scene = Scenes.scene(Scenes.rig(), 1);
+        SpscQueue<Motion> queue = new SpscQueue<>("motions", 3);
+
+        // the producer puts the motion between every two frames of the scene, then closes the queue
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < ITEMS; i++) {
+                    assertTrue(queue.put(scene.motion(i, i + 1)));
+                }
+                queue.close();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < ITEMS; i++) {
+            Motion motion = queue.take();
+            assertNotNull(motion, "item " + i);
+            Motion expected = scene.motion(i, i + 1);
+            assertArrayEquals(expected.rotation, motion.rotation, "rotation of item " + i);
+            assertArrayEquals(expected.translation, motion.translation, "translation of item " + i);
+        }
+        assertNull(queue.take(), "the queue should end once drained");
+        producer.join();
+        assertNull(failure.get());
+
+        assertTrue(queue.getMaxDepth() <= 4, "the capacity is rounded up to 4");
+        assertEquals(0, queue.size());
+    }
+
+    @Test void abortWakesABlockedProducer() throws InterruptedException {
+        SpscQueue<Integer> queue = new SpscQueue<>("integers", 2);
+        assertTrue(queue.put(1));
+        assertTrue(queue.put(2));
+
+        AtomicReference<Boolean> put = new AtomicReference<>();
+        Thread producer = new Thread(() -> put.set(queue.put(3)));
+        producer.start();
+        Thread.sleep(20);
+        assertNull(put.get(), "the producer should wait on a full queue");
+
+        queue.abort();
+        producer.join(5000);
+        assertEquals(Boolean.FALSE, put.get());
+        assertNull(queue.take(), "an aborted queue drops its items");
+    }
+
+    @Test void rejectsAnInvalidCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new SpscQueue<Integer>("empty", 0));
+    }
+}
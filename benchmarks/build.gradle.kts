@@ -0,0 +1,51 @@
+/*
+ * JMH benchmarks of the hot paths of the odometry, run with `./gradlew :benchmarks:jmh`.
+ *
+ * Every suite runs against inputs generated from fixed seeds, so results are comparable across runs and machines.
+ * Results are written to build/results/jmh/results.json.
+ */
+
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+repositories {
+    // Use Maven Central for resolving dependencies.
+    mavenCentral()
+}
+
+dependencies {
+    // The benchmarks live in the app's package to reach its package-private kernels.
+    jmh(project(":app"))
+    jmh(libs.ejml)
+    jmh(libs.opencv)
+    jmh(libs.jmh.core)
+    jmhAnnotationProcessor(libs.jmh.generator)
+}
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+
+    // report throughput and average time, with the allocation rate from the GC profiler
+    benchmarkMode = listOf("thrpt", "avgt")
+    timeUnit = "us"
+    profilers = listOf("gc")
+
+    warmupIterations = 3
+    warmup = "2s"
+    iterations = 5
+    timeOnIteration = "2s"
+    fork = 1
+
+    resultFormat = "JSON"
+
+    // run a subset with -PjmhIncludes=Detection
+    project.findProperty("jmhIncludes")?.let { includes = listOf(it.toString()) }
+}
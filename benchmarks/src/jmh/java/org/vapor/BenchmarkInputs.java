@@ -0,0 +1,228 @@
+package org.vapor;
+
+import org.ejml.simple.SimpleMatrix;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic inputs shared by the benchmark suites, generated from fixed seeds so that every run measures the same
+ * work.
+ */
+final class BenchmarkInputs {
+    /** The seed of every generated input. */
+    static final long SEED = 42;
+
+    /** The focal length and principal point of the synthetic rig, for a 1280x960 image. */
+    private static final double FOCAL = 1000.0;
+    private static final double CX = 640.0;
+    private static final double CY = 480.0;
+
+    /** The baseline of the synthetic rig. */
+    private static final double BASELINE = 10.0;
+
+    /** The fraction of generated correspondences that are outliers. */
+    static final double OUTLIER_RATIO = 0.3;
+
+    /** The true motion of the generated correspondences. */
+    private static final double[] TRUE_ROTATION = { 0.01, -0.02, 0.005 };
+    private static final double[] TRUE_TRANSLATION = { 0.5, -0.1, 2.0 };
+
+    private BenchmarkInputs() {
+    }
+
+    /**
+     * Parses a resolution parameter.
+     *
+     * @param resolution the resolution as "WIDTHxHEIGHT"
+     *
+     * @return the {width, height}
+     */
+    static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[]{ Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+    }
+
+    /**
+     * Generates a grayscale image of overlapping flat rectangles on a gradient, whose corners give the detector
+     * plenty of features, with mild noise.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param seed the seed of the image
+     *
+     * @return the grayscale values, indexed [row][column]
+     */
+    static int[][] texture(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[height][width];
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                image[i][j] = 64 + 64 * j / width + 32 * i / height;
+            }
+        }
+
+        // one rectangle per 2000 pixels keeps the feature density the same at every resolution
+        int rectangles = width * height / 2000;
+        for (int r = 0; r < rectangles; r++) {
+            int top = random.nextInt(height);
+            int left = random.nextInt(width);
+            int bottom = Math.min(height, top + 8 + random.nextInt(40));
+            int right = Math.min(width, left + 8 + random.nextInt(40));
+            int value = random.nextInt(256);
+            for (int i = top; i < bottom; i++) {
+                for (int j = left; j < right; j++) {
+                    image[i][j] = value;
+                }
+            }
+        }
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                image[i][j] = Math.max(0, Math.min(255, image[i][j] + random.nextInt(5) - 2));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Shifts an image, repeating its edge pixels, as if the camera had moved.
+     *
+     * @param image the grayscale values
+     * @param rows the number of rows to shift down by
+     * @param columns the number of columns to shift right by
+     *
+     * @return the shifted image
+     */
+    static int[][] shift(int[][] image, int rows, int columns) {
+        int height = image.length;
+        int width = image[0].length;
+        int[][] shifted = new int[height][width];
+        for (int i = 0; i < height; i++) {
+            int si = Math.max(0, Math.min(height - 1, i - rows));
+            for (int j = 0; j < width; j++) {
+                shifted[i][j] = image[si][Math.max(0, Math.min(width - 1, j - columns))];
+            }
+        }
+        return shifted;
+    }
+
+    /**
+     * Keeps only the strongest features of a detection.
+     *
+     * @param info the features of an image
+     * @param count the number of features to keep
+     *
+     * @return the features of the image, with at most the given number of features
+     */
+    static FeatureInfo strongest(FeatureInfo info, int count) {
+        ArrayList<double[]> features = new ArrayList<>();
+        for (int i = 0; i < info.height; i++) {
+            for (int j = 0; j < info.width; j++) {
+                if (info.features[i][j] != 0) {
+                    features.add(new double[]{ info.strengths[i - 3][j - 3], i, j });
+                }
+            }
+        }
+        features.sort((a, b) -> Double.compare(b[0], a[0]));
+        int[][] kept = new int[info.height][info.width];
+        int keep = Math.min(count, features.size());
+        for (int k = 0; k < keep; k++) {
+            kept[(int) features.get(k)[1]][(int) features.get(k)[2]] = 1;
+        }
+        return new FeatureInfo(info.strengths, kept, info.image, keep);
+    }
+
+    /**
+     * Constructs a distortion-free rig for 1280x960 images with the reference camera at the origin, loading the OpenCV
+     * native library.
+     *
+     * @return the stereo camera system
+     */
+    static Stereo rig() {
+        return rig((int) (2 * CX), (int) (2 * CY));
+    }
+
+    /**
+     * Constructs a distortion-free rig for a given image size, with the field of view of the 1280x960 rig.
+     *
+     * @param width the width of the images
+     * @param height the height of the images
+     *
+     * @return the stereo camera system
+     */
+    static Stereo rig(int width, int height) {
+        OpenCVLibrary.load();
+        double focal = FOCAL * width / (2 * CX);
+        SimpleMatrix mtx = new SimpleMatrix(new double[][]{
+                {focal, 0.0, width / 2.0},
+                {0.0, focal, height / 2.0},
+                {0.0, 0.0, 1.0}
+        });
+        MatOfDouble dist = new MatOfDouble(0, 0, 0, 0, 0);
+        SimpleMatrix R = SimpleMatrix.identity(3);
+        SimpleMatrix T = new SimpleMatrix(new double[][]{{-BASELINE}, {0.0}, {0.0}});
+        return new Stereo(mtx, mtx, dist, dist, R, T);
+    }
+
+    /**
+     * Generates stereo pixel pairs of random points in front of the synthetic rig.
+     *
+     * @param count the number of pairs
+     * @param seed the seed of the points
+     *
+     * @return the pairs, {left, right} as {column, row}
+     */
+    static double[][][] stereoPairs(int count, long seed) {
+        Random random = new Random(seed);
+        double[][][] pairs = new double[count][2][2];
+        for (int i = 0; i < count; i++) {
+            double x = random.nextDouble() * 200 - 100;
+            double y = random.nextDouble() * 150 - 75;
+            double z = random.nextDouble() * 300 + 100;
+            pairs[i][0][0] = FOCAL * x / z + CX;
+            pairs[i][0][1] = FOCAL * y / z + CY;
+            pairs[i][1][0] = FOCAL * (x - BASELINE) / z + CX;
+            pairs[i][1][1] = pairs[i][0][1];
+        }
+        return pairs;
+    }
+
+    /**
+     * Generates 2D-3D correspondences under a small known motion, with a fraction of outliers that get worse SAD
+     * scores on average.
+     *
+     * @param count the number of correspondences
+     * @param seed the seed of the correspondences
+     * @param points2D the output pixel coordinates in the current camera, as {column, row}
+     * @param points3D the output 3D points in the previous camera frame
+     * @param sad the output SAD score of each correspondence
+     */
+    static void correspondences(int count, long seed, List<Point> points2D, List<Point3> points3D, int[] sad) {
+        Random random = new Random(seed);
+        double[] R = new double[9];
+        Rotation.toMatrix(TRUE_ROTATION, R);
+        double[] t = TRUE_TRANSLATION;
+        double[] point = new double[3];
+        double[] moved = new double[3];
+        for (int i = 0; i < count; i++) {
+            point[0] = random.nextDouble() * 200 - 100;
+            point[1] = random.nextDouble() * 150 - 75;
+            point[2] = random.nextDouble() * 300 + 100;
+            Rotation.apply(R, point, moved);
+            double u = FOCAL * (moved[0] + t[0]) / (moved[2] + t[2]) + CX;
+            double v = FOCAL * (moved[1] + t[1]) / (moved[2] + t[2]) + CY;
+            sad[i] = 500 + random.nextInt(1500);
+            if (random.nextDouble() < OUTLIER_RATIO) {
+                u = random.nextDouble() * 2 * CX;
+                v = random.nextDouble() * 2 * CY;
+                sad[i] += 1000;
+            }
+            points2D.add(new Point(u, v));
+            points3D.add(new Point3(point[0], point[1], point[2]));
+        }
+    }
+}
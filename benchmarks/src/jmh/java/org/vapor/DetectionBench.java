@@ -0,0 +1,65 @@
+package org.vapor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.SplittableRandom;
+
+/**
+ * Harris corner detection of one image, at several resolutions, over the whole image and when replenishing only a
+ * fraction of the buckets.
+ */
+@State(Scope.Thread)
+public class DetectionBench {
+    @Param({"320x240", "640x480", "1280x960"})
+    public String resolution;
+
+    /* The detector, whose buffers are reused across invocations as they are across frames. */
+    private Detection detection;
+
+    /* The image. */
+    private int[][] image;
+
+    /**
+     * The buckets left to replenish, a state of its own so that {@link #detect()}, which does not use it, is not run
+     * once per fraction.
+     */
+    @State(Scope.Thread)
+    public static class Mask {
+        /** The fraction of the buckets replenished, picked at random. */
+        @Param({"0.1", "0.3"})
+        public double replenished;
+
+        /* Whether each bucket is occupied. */
+        private boolean[] occupied;
+
+        @Setup
+        public void setup() {
+            occupied = new boolean[Detection.BUCKETS];
+            SplittableRandom random = new SplittableRandom(BenchmarkInputs.SEED);
+            for (int i = 0; i < occupied.length; i++) {
+                occupied[i] = random.nextDouble() >= replenished;
+            }
+        }
+    }
+
+    @Setup
+    public void setup() {
+        int[] size = BenchmarkInputs.parseResolution(resolution);
+        image = BenchmarkInputs.texture(size[0], size[1], BenchmarkInputs.SEED);
+        detection = new Detection();
+    }
+
+    @Benchmark
+    public FeatureInfo detect() {
+        return detection.detect(image);
+    }
+
+    @Benchmark
+    public FeatureInfo replenish(Mask mask) {
+        return detection.detect(image, mask.occupied);
+    }
+}
@@ -0,0 +1,58 @@
+package org.vapor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End-to-end odometry of one frame of a rendered synthetic scene, at several resolutions, scene densities and noise
+ * levels.
+ */
+@State(Scope.Thread)
+public class OdometryBench {
+    /** The number of rendered frames the benchmark cycles through. */
+    private static final int FRAMES = 16;
+
+    @Param({"320x240", "640x480", "1280x960"})
+    public String resolution;
+
+    @Param({"16", "64"})
+    public int planes;
+
+    @Param({"0", "4"})
+    public double noise;
+
+    /* The odometry engine, and the rendered frames. */
+    private VisualOdometry odometry;
+    private Frame[] frames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchmarkInputs.parseResolution(resolution);
+        Stereo cameras = BenchmarkInputs.rig(size[0], size[1]);
+        SyntheticScene scene = new SyntheticScene(cameras, size[0], size[1], planes, noise,
+                new double[]{0.05, 0, 0.25}, new double[]{0, 0.002, 0}, BenchmarkInputs.SEED);
+        frames = new Frame[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = scene.frame(i);
+        }
+        odometry = new VisualOdometry(cameras);
+    }
+
+    @TearDown
+    public void tearDown() {
+        odometry.close();
+    }
+
+    @Benchmark
+    public Pose process() {
+        // wrapping around jumps back to the start, which costs one keyframe per cycle
+        Frame frame = frames[next];
+        next = (next + 1) % FRAMES;
+        return odometry.process(frame);
+    }
+}
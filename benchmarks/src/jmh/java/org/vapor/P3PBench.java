@@ -0,0 +1,61 @@
+package org.vapor;
+
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+/**
+ * The pure-Java P3P solver on the minimal samples RANSAC draws, one solve per invocation.
+ */
+@State(Scope.Thread)
+public class P3PBench {
+    /** The number of correspondences the samples are drawn from. */
+    private static final int CORRESPONDENCES = 400;
+
+    /** The number of samples cycled through, so that every invocation solves a different one. */
+    private static final int SAMPLES = 1024;
+
+    /* The correspondences, normalized. */
+    private Correspondences correspondences;
+
+    /* The samples of four correspondence indices, the fourth used for disambiguation. */
+    private int[][] samples;
+
+    /* The solver and its outputs. */
+    private final P3P solver = new P3P();
+    private final double[] R = new double[9];
+    private final double[] t = new double[3];
+
+    /* The index of the next sample. */
+    private int next;
+
+    @Setup
+    public void setup() {
+        ArrayList<Point> points2D = new ArrayList<>();
+        ArrayList<Point3> points3D = new ArrayList<>();
+        int[] sad = new int[CORRESPONDENCES];
+        BenchmarkInputs.correspondences(CORRESPONDENCES, BenchmarkInputs.SEED, points2D, points3D, sad);
+        correspondences = new Correspondences(points2D, points3D, null, BenchmarkInputs.rig());
+
+        SplittableRandom random = new SplittableRandom(BenchmarkInputs.SEED);
+        samples = new int[SAMPLES][];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = random.ints(0, CORRESPONDENCES).distinct().limit(4).toArray();
+        }
+    }
+
+    @Benchmark
+    public void solve(Blackhole blackhole) {
+        int[] sample = samples[next];
+        next = (next + 1) % SAMPLES;
+        blackhole.consume(solver.solve(correspondences.normalized, correspondences.world, sample, R, t));
+        blackhole.consume(t);
+    }
+}
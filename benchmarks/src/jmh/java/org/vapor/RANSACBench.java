@@ -0,0 +1,45 @@
+package org.vapor;
+
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Motion estimation from 2D-3D correspondences with a fixed fraction of outliers, at several correspondence counts,
+ * on the common pool as {@link RANSAC#ransac} runs it.
+ */
+@State(Scope.Thread)
+public class RANSACBench {
+    @Param({"100", "400", "1000"})
+    public int correspondences;
+
+    /* The stereo camera system and the estimator. */
+    private Stereo cameras;
+    private RANSAC ransac;
+
+    /* The correspondences and their SAD scores. */
+    private final ArrayList<Point> points2D = new ArrayList<>();
+    private final ArrayList<Point3> points3D = new ArrayList<>();
+    private int[] sad;
+
+    @Setup
+    public void setup() {
+        cameras = BenchmarkInputs.rig();
+        ransac = new RANSAC(ForkJoinPool.commonPool());
+        sad = new int[correspondences];
+        BenchmarkInputs.correspondences(correspondences, BenchmarkInputs.SEED, points2D, points3D, sad);
+    }
+
+    @Benchmark
+    public Motion ransac() {
+        // a fixed seed, unlike RANSAC.ransac, so every invocation does the same work
+        return ransac.estimate(points2D, points3D, sad, cameras, BenchmarkInputs.SEED);
+    }
+}
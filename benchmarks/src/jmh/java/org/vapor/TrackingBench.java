@@ -0,0 +1,88 @@
+package org.vapor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Feature matching between two images of a moving camera, at several resolutions and feature counts, and the SAD
+ * kernel it spends its time in.
+ */
+@State(Scope.Thread)
+public class TrackingBench {
+    @Param({"320x240", "640x480", "1280x960"})
+    public String resolution;
+
+    @Param({"100", "500", "2000"})
+    public int features;
+
+    /* The features of the two images, limited to the strongest ones. */
+    private FeatureInfo before;
+    private FeatureInfo after;
+
+    /* The window centers compared by the SAD kernel, {row A, column A, row B, column B}. */
+    private int[] windows;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchmarkInputs.parseResolution(resolution);
+        int[][] first = BenchmarkInputs.texture(size[0], size[1], BenchmarkInputs.SEED);
+        int[][] second = BenchmarkInputs.shift(first, size[1] / 100, size[0] / 50);
+        before = BenchmarkInputs.strongest(new Detection().detect(first), features);
+        after = BenchmarkInputs.strongest(new Detection().detect(second), features);
+
+        // every feature of the first image against its nearest feature of the second
+        ArrayList<int[]> pairs = new ArrayList<>();
+        for (int i = 0; i < before.height; i++) {
+            for (int j = 0; j < before.width; j++) {
+                if (before.features[i][j] == 0) continue;
+                int[] nearest = nearest(after, i, j);
+                if (nearest != null) {
+                    pairs.add(new int[]{ i, j, nearest[0], nearest[1] });
+                }
+            }
+        }
+        windows = new int[4 * pairs.size()];
+        for (int k = 0; k < pairs.size(); k++) {
+            System.arraycopy(pairs.get(k), 0, windows, 4 * k, 4);
+        }
+    }
+
+    @Benchmark
+    public HashMap<Feature, Feature> track() {
+        return Tracking.track(before, after);
+    }
+
+    @Benchmark
+    public long sad() {
+        long sum = 0;
+        for (int k = 0; k < windows.length; k += 4) {
+            sum += Tracking.sad(before, after, windows[k], windows[k + 1], windows[k + 2], windows[k + 3]);
+        }
+        return sum;
+    }
+
+    /**
+     * Finds the feature closest to a pixel.
+     */
+    private static int[] nearest(FeatureInfo info, int row, int column) {
+        int[] best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < info.height; i++) {
+            for (int j = 0; j < info.width; j++) {
+                if (info.features[i][j] == 0) continue;
+                long distance = (long) (i - row) * (i - row) + (long) (j - column) * (j - column);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = new int[]{ i, j };
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,53 @@
+package org.vapor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Triangulation of the stereo matches of a keyframe, at several match counts, by their disparity in the rectified pair
+ * as the odometry does and by the linear method on the raw pixels.
+ */
+@State(Scope.Thread)
+public class TriangulationBench {
+    @Param({"100", "500", "2000"})
+    public int matches;
+
+    /* The stereo camera system. */
+    private Stereo cameras;
+
+    /* The matched pixels, {left, right} as {column, row}. */
+    private double[][][] pairs;
+
+    /* The rectified pixels and triangulation of one match, reused across matches. */
+    private final double[] left = new double[2];
+    private final double[] right = new double[2];
+    private final double[] point = new double[3];
+
+    @Setup
+    public void setup() {
+        cameras = BenchmarkInputs.rig();
+        pairs = BenchmarkInputs.stereoPairs(matches, BenchmarkInputs.SEED);
+    }
+
+    @Benchmark
+    public void triangulateRectified(Blackhole blackhole) {
+        Rectification rectification = cameras.getRectification();
+        for (double[][] pair : pairs) {
+            rectification.rectifyPoint(Rectification.LEFT, pair[0][0], pair[0][1], left);
+            rectification.rectifyPoint(Rectification.RIGHT, pair[1][0], pair[1][1], right);
+            blackhole.consume(cameras.triangulateRectified(left, right, point));
+            blackhole.consume(point[2]);
+        }
+    }
+
+    @Benchmark
+    public void triangulate(Blackhole blackhole) {
+        for (double[][] pair : pairs) {
+            blackhole.consume(cameras.triangulate(pair[0], pair[1]));
+        }
+    }
+}
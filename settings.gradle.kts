@@ -12,3 +12,4 @@ plugins {
 
 rootProject.name = "vapor"
 include("app")
+include("benchmarks")